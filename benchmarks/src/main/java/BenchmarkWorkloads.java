@@ -0,0 +1,330 @@
+/*
+ * Filename: BenchmarkWorkloads.java
+ * Description: The hot paths the JMH benchmarks in bench/ measure, written straight against the game classes.
+ *
+ * Note:
+ * JMH refuses benchmark classes in the default package, and a class in a package can't use the game's
+ * default package classes at all. So the work lives here: every method sets one workload up and returns
+ * an IntSupplier that runs one batch of it, the @Benchmark methods just call getAsInt() (see bench.Workloads).
+ * That call only ever sees one implementation, the JIT inlines it.
+ *
+ * Everything is seeded and starts from the same state every batch, so every run measures the same ticks.
+ */
+
+import acm.graphics.GCanvas;
+import acm.graphics.GRect;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+public class BenchmarkWorkloads {
+
+    private static final long SEED = 42;
+    private static final double MAX_BALL_X = BreakoutEngine.WIDTH - BreakoutEngine.BALL_RADIUS * 2;
+    private static final double MAX_BALL_Y = BreakoutEngine.HEIGHT - BreakoutEngine.BALL_RADIUS * 2;
+
+    private BenchmarkWorkloads() {
+    }
+
+    // ticks steps of one board with a paddle that never misses, back to the same start before every batch
+    public static IntSupplier engineSteps(int rows, int cols, int ticks) {
+        BreakoutEngine engine = new BreakoutEngine(new Random(SEED), rows, cols);
+        double paddleX = engine.getPaddleX();
+        double ballX = engine.getBallX();
+        double ballY = engine.getBallY();
+        double vx = engine.getVx();
+        double vy = engine.getVy();
+        BrickGrid bricks = engine.copyBricks();
+
+        return () -> {
+            engine.restore(paddleX, ballX, ballY, vx, vy, 0, BreakoutEngine.NTURNS, bricks);
+            int events = 0;
+            for (int i = 0; i < ticks; i++) {
+                events += engine.step(followBall(engine, i));
+            }
+            return events + engine.getAliveBricks();
+        };
+    }
+
+    // One tick of a board with balls balls (see BreakoutEngine.spawnBalls), every 100 ticks it starts over before balls get lost
+    public static IntSupplier multiBallSteps(int balls) {
+        BreakoutEngine engine = new BreakoutEngine(new Random(SEED));
+        double paddleX = engine.getPaddleX();
+        double ballX = engine.getBallX();
+        double ballY = engine.getBallY();
+        double vx = engine.getVx();
+        double vy = engine.getVy();
+        BrickGrid bricks = engine.copyBricks();
+        int[] tick = {0};
+
+        return () -> {
+            if (tick[0] % 100 == 0) {
+                engine.restore(paddleX, ballX, ballY, vx, vy, 0, BreakoutEngine.NTURNS, bricks);
+                engine.spawnBalls(balls - 1);
+            }
+            tick[0]++;
+            return engine.step(followBall(engine, tick[0])) + engine.getBallCount();
+        };
+    }
+
+    // Just moving balls and bouncing them off the screen edges, with the balls in parallel arrays like BreakoutEngine has them
+    public static IntSupplier ballKernelArrays(int balls) {
+        Random random = new Random(SEED);
+        double[] xs = new double[balls];
+        double[] ys = new double[balls];
+        double[] vxs = new double[balls];
+        double[] vys = new double[balls];
+        for (int i = 0; i < balls; i++) {
+            xs[i] = random.nextDouble() * MAX_BALL_X;
+            ys[i] = random.nextDouble() * MAX_BALL_Y;
+            vxs[i] = random.nextDouble() * 6 - 3;
+            vys[i] = random.nextDouble() * 6 - 3;
+        }
+
+        return () -> {
+            for (int i = 0; i < balls; i++) {
+                double x = xs[i] + vxs[i];
+                double y = ys[i] + vys[i];
+                if (x < 0 || x > MAX_BALL_X) {
+                    vxs[i] = -vxs[i];
+                }
+                if (y < 0 || y > MAX_BALL_Y) {
+                    vys[i] = -vys[i];
+                }
+                xs[i] = x;
+                ys[i] = y;
+            }
+            return (int) xs[0];
+        };
+    }
+
+    // The same, but one object per ball like the old GOval + vx/vy fields. The array is shuffled because in a game
+    // the balls get created at different times, so they don't sit next to each other in memory in the order we visit them
+    public static IntSupplier ballKernelObjects(int balls) {
+        Random random = new Random(SEED);
+        List<Ball> list = new ArrayList<>();
+        for (int i = 0; i < balls; i++) {
+            Ball ball = new Ball();
+            ball.x = random.nextDouble() * MAX_BALL_X;
+            ball.y = random.nextDouble() * MAX_BALL_Y;
+            ball.vx = random.nextDouble() * 6 - 3;
+            ball.vy = random.nextDouble() * 6 - 3;
+            list.add(ball);
+        }
+        Collections.shuffle(list, random);
+        Ball[] array = list.toArray(new Ball[0]);
+
+        return () -> {
+            for (Ball ball : array) {
+                double x = ball.x + ball.vx;
+                double y = ball.y + ball.vy;
+                if (x < 0 || x > MAX_BALL_X) {
+                    ball.vx = -ball.vx;
+                }
+                if (y < 0 || y > MAX_BALL_Y) {
+                    ball.vy = -ball.vy;
+                }
+                ball.x = x;
+                ball.y = y;
+            }
+            return (int) array[0].x;
+        };
+    }
+
+    private static class Ball {
+        double x, y, vx, vy;
+    }
+
+    // One tick of a ball's path at random places over the brick band (and a bit around it) of a wall with half its
+    // bricks gone, the alive bricks under each one (BrickGrid.findAlive(), what BreakoutEngine's swept collision asks)
+    public static IntSupplier brickQueries(int rows, int cols, int queries) {
+        Random random = new Random(SEED);
+        BrickGrid bricks = new BreakoutEngine(random, rows, cols).copyBricks();
+        for (int id = 0; id < bricks.getBrickCount(); id++) {
+            if (random.nextBoolean()) {
+                bricks.destroy(id);
+            }
+        }
+        double top = BreakoutEngine.BRICK_Y_OFFSET - BreakoutEngine.BALL_RADIUS * 2;
+        double height = BreakoutEngine.NBRICK_ROWS * (BreakoutEngine.BRICK_HEIGHT + BreakoutEngine.BRICK_SEP) + BreakoutEngine.BALL_RADIUS * 4;
+        double r = BreakoutEngine.BALL_RADIUS;
+        // Bounds of the area, the ball's center moves a few pixels a tick
+        double[] lefts = new double[queries];
+        double[] rights = new double[queries];
+        double[] tops = new double[queries];
+        double[] bottoms = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            double cx = random.nextDouble() * BreakoutEngine.WIDTH;
+            double cy = top + random.nextDouble() * height;
+            double dx = random.nextDouble() * 8 - 4;
+            double dy = random.nextDouble() * 8 - 4;
+            lefts[i] = Math.min(cx, cx + dx) - r;
+            rights[i] = Math.max(cx, cx + dx) + r;
+            tops[i] = Math.min(cy, cy + dy) - r;
+            bottoms[i] = Math.max(cy, cy + dy) + r;
+        }
+
+        int[] found = new int[bricks.getBrickCount()];
+        return () -> {
+            int sum = 0;
+            for (int i = 0; i < queries; i++) {
+                int count = bricks.findAlive(lefts[i], tops[i], rights[i], bottoms[i], found);
+                for (int j = 0; j < count; j++) {
+                    sum += found[j];
+                }
+            }
+            return sum;
+        };
+    }
+
+    // A whole board's wall painted the way acm's repaint does it, one filled GRect per brick. Half of them are gone
+    public static IntSupplier paintBrickRects(int rows, int cols) {
+        BreakoutEngine engine = new BreakoutEngine(new Random(SEED), rows, cols);
+        boolean[] alive = aliveBricks(engine);
+        List<GRect> bricks = new ArrayList<>();
+        for (int id = 0; id < alive.length; id++) {
+            if (alive[id]) {
+                GRect brick = new GRect(engine.getBrickX(id), engine.getBrickY(id), engine.getBrickWidth(), engine.getBrickHeight());
+                brick.setFilled(true);
+                brick.setFillColor(brickColor(engine, id));
+                brick.setColor(brick.getFillColor());
+                bricks.add(brick);
+            }
+        }
+        BufferedImage screen = boardImage();
+
+        return () -> {
+            Graphics g = screen.createGraphics();
+            for (GRect brick : bricks) {
+                g.setColor(brick.getColor());
+                brick.paint(g);
+            }
+            g.dispose();
+            return screen.getRGB(0, 0);
+        };
+    }
+
+    // The same wall as one BrickLayer image
+    public static IntSupplier paintBrickLayer(int rows, int cols) {
+        BreakoutEngine engine = new BreakoutEngine(new Random(SEED), rows, cols);
+        boolean[] alive = aliveBricks(engine);
+        BrickLayer layer = new BrickLayer(engine, 0);
+        // It takes the gaps' color from its canvas
+        GCanvas canvas = new GCanvas();
+        canvas.setBackground(Color.WHITE);
+        canvas.add(layer);
+        for (int id = 0; id < alive.length; id++) {
+            layer.drawBrick(id, brickColor(engine, id));
+            if (!alive[id]) {
+                layer.eraseBrick(id);
+            }
+        }
+        BufferedImage screen = boardImage();
+
+        return () -> {
+            Graphics g = screen.createGraphics();
+            layer.paint(g);
+            g.dispose();
+            return screen.getRGB(0, 0);
+        };
+    }
+
+    private static boolean[] aliveBricks(BreakoutEngine engine) {
+        Random random = new Random(SEED);
+        boolean[] alive = new boolean[engine.getBrickCount()];
+        for (int id = 0; id < alive.length; id++) {
+            alive[id] = random.nextBoolean();
+        }
+        return alive;
+    }
+
+    private static Color brickColor(BreakoutEngine engine, int id) {
+        return Color.getHSBColor(engine.getBrickRow(id) / 10f, 1, 1);
+    }
+
+    private static BufferedImage boardImage() {
+        return new BufferedImage(BreakoutEngine.WIDTH, BreakoutEngine.HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    // Protocol 0 frames of a real game, one every SEND_INTERVAL_TICKS, written through one codec like NetworkWriter does
+    public static IntSupplier stateEncode(int frames) {
+        int[][] states = recordStates(frames);
+        StateFrameCodec codec = new StateFrameCodec(Protocol.BOARD_YOURS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        return () -> {
+            bytes.reset();
+            try {
+                for (int[] state : states) {
+                    codec.write(out, state);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.size();
+        };
+    }
+
+    // The same frames read back, decoded out of a ByteBuffer through a MessageRegistry like BreakoutClient does
+    public static IntSupplier stateDecode(int frames) {
+        int[][] states = recordStates(frames);
+        StateFrameCodec writer = new StateFrameCodec(Protocol.BOARD_YOURS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int[] state : states) {
+                writer.write(out, state);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer encoded = ByteBuffer.wrap(bytes.toByteArray());
+        int[] ticks = new int[1];
+        MessageRegistry registry = new MessageRegistry().on(Protocol.STATE, new Protocol.State(), state -> {
+            ticks[0] += state.getFrame().getTick();
+            return true;
+        });
+
+        return () -> {
+            encoded.clear();
+            ticks[0] = 0;
+            try {
+                registry.dispatch(encoded);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return ticks[0];
+        };
+    }
+
+    private static int[][] recordStates(int frames) {
+        BreakoutEngine engine = new BreakoutEngine(new Random(SEED));
+        int[][] states = new int[frames][StateFrameCodec.FIELD_COUNT];
+        int tick = 0;
+        for (int[] state : states) {
+            for (int i = 0; i < Protocol.SEND_INTERVAL_TICKS; i++) {
+                tick++;
+                engine.step(followBall(engine, tick));
+            }
+            StateFrameCodec.capture(state, tick, engine, tick);
+        }
+        return states;
+    }
+
+    // Under the ball, a bit off center and moving around so the ball keeps changing direction
+    private static double followBall(BreakoutEngine engine, int tick) {
+        int offset = (tick / 97 % 5 - 2) * 8;
+        return engine.getBallX() + BreakoutEngine.BALL_RADIUS - BreakoutEngine.PADDLE_WIDTH / 2.0 + offset;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Filename: DatagramLossCheck.java
+ * Description: Fails the build if the UDP snapshots go wrong when datagrams are lost, reordered or duplicated.
+ *
+ * Note:
+ * Runs in the test phase of this module after IdleCpuCheck, or by hand with
+ *   java -cp benchmarks/target/benchmarks.jar DatagramLossCheck
+ * A DatagramStateSender and a DatagramStateReceiver talk through a relay on loopback that messes with everything
+ * going to the receiver: it drops some datagrams, holds some back until the next one went through, sends some
+ * twice and now and then slips in one that isn't from the sender at all. Always the same ones (a fixed seed), so a
+ * failure comes back the same way. The hellos go through the relay too.
+ *
+ * The sender gets a snapshot of a BreakoutMatch every tick, like BreakoutServer at sendHz. Every frame the receiver
+ * hands to its STATE handler has to be exactly what was sent for that tick and board, and the ticks per board may
+ * never go backwards. Lost ones are fine, but close to everything that wasn't dropped or held back has to arrive.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DatagramLossCheck {
+
+    private static final int SNAPSHOTS = 600;
+    private static final double DROP = 0.2;
+    private static final double HOLD_BACK = 0.2;
+    private static final double DUPLICATE = 0.05;
+    private static final int FOREIGN_EVERY = 100;
+    private static final long SEED = 42;
+    // Loopback drops nothing by itself, but the pacing and the receiver thread aren't exact
+    private static final double MIN_APPLIED_SHARE = 1 - DROP - HOLD_BACK - 0.1;
+
+    // What the receiver's handler saw, only read after its thread is done
+    private static int applied = 0;
+    private static int wrong = 0;
+    private static int backwards = 0;
+    private static final int[] lastTicks = new int[2];
+
+    // expected[board][tick] is what was sent
+    private static final int[][][] expected = new int[2][SNAPSHOTS + 1][StateFrameCodec.FIELD_COUNT];
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DatagramStateSender sender = new DatagramStateSender();
+        Relay relay = new Relay(new DatagramSocket(0, loopback), new InetSocketAddress(loopback, sender.getPort()));
+        Thread relayThread = GameThreads.start("udp-relay", relay);
+
+        MessageRegistry registry = new MessageRegistry().on(Protocol.STATE, new Protocol.State(), DatagramLossCheck::check);
+        CountDownLatch ready = new CountDownLatch(1);
+        DatagramStateReceiver receiver = new DatagramStateReceiver(loopback, relay.socket.getLocalPort(), sender.getToken(), registry, ready::countDown);
+        Thread receiverThread = GameThreads.start("udp-receiver", receiver);
+        if (!ready.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The receiver never got an answer to its hellos, " + receiver.getStats());
+        }
+
+        BreakoutMatch match = new BreakoutMatch(SEED);
+        int sent = 0;
+        for (int i = 0; i < SNAPSHOTS && !match.isOver(); i++) {
+            // Both paddles sweep back and forth so every field changes now and then
+            double paddleX = 150 + 120 * Math.sin(i / 20.0);
+            match.setPaddleInput(0, paddleX);
+            match.setPaddleInput(1, 300 - paddleX);
+            match.step();
+            int tick = (int) match.getTick();
+            StateFrameCodec.capture(expected[Protocol.BOARD_YOURS][tick], tick, match.getEngine(1), match.getInputAck(1));
+            StateFrameCodec.capture(expected[Protocol.BOARD_OPPONENT][tick], tick, match.getEngine(0), 0);
+            sender.sendState(Protocol.BOARD_YOURS, tick, match.getEngine(1), match.getInputAck(1));
+            sender.sendState(Protocol.BOARD_OPPONENT, tick, match.getEngine(0), 0);
+            sender.flush();
+            sent++;
+            // Roughly how fast the server sends, and the receive buffers never fill up
+            Thread.sleep(1);
+        }
+        // Whatever is still on its way
+        Thread.sleep(200);
+        receiver.close();
+        receiverThread.join();
+        relay.close();
+        relayThread.join();
+        sender.close();
+
+        int datagrams = applied / 2;
+        System.out.println(String.format("%-40s %d of %d snapshots applied, relay: %s, receiver: %s, sender: %s",
+                "UDP snapshots with loss", datagrams, sent, relay.getStats(), receiver.getStats(), sender.getStats()));
+        if (wrong > 0) {
+            throw new IllegalStateException(wrong + " frames didn't match what was sent for their tick");
+        }
+        if (backwards > 0) {
+            throw new IllegalStateException(backwards + " frames were older than one already applied");
+        }
+        if (datagrams < sent * MIN_APPLIED_SHARE) {
+            throw new IllegalStateException(String.format("Only %d of %d snapshots were applied, at least %.0f%% expected",
+                    datagrams, sent, MIN_APPLIED_SHARE * 100));
+        }
+        if (relay.heldBack == 0 || relay.duplicated == 0) {
+            throw new IllegalStateException("The relay never reordered or duplicated anything, nothing was checked");
+        }
+    }
+
+    // The receiver's STATE handler
+    private static boolean check(Protocol.State state) {
+        StateFrameCodec frame = state.getFrame();
+        int board = state.getBoard();
+        int tick = frame.getTick();
+        applied++;
+        if (tick <= lastTicks[board]) {
+            backwards++;
+        }
+        lastTicks[board] = tick;
+        if (tick <= 0 || tick > SNAPSHOTS) {
+            wrong++;
+            return true;
+        }
+        int[] sent = expected[board][tick];
+        if (frame.getPaddleX() != Protocol.dequantize(sent[StateFrameCodec.PADDLE_X])
+                || frame.getBallX() != Protocol.dequantize(sent[StateFrameCodec.BALL_X])
+                || frame.getBallY() != Protocol.dequantize(sent[StateFrameCodec.BALL_Y])
+                || frame.getVx() != Protocol.dequantizeVelocity(sent[StateFrameCodec.BALL_VX])
+                || frame.getVy() != Protocol.dequantizeVelocity(sent[StateFrameCodec.BALL_VY])
+                || frame.getResetDelay() != sent[StateFrameCodec.RESET_DELAY]
+                || frame.getInputAck() != sent[StateFrameCodec.INPUT_ACK]) {
+            wrong++;
+        }
+        return true;
+    }
+
+    // Passes the hellos on as they are, does its worst with everything going the other way
+    private static class Relay implements Runnable {
+
+        private final DatagramSocket socket;
+        private final SocketAddress server;
+        private final Random random = new Random(SEED);
+        private final DatagramPacket packet = new DatagramPacket(new byte[Protocol.MAX_DATAGRAM_SIZE], Protocol.MAX_DATAGRAM_SIZE);
+        private DatagramPacket held;
+        private SocketAddress client;
+        private volatile boolean closed = false;
+
+        // Stats
+        private int forwarded = 0;
+        private int dropped = 0;
+        private int heldBack = 0;
+        private int duplicated = 0;
+        private int foreign = 0;
+
+        Relay(DatagramSocket socket, SocketAddress server) {
+            this.socket = socket;
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    packet.setLength(Protocol.MAX_DATAGRAM_SIZE);
+                    socket.receive(packet);
+                    if (!packet.getSocketAddress().equals(server)) {
+                        client = packet.getSocketAddress();
+                        socket.send(new DatagramPacket(packet.getData(), packet.getLength(), server));
+                    } else if (client != null) {
+                        toClient();
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Relay stopped: " + e.getMessage());
+                }
+            }
+        }
+
+        private void toClient() throws IOException {
+            DatagramPacket copy = new DatagramPacket(packet.getData().clone(), packet.getLength(), client);
+            double roll = random.nextDouble();
+            if (roll < DROP) {
+                dropped++;
+                return;
+            }
+            if (roll < DROP + HOLD_BACK && held == null) {
+                // Goes right after the next one
+                held = copy;
+                heldBack++;
+                return;
+            }
+            socket.send(copy);
+            forwarded++;
+            if (roll < DROP + HOLD_BACK + DUPLICATE) {
+                socket.send(copy);
+                duplicated++;
+            }
+            if (held != null) {
+                socket.send(held);
+                held = null;
+            }
+            if (forwarded % FOREIGN_EVERY == 0) {
+                // Someone else's token, and one too short to have any
+                byte[] other = copy.getData().clone();
+                other[0] ^= 0x55;
+                socket.send(new DatagramPacket(other, copy.getLength(), client));
+                socket.send(new DatagramPacket(other, 3, client));
+                foreign += 2;
+            }
+        }
+
+        void close() {
+            closed = true;
+            socket.close();
+        }
+
+        String getStats() {
+            return String.format("%d forwarded, %d dropped, %d held back, %d duplicated, %d foreign",
+                    forwarded, dropped, heldBack, duplicated, foreign);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Filename: IdleCpuCheck.java
+ * Description: Fails the build if the client's receiver uses CPU while the server has nothing to send.
+ *
+ * Note:
+ * Runs in the test phase of this module after AllocationCheck, or by hand with
+ *   java -cp benchmarks/target/benchmarks.jar IdleCpuCheck
+ * A server on loopback does what BreakoutServer does before and around a game, with long quiet gaps: the
+ * handshake, waiting for the other player, the countdown a second apart (shortened here), the game start, then
+ * nothing until the game end. This thread receives it with a MessageReceiver like BreakoutClient's receiver
+ * thread does, and its CPU time (ThreadMXBean) over the whole thing has to stay under MAX_CPU_SHARE of the wall
+ * time. Polling the socket instead of blocking on it keeps a core busy the whole time, close to 100%.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class IdleCpuCheck {
+
+    private static final long WAITING_MILLIS = 1000;
+    private static final long COUNTDOWN_STEP_MILLIS = 250;
+    private static final long QUIET_GAME_MILLIS = 1000;
+    // Waking up for a few messages is nothing, a spinning thread is most of the wall time
+    private static final double MAX_CPU_SHARE = 0.05;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            System.out.println("IdleCpuCheck: this JVM can't measure thread CPU time, skipped");
+            return;
+        }
+        threads.setThreadCpuTimeEnabled(true);
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread server = GameThreads.start("idle-server", () -> serve(serverSocket));
+            try (Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort())) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                boolean[] started = new boolean[1];
+                MessageReceiver receiver = new MessageReceiver(in, new MessageRegistry()
+                        .on(Protocol.COUNTDOWN, new Protocol.Countdown(), countdown -> true)
+                        .on(Protocol.GAME_START, new Protocol.GameStart(), start -> {
+                            started[0] = true;
+                            return true;
+                        })
+                        .on(Protocol.GAME_END, new Protocol.GameEnd(), end -> false));
+
+                long wallStart = System.nanoTime();
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                Protocol.readHandshake(in);
+                receiver.receive();
+                if (!started[0]) {
+                    throw new IllegalStateException("The game ended without a game start");
+                }
+                long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+                long wall = System.nanoTime() - wallStart;
+
+                double share = (double) cpu / wall;
+                System.out.println(String.format("%-40s %7.1fms CPU in %.0fms (%.2f%%), %s", "Idle client receiver",
+                        cpu / 1e6, wall / 1e6, share * 100, receiver.getStats()));
+                if (share > MAX_CPU_SHARE) {
+                    throw new IllegalStateException(String.format(
+                            "The receiver used %.1f%% of a core with nothing to receive, at most %.0f%% allowed",
+                            share * 100, MAX_CPU_SHARE * 100));
+                }
+            }
+            server.join();
+        }
+    }
+
+    // What BreakoutServer sends, sleeping where it waits
+    private static void serve(ServerSocket serverSocket) {
+        try (Socket socket = serverSocket.accept()) {
+            NetworkWriter writer = new NetworkWriter(socket.getOutputStream(), () -> { });
+            writer.sendHandshake();
+            writer.flush();
+            Thread.sleep(WAITING_MILLIS);
+            for (int i = 3; i >= 0; i--) {
+                writer.sendCountdown(i);
+                writer.flush();
+                Thread.sleep(COUNTDOWN_STEP_MILLIS);
+            }
+            writer.sendGameStarted(SEED, 1, Protocol.MODE_SERVER);
+            writer.flush();
+            Thread.sleep(QUIET_GAME_MILLIS);
+            writer.sendGameEnd(true);
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Idle server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Filename: PredictionServeCheck.java
+ * Description: Fails the build if the client's predicted serves stop matching the server's after a miss.
+ *
+ * Note:
+ * Runs in the test phase of this module after DatagramLossCheck, or by hand with
+ *   java -cp benchmarks/target/benchmarks.jar PredictionServeCheck
+ * A BreakoutMatch plays the server, a PredictedBoard the client's own board, with LATENCY_TICKS each way between
+ * them: the inputs go to the match and what writeUpdate() sends comes back through a MessageRegistry, like in
+ * BreakoutClient. The paddle follows the ball for a while and then leaves it, so the ball is missed and every
+ * miss gets replayed by a few reconciles before the server's snapshot of it arrives.
+ *
+ * Every serve the client predicts (the tick its ball starts waiting in the center) has to have the same vx as
+ * the serve of the match started from the same seed. A replayed miss that draws from the board's MatchRandom
+ * again puts every later serve off.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PredictionServeCheck {
+
+    private static final int LATENCY_TICKS = 10;
+    // Follows the ball for this many ticks, then leaves it for as many
+    private static final int MISS_PERIOD_TICKS = 400;
+    private static final long[] SEEDS = {42, 43, 44, 45, 46};
+    // A serve that came from a snapshot went through the protocol's velocity grid
+    private static final double TOLERANCE = 1 / Protocol.VELOCITY_SCALE;
+
+    public static void main(String[] args) throws IOException {
+        int serves = 0;
+        List<String> failures = new ArrayList<>();
+        for (long seed : SEEDS) {
+            List<Double> predicted = new ArrayList<>();
+            List<Double> server = new ArrayList<>();
+            play(seed, predicted, server);
+            if (predicted.size() != server.size()) {
+                failures.add("seed " + seed + ": " + predicted.size() + " serves predicted, the server had " + server.size());
+                continue;
+            }
+            for (int i = 0; i < server.size(); i++) {
+                if (Math.abs(predicted.get(i) - server.get(i)) > TOLERANCE) {
+                    failures.add(String.format("seed %d serve %d: vx %.4f predicted, %.4f on the server", seed, i + 1, predicted.get(i), server.get(i)));
+                }
+            }
+            serves += server.size();
+        }
+        System.out.println(String.format("%-40s %d serves after misses in %d matches, %d wrong",
+                "PredictedBoard serves", serves, SEEDS.length, failures.size()));
+        if (serves < SEEDS.length * 2) {
+            throw new IllegalStateException("Hardly any misses, nothing was checked");
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Predicted serves are off: " + failures);
+        }
+    }
+
+    // One match until it's over, the vx of every serve on each side
+    private static void play(long seed, List<Double> predicted, List<Double> server) throws IOException {
+        BreakoutMatch match = new BreakoutMatch(seed);
+        MatchRandom random = new MatchRandom(MatchRandom.boardSeed(seed, 1));
+        BreakoutEngine engine = new BreakoutEngine(random);
+        PredictedBoard prediction = new PredictedBoard(engine, random);
+        MessageRegistry registry = new MessageRegistry()
+                .on(Protocol.STATE, new Protocol.State(), state -> {
+                    if (state.getBoard() == Protocol.BOARD_YOURS) {
+                        prediction.reconcile(state.getFrame());
+                    }
+                    return true;
+                }).on(Protocol.BOARD_EVENTS, new Protocol.BoardEvents(), events -> {
+                    if (events.getBoard() == Protocol.BOARD_YOURS && events.getBrickId() >= 0) {
+                        prediction.confirmBrick(events.getBrickId());
+                    }
+                    if (events.getBoard() == Protocol.BOARD_YOURS && events.getTurnsLeft() >= 0) {
+                        prediction.confirmTurns(events.getTurnsLeft());
+                    }
+                    return true;
+                });
+
+        // What's on its way, the tick it arrives first
+        ArrayDeque<long[]> inputs = new ArrayDeque<>();
+        ArrayDeque<byte[]> updates = new ArrayDeque<>();
+        ArrayDeque<Integer> updateArrivals = new ArrayDeque<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BreakoutEngine serverBoard = match.getEngine(1);
+        int clientDelay = 0;
+        int serverDelay = 0;
+
+        for (int tick = 1; !match.isOver(); tick++) {
+            while (!updateArrivals.isEmpty() && updateArrivals.peek() <= tick) {
+                updateArrivals.poll();
+                registry.dispatch(ByteBuffer.wrap(updates.poll()));
+            }
+
+            // The client
+            boolean leave = (tick / MISS_PERIOD_TICKS) % 2 == 1;
+            double paddleX = leave
+                    ? (engine.getBallX() < BreakoutEngine.WIDTH / 2.0 ? BreakoutEngine.WIDTH - BreakoutEngine.PADDLE_WIDTH : 0)
+                    : followBall(engine);
+            int seq = prediction.step(paddleX);
+            inputs.add(new long[] {tick + LATENCY_TICKS, seq, Double.doubleToLongBits(paddleX)});
+            if (clientDelay == 0 && engine.getResetDelay() > 0) {
+                predicted.add(engine.getVx());
+            }
+            clientDelay = engine.getResetDelay();
+
+            // The server, a tick only once the client's input for it is here so it plays exactly what was predicted
+            if (inputs.peek()[0] > tick) {
+                continue;
+            }
+            long[] input = inputs.poll();
+            match.addInput(1, (int) input[1], Double.longBitsToDouble(input[2]));
+            // The host never misses, or its board would end the match first
+            match.setPaddleInput(0, followBall(match.getEngine(0)));
+            match.step();
+            if (serverDelay == 0 && serverBoard.getResetDelay() > 0) {
+                server.add(serverBoard.getVx());
+            }
+            serverDelay = serverBoard.getResetDelay();
+            bytes.reset();
+            match.writeUpdate(out, 1);
+            updates.add(bytes.toByteArray());
+            updateArrivals.add(tick + LATENCY_TICKS);
+        }
+    }
+
+    private static double followBall(BreakoutEngine engine) {
+        return engine.getBallX() + BreakoutEngine.BALL_RADIUS - BreakoutEngine.PADDLE_WIDTH / 2.0;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Filename: BrickGridBenchmark.java
+ * Description: Time per brick query of BreakoutEngine's swept collision, the alive bricks under one ball's path, default and big walls.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrickGridBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    // Rows and columns of the wall, 10 is the normal game
+    @Param({"10", "100"})
+    public int wallSize;
+
+    private IntSupplier queries;
+
+    @Setup
+    public void setUp() {
+        queries = Workloads.create("brickQueries", wallSize, wallSize, QUERIES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int bricksUnderPath() {
+        return queries.getAsInt();
+    }
+}
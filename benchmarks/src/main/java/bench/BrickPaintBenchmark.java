@@ -0,0 +1,57 @@
+/*
+ * Filename: BrickPaintBenchmark.java
+ * Description: Time to paint one board's wall, one GRect per brick against one BrickLayer image.
+ *
+ * Note:
+ * Both paint into an off-screen image, the part of a repaint that depends on how many bricks there are.
+ * Needs AWT, the fork runs headless so it works without a screen.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class BrickPaintBenchmark {
+
+    // Rows and columns of the wall, 10 is the normal game
+    @Param({"10", "100"})
+    public int wallSize;
+
+    private IntSupplier rects;
+    private IntSupplier layer;
+
+    @Setup
+    public void setUp() {
+        rects = Workloads.create("paintBrickRects", wallSize, wallSize);
+        layer = Workloads.create("paintBrickLayer", wallSize, wallSize);
+    }
+
+    @Benchmark
+    public int rects() {
+        return rects.getAsInt();
+    }
+
+    @Benchmark
+    public int layer() {
+        return layer.getAsInt();
+    }
+}
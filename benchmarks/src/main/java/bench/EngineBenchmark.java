@@ -0,0 +1,50 @@
+/*
+ * Filename: EngineBenchmark.java
+ * Description: Time per BreakoutEngine tick (move the ball, then the paddle/brick collisions), default and big walls.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final int TICKS = 1000;
+
+    // Rows and columns of the wall, 10 is the normal game
+    @Param({"10", "100"})
+    public int wallSize;
+
+    private IntSupplier steps;
+
+    @Setup
+    public void setUp() {
+        steps = Workloads.create("engineSteps", wallSize, wallSize, TICKS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public int step() {
+        return steps.getAsInt();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Filename: MultiBallBenchmark.java
+ * Description: Time per tick with thousands of balls, the engine's arrays against one object per ball.
+ *
+ * Note:
+ * engineStep is a whole BreakoutEngine tick with that many balls (sweeps against walls, paddle, bricks).
+ * The two kernels are only the move and bounce part, the same code once over parallel arrays and once
+ * over Ball objects, which is where the memory layout makes the difference.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiBallBenchmark {
+
+    @Param({"1000", "10000"})
+    public int balls;
+
+    private IntSupplier engineStep;
+    private IntSupplier arrayKernel;
+    private IntSupplier objectKernel;
+
+    @Setup
+    public void setUp() {
+        engineStep = Workloads.create("multiBallSteps", balls);
+        arrayKernel = Workloads.create("ballKernelArrays", balls);
+        objectKernel = Workloads.create("ballKernelObjects", balls);
+    }
+
+    @Benchmark
+    public int engineStep() {
+        return engineStep.getAsInt();
+    }
+
+    @Benchmark
+    public int arrayKernel() {
+        return arrayKernel.getAsInt();
+    }
+
+    @Benchmark
+    public int objectKernel() {
+        return objectKernel.getAsInt();
+    }
+}
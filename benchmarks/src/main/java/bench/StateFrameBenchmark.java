@@ -0,0 +1,54 @@
+/*
+ * Filename: StateFrameBenchmark.java
+ * Description: Time per protocol 0 (STATE) frame through StateFrameCodec, written and read back.
+ */
+
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateFrameBenchmark {
+
+    // Frames of one recorded game, mostly small deltas like on the wire
+    private static final int FRAMES = 64;
+
+    private IntSupplier encode;
+    private IntSupplier decode;
+
+    @Setup
+    public void setUp() {
+        encode = Workloads.create("stateEncode", FRAMES);
+        decode = Workloads.create("stateDecode", FRAMES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int encode() {
+        return encode.getAsInt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode() {
+        return decode.getAsInt();
+    }
+}
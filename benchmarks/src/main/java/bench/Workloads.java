@@ -0,0 +1,34 @@
+/*
+ * Filename: Workloads.java
+ * Description: Looks up the IntSuppliers of the default package BenchmarkWorkloads class for the benchmarks.
+ */
+
+package bench;
+
+import java.lang.reflect.Method;
+import java.util.function.IntSupplier;
+
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    // Calls BenchmarkWorkloads.<name>(args...), only once per trial so the reflection never gets measured
+    static IntSupplier create(String name, int... args) {
+        try {
+            Class<?> workloads = Class.forName("BenchmarkWorkloads");
+            for (Method method : workloads.getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                    Object[] boxed = new Object[args.length];
+                    for (int i = 0; i < args.length; i++) {
+                        boxed[i] = args[i];
+                    }
+                    return (IntSupplier) method.invoke(null, boxed);
+                }
+            }
+            throw new IllegalArgumentException("No workload " + name + " with " + args.length + " arguments");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create workload " + name, e);
+        }
+    }
+}
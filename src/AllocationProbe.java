@@ -0,0 +1,95 @@
+/*
+ * Filename: AllocationProbe.java
+ * Description: How many bytes the current thread allocated, and how often and how long the GC ran, from the JVM's management beans.
+ *
+ * Note:
+ * The game loop shouldn't allocate anything per tick, every object it makes is garbage the GC has to stop the
+ * game for sooner or later. GameLoop uses this to report bytes per tick and the GC runs of a game, and the
+ * benchmarks module's AllocationCheck fails the build when a tick path allocates.
+ *
+ * Allocation counting needs HotSpot's com.sun.management.ThreadMXBean. On a JVM without it isSupported()
+ * is false and allocatedSince() is always 0. Java 8's version allocates a little array itself on every
+ * call, that is measured once and left out (see allocatedSince()).
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+public final class AllocationProbe {
+
+    private static final com.sun.management.ThreadMXBean THREADS = findThreadBean();
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+    // What one threadAllocatedBytes() call allocates by itself
+    private static final long OVERHEAD = measureOverhead();
+
+    private AllocationProbe() {
+    }
+
+    private static com.sun.management.ThreadMXBean findThreadBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    threads.setThreadAllocatedMemoryEnabled(true);
+                    return threads;
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            // falls through, no counting
+        }
+        return null;
+    }
+
+    private static long measureOverhead() {
+        if (THREADS == null) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long first = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long second = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            min = Math.min(min, second - first);
+        }
+        return min;
+    }
+
+    public static boolean isSupported() {
+        return THREADS != null;
+    }
+
+    // Everything the calling thread allocated so far, only good for passing to allocatedSince()
+    public static long threadAllocatedBytes() {
+        if (THREADS == null) {
+            return 0;
+        }
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // What the calling thread allocated after threadAllocatedBytes() returned start, without the counting itself
+    public static long allocatedSince(long start) {
+        if (THREADS == null) {
+            return 0;
+        }
+        return Math.max(0, threadAllocatedBytes() - start - OVERHEAD);
+    }
+
+    // Collections of all collectors since the JVM started
+    public static long gcCount() {
+        long count = 0;
+        for (int i = 0; i < COLLECTORS.size(); i++) {
+            count += Math.max(0, COLLECTORS.get(i).getCollectionCount());
+        }
+        return count;
+    }
+
+    public static long gcMillis() {
+        long millis = 0;
+        for (int i = 0; i < COLLECTORS.size(); i++) {
+            millis += Math.max(0, COLLECTORS.get(i).getCollectionTime());
+        }
+        return millis;
+    }
+}
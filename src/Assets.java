@@ -0,0 +1,146 @@
+/*
+ * Filename: Assets.java
+ * Description: Images, sounds and the sound mixer of the whole process, each loaded the first time it's asked for and then shared.
+ *
+ * Note:
+ * Every GraphicsProgram used to load its six .au files when it was created, and built a GImage from the
+ * file every time it drew a heart or the theme switcher (each theme toggle too). Now a file is read and decoded
+ * once, the first time anything asks for it, and every program (and every later game) gets the same Image or
+ * samples back. GImages are still new per use, they only point at the shared Image.
+ *
+ * Any thread can ask, the first one to ask for a name decodes it and anyone asking for the same name in the
+ * meantime waits for that instead of decoding it again. acm's MediaTools has a cache of its own, but it's a
+ * plain HashMap and only safe on one thread, so images are read with ImageIO here.
+ *
+ * Files are found next to the classes, or else in the working directory (how the games are run from src/).
+ */
+
+import java.awt.Image;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public final class Assets {
+
+    private static final ConcurrentHashMap<String, Image> IMAGES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, short[]> SOUNDS = new ConcurrentHashMap<>();
+    private static volatile SoundMixer mixer;
+
+    // Stats
+    private static final AtomicLong loads = new AtomicLong();
+    private static final AtomicLong loadNanos = new AtomicLong();
+
+    private Assets() {
+    }
+
+    // Where the file is, or null
+    public static URL find(String name) {
+        URL resource = Assets.class.getResource(name);
+        if (resource != null) {
+            return resource;
+        }
+        File file = new File(name);
+        try {
+            return file.isFile() ? file.toURI().toURL() : null;
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+
+    // ----------- IMAGES -----------------
+
+    // Decoded and ready to draw. A missing or broken file is an error, the game can't do without its images
+    public static Image image(String name) {
+        return IMAGES.computeIfAbsent(name, Assets::readImage);
+    }
+
+    // Reads them now (on the calling thread) so image() doesn't have to later
+    public static void preloadImages(String... names) {
+        for (String name : names) {
+            image(name);
+        }
+    }
+
+    private static Image readImage(String name) {
+        long start = System.nanoTime();
+        URL url = find(name);
+        if (url == null) {
+            throw new IllegalArgumentException("Cannot find image " + name);
+        }
+        try {
+            Image image = ImageIO.read(url);
+            if (image == null) {
+                throw new IllegalArgumentException("Not an image I can read: " + name);
+            }
+            return image;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read image " + name, e);
+        } finally {
+            loaded(start);
+        }
+    }
+
+
+    // ----------- SOUNDS -----------------
+
+    // Interleaved stereo samples for SoundMixer. A missing or broken file is a warning and silence
+    public static short[] sound(String name) {
+        return SOUNDS.computeIfAbsent(name, Assets::readSound);
+    }
+
+    private static short[] readSound(String name) {
+        long start = System.nanoTime();
+        try {
+            URL url = find(name);
+            if (url == null) {
+                throw new IOException("not found");
+            }
+            return SoundMixer.decode(url);
+        } catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+            System.out.println("Could not load sound " + name + ": " + e.getMessage());
+            return new short[0];
+        } finally {
+            loaded(start);
+        }
+    }
+
+    // The one mixer every program plays through, started the first time a program wants sound
+    public static SoundMixer sounds() {
+        SoundMixer sounds = mixer;
+        if (sounds == null) {
+            synchronized (Assets.class) {
+                sounds = mixer;
+                if (sounds == null) {
+                    sounds = new SoundMixer();
+                    mixer = sounds;
+                }
+            }
+        }
+        return sounds;
+    }
+
+
+    // ----------- STATS -----------------
+
+    private static void loaded(long start) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    // Files actually read so far, however many times they were asked for
+    public static long getLoads() {
+        return loads.get();
+    }
+
+    public static String getStats() {
+        return String.format("%d files loaded in %.1fms (%d images, %d sounds)",
+                loads.get(), loadNanos.get() / 1e6, IMAGES.size(), SOUNDS.size());
+    }
+}
@@ -1,5 +1,4 @@
 import acm.graphics.GLabel;
-import acm.graphics.GObject;
 import acm.graphics.GOval;
 import acm.graphics.GRect;
 import acm.program.GraphicsProgram;
@@ -10,31 +9,22 @@ import java.awt.event.MouseEvent;
 
 public class Breakout extends GraphicsProgram {
 
-    public static final int DELAY = 7;
     public static final int APPLICATION_WIDTH = 400;
     public static final int APPLICATION_HEIGHT = 600;
     private static final int WIDTH = APPLICATION_WIDTH;
     private static final int HEIGHT = APPLICATION_HEIGHT;
-    private static final int PADDLE_WIDTH = 60;
-    private static final int PADDLE_HEIGHT = 10;
-    private static final int PADDLE_Y_OFFSET = 30;
-    private static final int NBRICKS_PER_ROW = 10;
-    private static final int NBRICK_ROWS = 10;
-    private static final int BRICK_SEP = 4;
-    private static final int BRICK_WIDTH =
-            (WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / NBRICKS_PER_ROW;
-    private static final int BRICK_HEIGHT = 8;
-    private static final int BALL_RADIUS = 10;
-    private static final int BRICK_Y_OFFSET = 70;
-    private static final int NTURNS = 3;
-    private static final int PADDLE_SENSITIVITY = 8;
-
+    private static final int PADDLE_WIDTH = BreakoutEngine.PADDLE_WIDTH;
+    private static final int PADDLE_HEIGHT = BreakoutEngine.PADDLE_HEIGHT;
+    private static final int BALL_RADIUS = BreakoutEngine.BALL_RADIUS;
+    // Built once, like the other games' labels (see GameLoop's alloc/tick)
+    private static final Font MESSAGE_FONT = new Font("Serif", Font.PLAIN, 30);
+
+    private BreakoutEngine engine;
+    private GameLoop loop;
     private GRect paddle;
     private GOval ball;
-    private double vx, vy = 3.0;
+    private BrickLayer bricks;
     private RandomGenerator rgen = RandomGenerator.getInstance();
-    private double turnsCount = NTURNS;
-    private double aliveBricks = NBRICK_ROWS * NBRICKS_PER_ROW;
 
     public void run() {
         initGame();
@@ -43,44 +33,54 @@ public class Breakout extends GraphicsProgram {
 
     // Setting all variables ready for the game
     private void initGame() {
+        loop = new GameLoop(GameLoop.configuredTickHz(GameLoop.DEFAULT_TICK_HZ), GameLoop.configuredRenderHz(), 0);
+        engine = new BreakoutEngine(rgen, BreakoutEngine.NBRICK_ROWS, BreakoutEngine.NBRICKS_PER_ROW, loop.getTickMillis());
         addMouseListeners();
         drawBricks();
-        setRandomVx();
         createPaddle();
         createBall();
     }
 
-    // Each *frame* happens here
+    // The engine ticks at a fixed rate and we draw what it says at the screen's rate (see GameLoop)
     private void gameLoop() {
-        while (turnsCount > 0 && aliveBricks > 0) {
-            moveBall();
-            checkCollisions();
-            pause(DELAY);
-        }
-        if (turnsCount == 0) {
-            handleGameLoss();
-        } else {
+        loop.run(new GameLoop.Game() {
+            public boolean isRunning() {
+                return !engine.isGameOver();
+            }
+
+            public void tick() {
+                int events = engine.step(paddle.getX());
+                if ((events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+                    bricks.eraseBrick(engine.getLastDestroyedBrick());
+                }
+            }
+
+            public void render(double alpha) {
+                renderBall(alpha);
+            }
+
+            public void send() {
+            }
+        });
+        System.out.println("Game loop: " + loop.getStats());
+        if (engine.isWon()) {
             handleGameWin();
+        } else {
+            handleGameLoss();
         }
         remove(ball);
     }
 
-    // DVD screensaver like animation, but if it touches the bottom of the screen we record it as a *missed ball*
-    private void moveBall() {
-        ball.move(vx, vy);
-        if (ball.getX() <= 0 || ball.getX() + BALL_RADIUS * 2 >= WIDTH) {
-            // ball was sticking to edges and had to use the absolute value of vx
-            if (ball.getX() <= 0) {
-                vx = Math.abs(vx);
-            } else {
-                vx = -Math.abs(vx);
-            }
-        }
-        if (ball.getY() <= 0) {
-            vy = -vy;
-        } else if (ball.getY() + BALL_RADIUS * 2 >= HEIGHT) {
-            handleBallMiss();
+
+    // Between the previous and the current tick, except right after a miss where the ball jumps back to the center
+    private void renderBall(double alpha) {
+        double x = engine.getBallX();
+        double y = engine.getBallY();
+        if (engine.getResetDelay() == 0) {
+            x = engine.getPreviousBallX(0) + (x - engine.getPreviousBallX(0)) * alpha;
+            y = engine.getPreviousBallY(0) + (y - engine.getPreviousBallY(0)) * alpha;
         }
+        ball.setLocation(x, y);
     }
 
 
@@ -88,39 +88,23 @@ public class Breakout extends GraphicsProgram {
         GAME INIT
      */
     private void createBall() {
-        ball = new GOval(WIDTH / 2 - BALL_RADIUS, HEIGHT / 2 - BALL_RADIUS, BALL_RADIUS * 2, BALL_RADIUS * 2);
+        ball = new GOval(engine.getBallX(), engine.getBallY(), BALL_RADIUS * 2, BALL_RADIUS * 2);
         ball.setFilled(true);
         add(ball);
     }
 
+    // The whole wall is one image, see BrickLayer
     private void drawBricks() {
-        double startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
+        bricks = new BrickLayer(engine, 0);
+        for (int id = 0; id < engine.getBrickCount(); id++) {
+            bricks.drawBrick(id, getBrickColor(engine.getBrickRow(id)));
         }
-    }
-
-    // just draws one row of bricks, self-explanatory, no more comments needed
-    private void drawBrickRow(Color color, double y) {
-        double x = (WIDTH - NBRICKS_PER_ROW * BRICK_WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / 2;
-        for (int j = 0; j < NBRICKS_PER_ROW; j++) {
-            drawBrick(color, x, y);
-            x += BRICK_WIDTH + BRICK_SEP;
-        }
-    }
-
-    private void drawBrick(Color color, double x, double y) {
-        GRect brick = new GRect(x, y, BRICK_WIDTH, BRICK_HEIGHT);
-        brick.setFilled(true);
-        brick.setFillColor(color);
-        brick.setColor(color);
-        add(brick);
+        add(bricks);
     }
 
 
     private void createPaddle() {
-        paddle = new GRect((WIDTH - PADDLE_WIDTH) / 2, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT, PADDLE_WIDTH, PADDLE_HEIGHT);
+        paddle = new GRect(engine.getPaddleX(), BreakoutEngine.PADDLE_Y, PADDLE_WIDTH, PADDLE_HEIGHT);
         paddle.setFilled(true);
         add(paddle);
     }
@@ -131,9 +115,9 @@ public class Breakout extends GraphicsProgram {
      */
 
 
-    // Just setting the paddleX based on mouse x
+    // Just setting the paddleX based on mouse x, the engine picks it up on the next tick
     public void mouseMoved(MouseEvent e) {
-        if (isGameOver()) {
+        if (engine.isGameOver()) {
             return;
         }
         double x = e.getX() - PADDLE_WIDTH / 2;
@@ -143,51 +127,18 @@ public class Breakout extends GraphicsProgram {
         }
     }
 
-    // If the paddle misses the ball... RIP
-    private void handleBallMiss() {
-        turnsCount--;
-        if (turnsCount > 0) {
-            resetBall();
-        }
-    }
-
-    // We estimate the VX of the ball based on how far it was from the center of the paddle (we can try different values of sensitivity)
-    private void handlePaddleKick() {
-
-        // vy must be based on absolute volume because we want the vy to be always negative, it was getting stuck in paddle coz it was changing the direcion all the time
-        vy = -Math.abs(vy);
-        double paddleCenter = paddle.getX() + PADDLE_WIDTH / 2;
-        vx = (ball.getX() + BALL_RADIUS - paddleCenter) / PADDLE_SENSITIVITY;
-    }
-
     private void handleGameLoss() {
-        renderTextInCenter("You Lost :(((", Color.RED, 30);
+        renderTextInCenter("You Lost :(((", Color.RED);
     }
 
     private void handleGameWin() {
-        renderTextInCenter("You WONN :))", Color.GREEN, 30);
+        renderTextInCenter("You WONN :))", Color.GREEN);
     }
 
     /*
         HELPER FUNCTIONS
      */
 
-    private boolean isGameOver() {
-        return turnsCount == 0 || aliveBricks == 0;
-    }
-
-    // Reset the ball to center
-    private void resetBall() {
-        ball.setLocation(WIDTH / 2 - BALL_RADIUS, HEIGHT / 2 - BALL_RADIUS);
-        vy = Math.abs(vy);
-        setRandomVx();
-        pause(2000);
-    }
-
-    private void setRandomVx() {
-        vx = rgen.nextDouble(1.0, 3.0) * (rgen.nextBoolean(0.5) ? -1 : 1);
-    }
-
     private Color getBrickColor(int row) {
         if (row >= 8) {
             return Color.CYAN;
@@ -202,52 +153,10 @@ public class Breakout extends GraphicsProgram {
         }
     }
 
-    private void checkCollisions() {
-        GObject collider = getBallCollidingObject();
-        if (collider == paddle) {
-            handlePaddleKick();
-        } else if (collider != null) {
-            remove(collider);
-            aliveBricks--;
-            vy = -vy;
-        }
-    }
-
-    // Returns either NULL or object the ball is colliding
-    // I tried checking the 2 corners of each side but i think this version looks smoother
-    private GObject getBallCollidingObject() {
-        double leftX = ball.getX();
-        double rightX = leftX + BALL_RADIUS * 2;
-        double topY = ball.getY();
-        double bottomY = topY + BALL_RADIUS * 2;
-
-        // Checking bottom left corner of the collider
-        GObject collider = getElementAt(leftX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking bottom right of the collider
-        collider = getElementAt(rightX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking top left corner of the collider
-        collider = getElementAt(leftX, topY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Or the top right corner, no need to check if its null cause if its null we already checked other corners so no object are being collided
-        collider = getElementAt(rightX, topY);
-        return collider;
-    }
-
 
-    private void renderTextInCenter(String str, Color color, int fontSize) {
+    private void renderTextInCenter(String str, Color color) {
         GLabel text = new GLabel(str);
-        text.setFont(new Font("Serif", Font.PLAIN, fontSize));
+        text.setFont(MESSAGE_FONT);
         text.setColor(color);
         double x = (WIDTH - text.getWidth()) / 2;
         double y = (HEIGHT - text.getAscent()) / 2;
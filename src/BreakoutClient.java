@@ -6,6 +6,12 @@
  * - Both BreakoutServer and BreakoutClient need to be running on the same local network.
  * - To connect, specify the ADDRESS (local IP of the server device) and PORT (an available port on the server) in the client code.
  * - The game will synchronize gameplay between the client and server, enabling real-time multiplayer.
+ * - The server simulates both boards (see BreakoutMatch), this side only sends its paddle and draws what the server sends back.
+ *   Our own ball is predicted locally between snapshots (PredictedBoard), the opponent is drawn INTERPOLATION_DELAY_MILLIS
+ *   in the past (InterpolationBuffer), so both sides only need to talk about 24 times a second.
+ * - If the server runs with -Dbreakout.lockstep=true, we play both boards ourselves too and only paddle inputs go
+ *   back and forth (see LockstepSession).
+ * - If it runs with -Dbreakout.udp=true, the snapshots come as datagrams and everything else stays on TCP (see DatagramStateReceiver).
  *
  * Note:
  * Ensure server is running before running this file, ensure the firewall settings allow connections on the chosen PORT, and that both devices are on the same network.
@@ -15,68 +21,69 @@
  * Audios from https://pixabay.com/sound-effects
  *
  * Known Bugs:
- * - bricks destroyed by the opponent appear correctly on their screen but do not update on this player's screen.
- *   This causes the ball to appear as though it passes through an intact brick, even though it has already been destroyed.
+ * - (fixed) bricks destroyed by the opponent appeared correctly on their screen but did not update on this player's screen,
+ *   so the ball seemed to pass through intact bricks. The server simulates both boards now and sends brick ids.
  * (Deadline :(( )
  */
 
 import acm.graphics.*;
 import acm.program.GraphicsProgram;
-import acm.util.MediaTools;
-import acm.util.RandomGenerator;
 
-import java.applet.AudioClip;
 import java.awt.*;
 import java.awt.event.MouseEvent;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 
 public class BreakoutClient extends GraphicsProgram {
 
     private static final int PORT = 6969;
     private static final String ADDRESS = "192.168.1.148";
 
-
-    public static final int DELAY = 7;
     public static final int SEPERATOR_WIDTH = 300;
     private static final int WIDTH = 400;
     public static final int APPLICATION_WIDTH = WIDTH * 2 + SEPERATOR_WIDTH;
     public static final int APPLICATION_HEIGHT = 600;
     private static final int HEIGHT = 600;
-    private static final int PADDLE_WIDTH = 60;
-    private static final int PADDLE_HEIGHT = 10;
-    private static final int PADDLE_Y_OFFSET = 30;
-    private static final int NBRICKS_PER_ROW = 10;
-    private static final int NBRICK_ROWS = 10;
-    private static final int BRICK_SEP = 4;
-    private static final int BRICK_WIDTH =
-            (WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / NBRICKS_PER_ROW;
-    private static final int BRICK_HEIGHT = 8;
-    private static final int BALL_RADIUS = 10;
-    private static final int BRICK_Y_OFFSET = 70;
-    private static final int NTURNS = 3;
-    private static final int PADDLE_SENSITIVITY = 8;
+    private static final int PADDLE_WIDTH = BreakoutEngine.PADDLE_WIDTH;
+    private static final int PADDLE_HEIGHT = BreakoutEngine.PADDLE_HEIGHT;
+    private static final int PADDLE_Y_OFFSET = BreakoutEngine.PADDLE_Y_OFFSET;
+    private static final int BALL_RADIUS = BreakoutEngine.BALL_RADIUS;
     private static final int HEART_OFFSET = 10;
     private static final int HEART_GAP = 5;
     private static final int HEART_WIDTH = 30;
-    private int turnsCount = NTURNS;
-    private int aliveBricks = NBRICK_ROWS * NBRICKS_PER_ROW;
+    // A bit more than two snapshots, so there's almost always one on each side of what we draw
+    private static final double INTERPOLATION_DELAY_MILLIS = 100;
+    private static final double MAX_EXTRAPOLATION_MILLIS = 100;
+    // Built once, so the labels that change during the game never allocate (see GameLoop's alloc/tick)
+    private static final Font BRICKS_LEFT_FONT = new Font("Serif", Font.PLAIN, 17);
+    private static final Font COUNTER_FONT = new Font("serif", Font.PLAIN, 25);
+    private static final Font MESSAGE_FONT = new Font("Serif", Font.PLAIN, 30);
+    private static final String[] COUNTDOWN_LABELS = {"0", "1", "2", "3"};
     private boolean isDarkModeEnabled = true;
-    private boolean gameStarted = false;
+    private volatile boolean gameStarted = false;
+    private volatile boolean gameOver = false;
 
 
     // Audio
-    AudioClip bgMusic = MediaTools.loadAudioClip("background_music.au");
-    AudioClip destroySound = MediaTools.loadAudioClip("destroy.au");
-    AudioClip winSound = MediaTools.loadAudioClip("victory.au");
-    AudioClip loseSound = MediaTools.loadAudioClip("lose.au");
-    AudioClip paddleKickSound = MediaTools.loadAudioClip("kick.au");
-    AudioClip countdownSound = MediaTools.loadAudioClip("countdown.au");
+    // One mixer for every program, a file is only read the first time it plays (see Assets)
+    SoundMixer sounds = Assets.sounds();
+    int bgMusic = sounds.load("background_music.au");
+    int destroySound = sounds.load("destroy.au");
+    int winSound = sounds.load("victory.au");
+    int loseSound = sounds.load("lose.au");
+    int paddleKickSound = sounds.load("kick.au");
+    int countdownSound = sounds.load("countdown.au");
 
     // GObjects
+    // Our board as we predict it, the real game runs on the server
+    private BreakoutEngine engine;
+    private PredictedBoard prediction;
+    private final InterpolationBuffer opponent = new InterpolationBuffer(INTERPOLATION_DELAY_MILLIS, MAX_EXTRAPOLATION_MILLIS);
     private GRect paddle;
     private GRect serverPaddle;
     private GOval ball;
@@ -84,35 +91,88 @@ public class BreakoutClient extends GraphicsProgram {
     private GImage switcher;
     private GLine seperator1;
     private GLine seperator2;
+    private BrickLayer bricks;
+    private BrickLayer serverBricks;
+    private GImage[] hearts;
 
     // Labels
     private GLabel bricksLeft = null;
+    private String[] bricksLeftLabels;
     private GLabel counter;
 
-    private RandomGenerator rgen = RandomGenerator.getInstance();
+    // Our board's stream of the match seed, which the server only sends when the game starts (see startMatch())
+    private final MatchRandom rgen = new MatchRandom(0);
+    private ReplayWriter replay;
+    // Only if the server said so, then we play both boards and only send inputs (see LockstepSession)
+    private LockstepSession lockstep;
+    private final double[] lockstepInput = new double[1];
+    private int player;
 
     // Network things
     private Socket socket = null;
     private DataInputStream input = null;
-    private DataOutputStream output = null;
-
-    private double vx, vy = 3.0;
-    private boolean connectionActive = false;
+    // Blocks on the socket and dispatches what comes (see MessageReceiver), on the breakout-receiver thread
+    private MessageReceiver receiver;
+    // Counted down once the game started or never will, so run() just waits instead of checking every 100ms
+    private final CountDownLatch gameStart = new CountDownLatch(1);
+    private NetworkWriter writer = null;
+    // Only if the server offers UDP (-Dbreakout.udp=true), then the snapshots come as datagrams
+    private DatagramStateReceiver datagrams;
+    // Tick of the last snapshot per board, guarded by stateLock, snapshots come from both while the server switches over
+    private final int[] lastStateTicks = new int[2];
+    private final Object stateLock = new Object();
+    // Our board as the server last told us
+    private int aliveBricks;
+    private int turnsLeft;
+    // Ticks at the protocol rate like the server, inputs go out at sendHz (-Dbreakout.sendHz), drawing at -Dbreakout.renderHz
+    private final GameLoop loop = new GameLoop(GameLoop.DEFAULT_TICK_HZ, GameLoop.configuredRenderHz(), GameLoop.configuredSendHz(Protocol.DEFAULT_SEND_HZ));
+    // Inputs of the ticks since the last send, they go out together
+    private final double[] unsentInputs = new double[Protocol.MAX_INPUTS_PER_MESSAGE];
+    private int unsentCount = 0;
+    private int firstUnsentSeq;
+
+    private volatile boolean connectionActive = false;
     private boolean shouldPlayCountdownMusic = true;
 
     public void run() {
-        initGame();
+        // Connecting, decoding and drawing the brick walls all happen while the board is set up (see Startup)
+        Startup startup = new Startup();
+        Future<?> connecting = startup.submit("network", this::connectToServer);
+        startup.run("board", () -> initGame(startup));
         addMouseListeners();
-        connectToServer();
-        while (!gameStarted) {
-            pause(100);
+        startup.boardShown();
+        // Only now, the countdown and the server's events draw on the board
+        startup.get(connecting);
+        startReceiving();
+        startup.finish();
+        System.out.println("Startup: " + startup.getStats());
+        try {
+            gameStart.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (gameStarted) {
+            gameLoop();
         }
-        gameLoop();
     }
 
-    private void initGame() {
-        drawBricks();
-        setRandomVx();
+    // Draws only what changed while the game runs, instead of the whole window for every move
+    @Override
+    protected GCanvas createGCanvas() {
+        return new DirtyRectCanvas();
+    }
+
+    private void initGame(Startup startup) {
+        engine = new BreakoutEngine(rgen);
+        prediction = new PredictedBoard(engine, rgen);
+        aliveBricks = engine.getAliveBricks();
+        turnsLeft = engine.getTurnsLeft();
+        Color background = getGCanvas().getBackground();
+        Future<BrickLayer> ourWall = startup.submit("bricks", () -> prepareBricks(0, background));
+        Future<BrickLayer> serverWall = startup.submit("server bricks", () -> prepareBricks(WIDTH + SEPERATOR_WIDTH, background));
+        startup.submit("images", () -> Assets.preloadImages("heart.png", "light.png", "dark.png"));
+        startup.submit("sounds", sounds::preload);
         renderHearts();
         renderBricksLeft();
         renderThemeSwitcher(true);
@@ -121,22 +181,74 @@ public class BreakoutClient extends GraphicsProgram {
         createBall();
         createServerBall();
         renderSeparator();
+        addBricks(startup.get(ourWall), startup.get(serverWall));
     }
 
 
-    // Each *frame* happens here
+    // Ticks, frames and input sends each at their own rate (see GameLoop)
     private void gameLoop() {
-        bgMusic.loop();
-        while (turnsCount > 0 && aliveBricks > 0 && connectionActive) {
-            moveBall();
-            checkCollisions();
-            sendPositionsToServer(0, 0);
-            pause(DELAY);
-        }
-        if (turnsCount == 0) {
-            handleGameLoss(1);
-        } else if (aliveBricks == 0) {
-            handleGameWin(1);
+        sounds.loop(bgMusic);
+        // The server has the real game and ends it (see createRegistry), we predict our ball until its snapshots correct us
+        canvas().setDirtyTracking(true);
+        loop.run(new GameLoop.Game() {
+            public boolean isRunning() {
+                if (lockstep != null) {
+                    return lockstep.isRunning(connectionActive);
+                }
+                return !gameOver && connectionActive;
+            }
+
+            public void tick() {
+                if (lockstep != null) {
+                    tickLockstep();
+                    return;
+                }
+                double paddleX = paddle.getX();
+                queueInput(prediction.step(paddleX), paddleX);
+                if (replay != null) {
+                    replay.recordPaddle(0, paddleX);
+                }
+            }
+
+            public void render(double alpha) {
+                if (lockstep != null) {
+                    renderLockstep();
+                    canvas().paintDirty();
+                    return;
+                }
+                ball.setLocation(prediction.getBallX(), prediction.getBallY());
+                renderOpponent();
+                // Only where something moved or changed, see DirtyRectCanvas
+                canvas().paintDirty();
+            }
+
+            public void send() {
+                // In lockstep every tick sends its input right away
+                if (lockstep == null) {
+                    sendInputsToServer();
+                }
+            }
+        });
+        canvas().setDirtyTracking(false);
+        if (replay != null && lockstep != null) {
+            // We played the whole match ourselves, so it's the same recording the server makes
+            replay.end(lockstep.getMatch().getEngine(0), lockstep.getMatch().getEngine(1));
+            System.out.println("Replay: " + replay.getStats());
+        } else if (replay != null) {
+            // No end to check against: the server's snapshots corrected our board, the inputs alone don't give
+            // what it ended as. The server's recording is the real game
+            replay.close();
+            System.out.println("Replay: " + replay.getStats());
+        }
+        System.out.println("Game loop: " + loop.getStats());
+        if (lockstep != null) {
+            System.out.println("Lockstep: " + lockstep.getStats());
+        }
+        System.out.println("Sound: " + sounds.getStats());
+        System.out.println("Assets: " + Assets.getStats());
+        System.out.println("Painting: " + canvas().getStats());
+        if (lockstep != null) {
+            endLockstep();
         }
         remove(ball);
     }
@@ -144,39 +256,38 @@ public class BreakoutClient extends GraphicsProgram {
 
     // --------------- SOCKET FUNCTIONS -------------------
 
-    private void sendPositionsToServer(double brickX, double brickY) {
-        try {
-            double paddleX = paddle.getX();
-            double ballX = ball.getX();
-            double ballY = ball.getY();
-            // We are sending game variables, so here comes PROTOCOL 0
-            output.writeInt(0);
-
-            output.writeDouble(paddleX);
-            output.writeDouble(ballX);
-            output.writeDouble(ballY);
-            output.writeDouble(brickX);
-            output.writeDouble(brickY);
-        } catch (IOException e) {
-            closeConnection();
+    private void queueInput(int seq, double paddleX) {
+        if (unsentCount == 0) {
+            firstUnsentSeq = seq;
+        }
+        unsentInputs[unsentCount++] = paddleX;
+        if (unsentCount == unsentInputs.length) {
+            // Only with a silly low sendHz, a message can't hold more
+            sendInputsToServer();
         }
     }
 
+    private void sendInputsToServer() {
+        if (unsentCount == 0) {
+            return;
+        }
+        // PROTOCOL 3, the only thing the client sends, every tick's paddle x since the last one
+        writer.sendInputs(firstUnsentSeq, unsentInputs, unsentCount);
+        writer.flush();
+        unsentCount = 0;
+    }
+
     private void connectToServer() {
         try {
             socket = new Socket(ADDRESS, PORT);
             System.out.println("CONNECTED");
             connectionActive = true;
 
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
-
-            // We need new thread so that gameloop doesn't stop
-            new Thread(() -> {
-                handleCountdownEvent();
-                receiveData();
-            }).start();
-
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // Everything we send goes through the writer thread, the game loop only queues and flushes once per tick
+            writer = new NetworkWriter(socket.getOutputStream(), this::closeConnection);
+            writer.sendHandshake();
+            writer.flush();
         } catch (UnknownHostException e) {
             System.out.println("Unknown host: " + e.getMessage());
         } catch (IOException e) {
@@ -184,86 +295,183 @@ public class BreakoutClient extends GraphicsProgram {
         }
     }
 
+    // After connectToServer() and once the board is there, what the server sends draws on it
+    private void startReceiving() {
+        if (!connectionActive) {
+            gameStart.countDown();
+            return;
+        }
+        receiver = new MessageReceiver(input, createRegistry());
+        // We need new thread so that gameloop doesn't stop, it sleeps in read() whenever the server has nothing to say
+        GameThreads.start("breakout-receiver", () -> {
+            try {
+                Protocol.readHandshake(input);
+                // Returns after the game end, which closes the connection itself
+                receiver.receive();
+                return;
+            } catch (IOException e) {
+                // Not when we closed the socket ourselves
+                if (connectionActive) {
+                    System.out.println(e.getMessage());
+                }
+            }
+            closeConnection();
+        });
+    }
+
     private void closeConnection() {
         try {
-            if (output != null) output.close();
+            if (writer != null) {
+                // Sends whatever is still queued (like our last paddle input) before we close the socket
+                writer.close();
+                System.out.println("Network writer: " + writer.getStats());
+            }
             if (socket != null) socket.close();
+            if (datagrams != null) {
+                datagrams.close();
+                System.out.println("UDP: " + datagrams.getStats());
+            }
+            System.out.println("Prediction: " + prediction.getStats());
             connectionActive = false;
+            if (receiver != null) {
+                System.out.println("Receiver: " + receiver.getStats());
+            }
             System.out.println("Connection closed.");
+            // Nothing is going to start the game anymore
+            gameStart.countDown();
         } catch (IOException e) {
             System.out.println("Error closing connection: " + e.getMessage());
         }
     }
 
-    private void receiveData() {
-        while (true) {
-            try {
-                if (gameStarted) {
-                    int messageType = input.readInt();
-
-                    // There are 2 kinds of *protocols*, one starts with 0, the second one starts with 1, protocol 0 is for receiveing game variables like paddle and ball location, protocol 1 is for finishing the game, happens when one of the players lost/won the game
-                    if (messageType == 0) {
-                        receiveAndProcessGameVariables();
-                    } else if (messageType == 1) {
-                        receiveGameEndEvent();
-                    }
-                }
-            } catch (IOException e) {
-                closeConnection();
-                return;
-            }
+    // There are 3 kinds of *protocols* coming from the server during the game (see Protocol), protocol 0 is for paddle and ball locations on either board, protocol 1 is for finishing the game, happens when one of the players lost/won the game, protocol 2 is for what happened on a board (bricks by id, hearts, kicks)
+    // In lockstep it's only the server's paddle x per tick (protocol 3) and its hashes (protocol 4). Before all of that the countdown (protocol 5) and the game start (protocol 6)
+    private MessageRegistry createRegistry() {
+        return new MessageRegistry()
+                .on(Protocol.COUNTDOWN, new Protocol.Countdown(), countdown -> {
+                    handleCountdownEvent(countdown.getCount());
+                    return true;
+                }).on(Protocol.UDP_OFFER, new Protocol.UdpOffer(), offer -> {
+                    startDatagrams(offer);
+                    return true;
+                }).on(Protocol.GAME_START, new Protocol.GameStart(), start -> {
+                    startMatch(start.getSeed(), start.getPlayer(), start.getMode());
+                    startGameLoop();
+                    remove(counter);
+                    return true;
+                }).on(Protocol.STATE, new Protocol.State(), state -> {
+                    receiveAndProcessGameVariables(state);
+                    return true;
+                }).on(Protocol.GAME_END, new Protocol.GameEnd(), end -> {
+                    receiveGameEndEvent(end.isYouWon());
+                    // Nothing comes after it
+                    return false;
+                }).on(Protocol.BOARD_EVENTS, new Protocol.BoardEvents(), events -> {
+                    receiveBoardEvents(events);
+                    return true;
+                }).on(Protocol.INPUT, new Protocol.Inputs(), inputs -> {
+                    receiveLockstepInputs(inputs);
+                    return true;
+                }).on(Protocol.STATE_HASH, new Protocol.StateHash(), hash -> {
+                    receiveStateHash(hash);
+                    return true;
+                });
+    }
+
+    // GAME_START, which says it's lockstep, always comes first: BreakoutServer flushes it before its game loop
+    // sends the first input. An input without it is a broken server, not bad timing
+    private void receiveLockstepInputs(Protocol.Inputs inputs) throws IOException {
+        if (lockstep == null) {
+            throw new IOException("Lockstep input, but this isn't a lockstep game");
+        }
+        for (int i = 0; i < inputs.getCount(); i++) {
+            lockstep.addRemoteInput(inputs.getFirstSeq() + i, inputs.getPaddleX(i));
+        }
+    }
+
+    private void receiveStateHash(Protocol.StateHash hash) throws IOException {
+        if (lockstep == null) {
+            throw new IOException("State hash, but this isn't a lockstep game");
+        }
+        lockstep.addRemoteHash(hash.getTick(), hash.getHash());
+    }
+
+    // The server decided, 1 if it happened on our board (we cleared it or ran out of turns), 0 if on the opponent's
+    private void receiveGameEndEvent(boolean youWon) {
+        gameOver = true;
+        if (youWon) {
+            handleGameWin(aliveBricks == 0 ? 1 : 0);
+        } else {
+            handleGameLoss(turnsLeft == 0 ? 1 : 0);
         }
     }
 
-    private void receiveGameEndEvent() throws IOException {
-        boolean statusMessage = input.readBoolean();
-        if (statusMessage) {
-            handleGameLoss(0);
-        } else {
-            handleGameWin(0);
+    // From the TCP receiver, or the UDP one once it's ready
+    private void receiveAndProcessGameVariables(Protocol.State state) {
+        StateFrameCodec frame = state.getFrame();
+        int board = state.getBoard();
+        synchronized (stateLock) {
+            // One that was still on its way over TCP after a newer datagram, nothing new in it
+            if (frame.getTick() < lastStateTicks[board]) {
+                return;
+            }
+            lastStateTicks[board] = frame.getTick();
+            // Nothing is drawn from here, the game loop picks it up on its next tick
+            if (board == Protocol.BOARD_YOURS) {
+                prediction.reconcile(frame);
+            } else {
+                opponent.add(frame, System.nanoTime());
+            }
         }
     }
 
-    private void sendLoseEvent() {
+    // The server would rather send its snapshots as datagrams (see DatagramStateReceiver), they end up in the same place
+    private void startDatagrams(Protocol.UdpOffer offer) {
+        MessageRegistry registry = new MessageRegistry().on(Protocol.STATE, new Protocol.State(), state -> {
+            receiveAndProcessGameVariables(state);
+            return true;
+        });
         try {
-            // We are finishing the game, so PROTOCOL 1
-            output.writeInt(1);
-            output.writeBoolean(false);
+            datagrams = new DatagramStateReceiver(socket.getInetAddress(), offer.getPort(), offer.getToken(), registry, () -> {
+                // PROTOCOL 8, the server switches over once it gets this
+                writer.sendUdpReady();
+                writer.flush();
+            });
         } catch (IOException e) {
-            closeConnection();
-            System.out.println(e);
+            System.out.println("No UDP, snapshots stay on TCP: " + e.getMessage());
+            return;
         }
+        GameThreads.start("breakout-udp-receiver", datagrams);
     }
 
-    private void sendWinEvent() {
-        try {
-            // We are finishing the game, so PROTOCOL 1
-            output.writeInt(1);
-            output.writeBoolean(true);
-        } catch (IOException e) {
-            closeConnection();
-            System.out.println(e);
+    private void receiveBoardEvents(Protocol.BoardEvents message) throws IOException {
+        int events = message.getEvents();
+        int brickId = message.getBrickId();
+        if (brickId >= engine.getBrickCount()) {
+            throw new IOException("Unknown brick " + brickId);
+        }
+        int turns = message.getTurnsLeft();
+        if (turns >= hearts.length) {
+            throw new IOException("Bad turns left " + turns);
         }
-    }
 
-    private void receiveAndProcessGameVariables() throws IOException {
-        double paddleX = input.readDouble();
-        double ballX = input.readDouble();
-        double ballY = input.readDouble();
-        double brickX = input.readDouble();
-        double brickY = input.readDouble();
-        GObject currentEl = getElementAt(brickX + WIDTH + SEPERATOR_WIDTH, brickY);
-        if (currentEl instanceof GRect) {
-            remove(currentEl);
+        if (message.getBoard() == Protocol.BOARD_YOURS) {
+            if (brickId >= 0) {
+                prediction.confirmBrick(brickId);
+            }
+            if (turns >= 0) {
+                prediction.confirmTurns(turns);
+            }
+            renderEvents(events, brickId, turns);
+        } else if (brickId >= 0) {
+            serverBricks.eraseBrick(brickId);
         }
-        serverPaddle.setLocation(paddleX + WIDTH + SEPERATOR_WIDTH, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT);
-        serverBall.setLocation(ballX + WIDTH + SEPERATOR_WIDTH, ballY);
     }
 
     // --------------- LISTENERS ---------------------
     @Override
     public void mouseMoved(MouseEvent e) {
-        if (isGameOver()) {
+        if (gameOver) {
             return;
         }
         double x = e.getX() - (double) PADDLE_WIDTH / 2;
@@ -287,60 +495,109 @@ public class BreakoutClient extends GraphicsProgram {
 
     // --------------- HELPERS ------------------
 
-    // probably didnt need separate method
-    private void startGameLoop() {
-        gameStarted = true;
+    private DirtyRectCanvas canvas() {
+        return (DirtyRectCanvas) getGCanvas();
     }
 
-    // DVD screensaver like animation, but if it touches the bottom of the screen we record it as a *missed ball*
-    private void moveBall() {
-        ball.move(vx, vy);
-        if (ball.getX() <= 0 || ball.getX() + BALL_RADIUS * 2 >= WIDTH) {
-            // ball was sticking to edges and had to use the absolute value of vx
-            if (ball.getX() <= 0) {
-                vx = Math.abs(vx);
-            } else {
-                vx = -Math.abs(vx);
+    // Our board serves like the server's copy of it from now on, before the game loop steps it for the first time
+    private void startMatch(long seed, int player, int mode) {
+        this.player = player;
+        if (mode == Protocol.MODE_LOCKSTEP) {
+            lockstep = new LockstepSession(new BreakoutMatch(seed), player);
+            replay = ReplayWriter.fromProperty(BreakoutMatch.PLAYERS, 0, seed, BreakoutEngine.NBRICK_ROWS, BreakoutEngine.NBRICKS_PER_ROW, BreakoutEngine.TICK_MILLIS);
+            return;
+        }
+        rgen.setSeed(MatchRandom.boardSeed(seed, player));
+        engine.redrawServe();
+        replay = ReplayWriter.fromProperty(1, player, seed, BreakoutEngine.NBRICK_ROWS, BreakoutEngine.NBRICKS_PER_ROW, BreakoutEngine.TICK_MILLIS);
+    }
+
+    // Plays the next tick of both boards once the server's input for it is here, then takes ours for a few ticks later
+    private void tickLockstep() {
+        BreakoutMatch match = lockstep.getMatch();
+        int opponent = BreakoutMatch.opponentOf(player);
+        if (lockstep.step()) {
+            BreakoutEngine ours = match.getEngine(player);
+            renderEvents(match.getEvents(player), ours.getLastDestroyedBrick(), ours.getTurnsLeft());
+            if ((match.getEvents(opponent) & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+                serverBricks.eraseBrick(match.getEngine(opponent).getLastDestroyedBrick());
+            }
+            if (replay != null) {
+                replay.recordPaddle(0, match.getPaddleInput(0));
+                replay.recordPaddle(1, match.getPaddleInput(1));
+            }
+            if (lockstep.isHashTick()) {
+                writer.sendStateHash((int) match.getTick(), lockstep.getLastHash());
             }
         }
-        if (ball.getY() <= 0) {
-            vy = -vy;
-        } else if (ball.getY() + BALL_RADIUS * 2 >= HEIGHT) {
-            handleBallMiss();
+        double paddleX = paddle.getX();
+        int tick = lockstep.queueLocal(paddleX);
+        if (tick > 0) {
+            lockstepInput[0] = paddleX;
+            writer.sendInputs(tick, lockstepInput, 1);
+        }
+        writer.flush();
+    }
+
+    // Both boards straight from our own match
+    private void renderLockstep() {
+        BreakoutMatch match = lockstep.getMatch();
+        BreakoutEngine ours = match.getEngine(player);
+        BreakoutEngine theirs = match.getEngine(BreakoutMatch.opponentOf(player));
+        ball.setLocation(ours.getBallX(), ours.getBallY());
+        serverPaddle.setLocation(theirs.getPaddleX() + WIDTH + SEPERATOR_WIDTH, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT);
+        serverBall.setLocation(theirs.getBallX() + WIDTH + SEPERATOR_WIDTH, theirs.getBallY());
+    }
+
+    // Nobody sends a game end in lockstep, we saw it ourselves (1 if it happened on our board, like receiveGameEndEvent())
+    private void endLockstep() {
+        BreakoutMatch match = lockstep.getMatch();
+        BreakoutEngine ours = match.getEngine(player);
+        gameOver = true;
+        if (lockstep.getDesyncTick() != LockstepSession.NO_DESYNC) {
+            sounds.stop(bgMusic);
+            removeAll();
+            renderTextInCenter("Out of sync with the opponent :((", Color.RED);
+            closeConnection();
+        } else if (match.getWinner() == player) {
+            handleGameWin(ours.isWon() ? 1 : 0);
+        } else if (match.isOver()) {
+            handleGameLoss(ours.getTurnsLeft() == 0 ? 1 : 0);
         }
     }
 
-    // Reset the ball to center
-    private void resetBall() {
-        ball.setLocation((double) WIDTH / 2 - BALL_RADIUS, (double) HEIGHT / 2 - BALL_RADIUS);
-        vy = Math.abs(vy);
-        setRandomVx();
-        pause(2000);
+    // probably didnt need separate method
+    private void startGameLoop() {
+        gameStarted = true;
+        gameStart.countDown();
     }
 
-    private void setRandomVx() {
-        vx = rgen.nextDouble(1.0, 3.0) * (rgen.nextBoolean(0.5) ? -1 : 1);
+    // The opponent a little in the past, smoothly (see InterpolationBuffer)
+    private void renderOpponent() {
+        if (opponent.sample(System.nanoTime())) {
+            serverPaddle.setLocation(opponent.getPaddleX() + WIDTH + SEPERATOR_WIDTH, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT);
+            serverBall.setLocation(opponent.getBallX() + WIDTH + SEPERATOR_WIDTH, opponent.getBallY());
+        }
     }
 
-    private void checkCollisions() {
-        GObject collider = getBallCollidingObject();
-        if (collider == paddle) {
-            handlePaddleKick();
-        } else if (collider instanceof GRect) {
-            destroySound.play();
-            remove(collider);
+    // Sounds and GObjects that need to change because of what the server said happened on our board
+    private void renderEvents(int events, int brickId, int turns) {
+        if ((events & BreakoutEngine.EVENT_PADDLE_KICK) != 0) {
+            sounds.play(paddleKickSound);
+        }
+        if ((events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+            sounds.play(destroySound);
+            bricks.eraseBrick(brickId);
             aliveBricks--;
-            bricksLeft.setLabel("Bricks : " + (int) aliveBricks);
-            vy = -vy;
-            sendPositionsToServer(collider.getX(), collider.getY());
+            bricksLeft.setLabel(bricksLeftLabels[Math.max(0, aliveBricks)]);
+        }
+        if ((events & BreakoutEngine.EVENT_BALL_MISSED) != 0) {
+            turnsLeft = turns;
+            remove(hearts[turnsLeft]);
         }
     }
     // ------------ GETTERS ------------------
 
-    private boolean isGameOver() {
-        return turnsCount == 0 || aliveBricks == 0;
-    }
-
     private Color getBrickColor(int row) {
         if (row >= 8) {
             return Color.CYAN;
@@ -355,113 +612,37 @@ public class BreakoutClient extends GraphicsProgram {
         }
     }
 
-    // Returns either NULL or object the ball is colliding
-    private GObject getBallCollidingObject() {
-        double leftX = ball.getX();
-        double rightX = leftX + BALL_RADIUS * 2;
-        double topY = ball.getY();
-        double bottomY = topY + BALL_RADIUS * 2;
-
-        // Checking bottom left corner of the collider
-        GObject collider = getElementAt(leftX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking bottom right of the collider
-        collider = getElementAt(rightX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking top left corner of the collider
-        collider = getElementAt(leftX, topY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Or the top right corner, no need to check if its null cause if its null we already checked other corners so no object are being collided
-        collider = getElementAt(rightX, topY);
-        return collider;
-    }
-
-
-    private GObject getCurrentHeart() {
-        double x = HEART_OFFSET + (turnsCount - 1) * (HEART_WIDTH + HEART_GAP) + HEART_WIDTH / 2;
-        return getElementAt(x, HEART_WIDTH / 2);
-    }
-
-
     // ----------------- HANDLERS ----------------------
-    private void handleCountdownEvent() {
-        while (true) {
-            try {
-                if (input.available() > 0) {
-                    // Need this variable so that countdown doesn't play multiple times
-                    if (shouldPlayCountdownMusic) {
-                        countdownSound.play();
-                        // Set it to false
-                        shouldPlayCountdownMusic = false;
-                    }
-                    int countdown = input.readInt();
-                    displayCountdown(countdown);
-
-                    if (countdown == 0) {
-                        boolean gameStarted = input.readBoolean();
-                        if (gameStarted) {
-                            startGameLoop();
-                            remove(counter);
-                        }
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println(e);
-            }
-        }
-    }
-
-    // If the paddle misses the ball... RIP
-    private void handleBallMiss() {
-        GObject heart = getCurrentHeart();
-        remove(heart);
-        turnsCount--;
-        if (turnsCount > 0) {
-            resetBall();
+    private void handleCountdownEvent(int countdown) {
+        // Need this variable so that countdown doesn't play multiple times
+        if (shouldPlayCountdownMusic) {
+            sounds.play(countdownSound);
+            // Set it to false
+            shouldPlayCountdownMusic = false;
         }
-
-    }
-
-    // We estimate the VX of the ball based on how far it was from the center of the paddle (we can try different values of sensitivity)
-    private void handlePaddleKick() {
-        paddleKickSound.play();
-        vy = -Math.abs(vy);
-        double paddleCenter = paddle.getX() + (double) PADDLE_WIDTH / 2;
-        vx = (ball.getX() + BALL_RADIUS - paddleCenter) / PADDLE_SENSITIVITY;
+        displayCountdown(countdown);
     }
 
     private void handleGameLoss(int iLost) {
-        bgMusic.stop();
-        loseSound.play();
-        sendLoseEvent();
+        sounds.stop(bgMusic);
+        sounds.play(loseSound);
         removeAll();
         if (iLost == 1) {
-            renderTextInCenter("You Lost :(((", Color.RED, 30);
+            renderTextInCenter("You Lost :(((", Color.RED);
         } else {
-            renderTextInCenter("Opponent won :((", Color.RED, 30);
+            renderTextInCenter("Opponent won :((", Color.RED);
         }
         closeConnection();
     }
 
     private void handleGameWin(int iWon) {
-        bgMusic.stop();
-        winSound.play();
-        sendWinEvent();
+        sounds.stop(bgMusic);
+        sounds.play(winSound);
         removeAll();
         if (iWon == 1) {
-            renderTextInCenter("You WON :))", Color.GREEN, 30);
+            renderTextInCenter("You WON :))", Color.GREEN);
         } else {
-            renderTextInCenter("Opponent lost :))", Color.GREEN, 30);
+            renderTextInCenter("Opponent lost :))", Color.GREEN);
         }
         closeConnection();
     }
@@ -496,7 +677,7 @@ public class BreakoutClient extends GraphicsProgram {
     }
 
     private void renderThemeSwitcher(boolean darkMode) {
-        switcher = darkMode ? new GImage("./light.png") : new GImage("./dark.png");
+        switcher = new GImage(Assets.image(darkMode ? "light.png" : "dark.png"));
         switcher.setSize(30, 20);
         switcher.sendToFront();
         double x = bricksLeft.getX() - switcher.getWidth() - 10;
@@ -504,8 +685,13 @@ public class BreakoutClient extends GraphicsProgram {
     }
 
     private void renderBricksLeft() {
-        bricksLeft = new GLabel("Bricks: " + (int) aliveBricks);
-        bricksLeft.setFont(new Font("Serif", Font.PLAIN, 17));
+        // bricksLeftLabels[n] is the text for n bricks left
+        bricksLeftLabels = new String[engine.getBrickCount() + 1];
+        for (int n = 0; n < bricksLeftLabels.length; n++) {
+            bricksLeftLabels[n] = "Bricks : " + n;
+        }
+        bricksLeft = new GLabel("Bricks: " + engine.getAliveBricks());
+        bricksLeft.setFont(BRICKS_LEFT_FONT);
         bricksLeft.setColor(Color.ORANGE);
         bricksLeft.sendToFront();
         double x = WIDTH - bricksLeft.getWidth();
@@ -513,87 +699,82 @@ public class BreakoutClient extends GraphicsProgram {
         add(bricksLeft, x, y);
     }
 
-    private void renderTextInCenter(String str, Color color, int fontSize) {
+    private void renderTextInCenter(String str, Color color) {
         GLabel text = new GLabel(str);
-        text.setFont(new Font("Serif", Font.PLAIN, fontSize));
+        text.setFont(MESSAGE_FONT);
         text.setColor(color);
         double x = (APPLICATION_WIDTH - text.getWidth()) / 2;
         double y = (APPLICATION_HEIGHT - text.getAscent()) / 2;
         add(text, x, y);
     }
 
+    // hearts[i] is the heart that disappears when only i turns are left
     private void renderHearts() {
         double y = 0;
         double x = HEART_OFFSET;
 
-        for (int i = 0; i < turnsCount; i++) {
-            renderSingleHeart(x, y);
+        hearts = new GImage[engine.getTurnsLeft()];
+        for (int i = 0; i < hearts.length; i++) {
+            hearts[i] = renderSingleHeart(x, y);
             x += HEART_GAP + HEART_WIDTH;
         }
     }
 
-    private void renderSingleHeart(double x, double y) {
-        GImage heart = new GImage("./heart.png");
+    private GImage renderSingleHeart(double x, double y) {
+        GImage heart = new GImage(Assets.image("heart.png"));
         heart.setSize(HEART_WIDTH, HEART_WIDTH);
         add(heart, x, y);
         heart.sendToFront();
+        return heart;
     }
 
     private void createBall() {
-        ball = new GOval((double) WIDTH / 2 - BALL_RADIUS, (double) HEIGHT / 2 - BALL_RADIUS, BALL_RADIUS * 2, BALL_RADIUS * 2);
+        ball = new GOval(engine.getBallX(), engine.getBallY(), BALL_RADIUS * 2, BALL_RADIUS * 2);
         ball.setFilled(true);
         add(ball);
     }
 
-    private void drawBricks() {
-        double startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY, false);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
-        }
-        startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY, true);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
-        }
-    }
-
-    private void drawBrickRow(Color color, double y, boolean isForClient) {
-        double x = (double) (WIDTH - NBRICKS_PER_ROW * BRICK_WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / 2;
-        if (isForClient) {
-            x += WIDTH + SEPERATOR_WIDTH;
-        }
-        for (int j = 0; j < NBRICKS_PER_ROW; j++) {
-            drawBrick(color, x, y);
-            x += BRICK_WIDTH + BRICK_SEP;
+    // One image per board (see BrickLayer), bricks get erased from them by the engine's brick id.
+    // The opponent's board has the same layout as ours
+    // On a startup thread, the wall isn't on the canvas yet. Both boards start with the same bricks
+    private BrickLayer prepareBricks(double offsetX, Color background) {
+        BrickLayer wall = new BrickLayer(engine, offsetX);
+        wall.prepare(background);
+        for (int id = 0; id < engine.getBrickCount(); id++) {
+            wall.drawBrick(id, getBrickColor(engine.getBrickRow(id)));
         }
+        return wall;
     }
 
-    private void drawBrick(Color color, double x, double y) {
-        GRect brick = new GRect(x, y, BRICK_WIDTH, BRICK_HEIGHT);
-        brick.setFilled(true);
-        brick.setFillColor(color);
-        brick.setColor(color);
-        add(brick);
+    // Behind everything else, the walls are opaque (see BrickLayer)
+    private void addBricks(BrickLayer ourWall, BrickLayer serverWall) {
+        bricks = ourWall;
+        serverBricks = serverWall;
+        add(bricks);
+        add(serverBricks);
+        bricks.sendToBack();
+        serverBricks.sendToBack();
     }
 
     private void createPaddle() {
-        paddle = new GRect((double) (WIDTH - PADDLE_WIDTH) / 2, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT, PADDLE_WIDTH, PADDLE_HEIGHT);
+        paddle = new GRect(engine.getPaddleX(), BreakoutEngine.PADDLE_Y, PADDLE_WIDTH, PADDLE_HEIGHT);
         paddle.setFilled(true);
         add(paddle);
     }
 
+    // One label for the whole countdown, only its text changes
     private void displayCountdown(int count) {
-        if (counter != null) {
-            remove(counter);
-        }
-
-        counter = new GLabel("" + count);
-        double centerX = WIDTH + (double) SEPERATOR_WIDTH / 2 + counter.getWidth() / 2;
-        double centerY = (double) HEIGHT / 2 - counter.getAscent() / 2;
-        counter.setFont(new Font("serif", Font.PLAIN, 25));
+        // The server only counts from 3, but it's a number off the network
+        String text = count >= 0 && count < COUNTDOWN_LABELS.length ? COUNTDOWN_LABELS[count] : String.valueOf(count);
+        if (counter == null) {
+            counter = new GLabel(text);
+            double centerX = WIDTH + (double) SEPERATOR_WIDTH / 2 + counter.getWidth() / 2;
+            double centerY = (double) HEIGHT / 2 - counter.getAscent() / 2;
+            counter.setFont(COUNTER_FONT);
+            add(counter, centerX, centerY);
+        }
+        counter.setLabel(text);
         counter.setColor(isDarkModeEnabled ? Color.BLACK : Color.WHITE);
-        add(counter, centerX, centerY);
     }
 
     private void createServerBall() {
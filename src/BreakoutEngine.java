@@ -0,0 +1,530 @@
+/*
+ * Filename: BreakoutEngine.java
+ * Description: Headless Breakout simulation shared by Breakout, BreakoutExtension, BreakoutServer and BreakoutClient.
+ *
+ * Note:
+ * There is nothing from acm.graphics in here on purpose, so a board can be stepped without a window
+ * (on a server, in a benchmark, when replaying a match...). The GraphicsProgram classes just feed the
+ * paddle position into step() once per tick and draw whatever the engine reports back.
+ *
+ * One step() is one fixed tick of TICK_MILLIS, it never sleeps. The old pause(2000) after a missed ball
+ * is now RESET_DELAY_TICKS ticks where the ball just waits in the center.
+ *
+ * The ball's whole move in a tick is swept against the walls, the paddle and the bricks (SweptCircle)
+ * instead of probing its corners afterwards, so long ticks or a fast ball can't pass through anything.
+ *
+ * Bricks live in a BrickGrid, so the default 10x10 wall and bigger custom walls (see the rows/cols
+ * constructor) cost the same per tick.
+ *
+ * There can be more than one ball (BreakoutExtension's multi-ball, see spawnBalls()). Balls are kept as
+ * parallel arrays of primitives and moved one after the other in a plain loop, so a board with thousands
+ * of them is still just a few arrays. Ball 0 is the one the networked games and the getters without an
+ * index talk about. Losing an extra ball costs nothing, losing the last one costs a turn.
+ *
+ * Speeds are in pixels per TICK_MILLIS tick. A board can tick at a different rate (see the tickMillis
+ * constructor and GameLoop), the ball speed and the reset delay are scaled so the game plays the same in real
+ * time. With the default tick nothing is scaled at all, which is what the networked games rely on.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BreakoutEngine {
+
+    public static final int TICK_MILLIS = 7;
+    public static final int WIDTH = 400;
+    public static final int HEIGHT = 600;
+    public static final int PADDLE_WIDTH = 60;
+    public static final int PADDLE_HEIGHT = 10;
+    public static final int PADDLE_Y_OFFSET = 30;
+    public static final int PADDLE_Y = HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT;
+    public static final int NBRICKS_PER_ROW = 10;
+    public static final int NBRICK_ROWS = 10;
+    public static final int BRICK_SEP = 4;
+    public static final int BRICK_WIDTH =
+            (WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / NBRICKS_PER_ROW;
+    public static final int BRICK_HEIGHT = 8;
+    public static final int BRICK_Y_OFFSET = 70;
+    public static final int BRICK_X_OFFSET = (WIDTH - NBRICKS_PER_ROW * BRICK_WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / 2;
+    public static final int BALL_RADIUS = 10;
+    public static final int NTURNS = 3;
+    public static final int PADDLE_SENSITIVITY = 8;
+    public static final int RESET_DELAY_TICKS = 2000 / TICK_MILLIS;
+
+    // step() returns a mask of these, a single tick can produce more than one
+    public static final int EVENT_PADDLE_KICK = 1;
+    public static final int EVENT_BRICK_DESTROYED = 1 << 1;
+    public static final int EVENT_BALL_MISSED = 1 << 2;
+    public static final int EVENT_GAME_WON = 1 << 3;
+    public static final int EVENT_GAME_LOST = 1 << 4;
+
+    // What the ball can hit besides a brick id
+    private static final int NOTHING = SweptCircle.NONE;
+    private static final int PADDLE = -2;
+    private static final int WALL = -3;
+    private static final int FLOOR = -4;
+    // How thick the walls around the screen are, more than the ball moves in any tick
+    private static final double OUTSIDE = 1000;
+    // Bounces resolved within one tick before the rest of the move is dropped
+    private static final int MAX_HITS_PER_TICK = 4;
+
+    private final Random rgen;
+    private final BrickGrid bricks;
+    // What BrickGrid.findAlive() found under a ball's path, room for the whole wall
+    private final int[] nearBricks;
+    private final SweptCircle sweep = new SweptCircle();
+    private final double speedScale;
+    private final int resetDelayTicks;
+    // Ball i is ballXs[i], ballYs[i]... for i < ballCount, prev* is where it was before the last step()
+    private double[] ballXs = new double[1];
+    private double[] ballYs = new double[1];
+    private double[] vxs = new double[1];
+    private double[] vys = new double[1];
+    private double[] prevXs = new double[1];
+    private double[] prevYs = new double[1];
+    private int ballCount = 1;
+    // Bricks destroyed during the last step(), at most one per ball
+    private int[] destroyedBricks = new int[1];
+    private int destroyedCount = 0;
+    private double paddleX = (double) (WIDTH - PADDLE_WIDTH) / 2;
+    private int turnsLeft = NTURNS;
+    private int lastDestroyedBrick = -1;
+    private int resetDelay = 0;
+    private long tick = 0;
+
+    public BreakoutEngine(Random rgen) {
+        this(rgen, NBRICK_ROWS, NBRICKS_PER_ROW);
+    }
+
+    // Custom wall squeezed into the same band the default 10x10 one uses, gaps shrink down to 1px for big walls
+    public BreakoutEngine(Random rgen, int rows, int cols) {
+        this(rgen, rows, cols, TICK_MILLIS);
+    }
+
+    // Every step() is tickMillis of game time instead of TICK_MILLIS
+    public BreakoutEngine(Random rgen, int rows, int cols, double tickMillis) {
+        this.rgen = rgen;
+        this.bricks = createGrid(rows, cols);
+        this.nearBricks = new int[bricks.getBrickCount()];
+        this.speedScale = tickMillis / TICK_MILLIS;
+        this.resetDelayTicks = (int) Math.round(2000 / tickMillis);
+        vys[0] = 3.0 * speedScale;
+        centerBall();
+        setRandomVx();
+        prevXs[0] = ballXs[0];
+        prevYs[0] = ballYs[0];
+    }
+
+    // For 10x10 this gives exactly the BRICK_* constants above
+    private static BrickGrid createGrid(int rows, int cols) {
+        double sep = Math.max(1, Math.min(BRICK_SEP, BRICK_SEP * NBRICKS_PER_ROW / Math.max(rows, cols)));
+        double brickWidth = Math.max(1, Math.floor((WIDTH - (cols - 1) * sep) / cols));
+        double bandHeight = NBRICK_ROWS * (BRICK_HEIGHT + BRICK_SEP);
+        double brickHeight = Math.max(1, Math.floor((bandHeight - rows * sep) / rows));
+        double x0 = Math.floor((WIDTH - cols * brickWidth - (cols - 1) * sep) / 2);
+        return new BrickGrid(rows, cols, x0, BRICK_Y_OFFSET, brickWidth, brickHeight, sep);
+    }
+
+    // One fixed tick: move the paddle to paddleX, move every ball, resolve collisions
+    public int step(double paddleX) {
+        if (isGameOver()) {
+            return 0;
+        }
+        tick++;
+        this.paddleX = clampPaddle(paddleX);
+        destroyedCount = 0;
+        if (resetDelay > 0) {
+            resetDelay--;
+            return 0;
+        }
+        int events = 0;
+        int i = 0;
+        while (i < ballCount) {
+            prevXs[i] = ballXs[i];
+            prevYs[i] = ballYs[i];
+            int ballsBefore = ballCount;
+            events |= moveBall(i);
+            if ((events & (EVENT_BALL_MISSED | EVENT_GAME_WON)) != 0) {
+                // Back to one ball in the center, or over
+                break;
+            }
+            // A lost extra ball got replaced by the last one, which hasn't moved yet
+            if (ballCount == ballsBefore) {
+                i++;
+            }
+        }
+        return events;
+    }
+
+
+    // ----------- PHYSICS -----------------
+
+    // Moves ball i along its velocity for one tick and bounces it off whatever it touches on the way.
+    // The whole move is swept (see SweptCircle), so the ball can't skip over a brick or the paddle however fast it goes
+    private int moveBall(int i) {
+        int events = 0;
+        if (vys[i] > 0 && isTouchingPaddle(i)) {
+            // The paddle moved into the ball
+            handlePaddleKick(i);
+            events |= EVENT_PADDLE_KICK;
+        }
+        double remaining = 1;
+        for (int hits = 0; hits < MAX_HITS_PER_TICK; hits++) {
+            double dx = vxs[i] * remaining;
+            double dy = vys[i] * remaining;
+            sweepBall(ballXs[i], ballYs[i], dx, dy);
+            ballXs[i] += dx * sweep.getTime();
+            ballYs[i] += dy * sweep.getTime();
+            int target = sweep.getTarget();
+            if (target == NOTHING) {
+                return events;
+            }
+            remaining *= 1 - sweep.getTime();
+
+            if (target == FLOOR) {
+                return events | handleBallMiss(i);
+            } else if (target == PADDLE) {
+                handlePaddleKick(i);
+                events |= EVENT_PADDLE_KICK;
+            } else if (target == WALL) {
+                bounce(i);
+            } else {
+                // One brick per ball and tick, the rest of this ball's move is dropped
+                bricks.destroy(target);
+                lastDestroyedBrick = target;
+                destroyedBricks[destroyedCount++] = target;
+                bounce(i);
+                events |= EVENT_BRICK_DESTROYED;
+                return bricks.getAliveCount() == 0 ? events | EVENT_GAME_WON : events;
+            }
+        }
+        // Bounced around more than that in one tick (stuck between the paddle and a wall), the rest is dropped
+        return events;
+    }
+
+    // Finds the first thing a ball at (x, y) hits moving by (dx, dy), walls and the floor are boxes just outside the screen
+    private void sweepBall(double x, double y, double dx, double dy) {
+        double cx = x + BALL_RADIUS;
+        double cy = y + BALL_RADIUS;
+        double r = BALL_RADIUS;
+        sweep.reset();
+        sweep.sweepBox(cx, cy, r, dx, dy, -OUTSIDE, -OUTSIDE, 0, HEIGHT + OUTSIDE, WALL);
+        sweep.sweepBox(cx, cy, r, dx, dy, WIDTH, -OUTSIDE, WIDTH + OUTSIDE, HEIGHT + OUTSIDE, WALL);
+        sweep.sweepBox(cx, cy, r, dx, dy, -OUTSIDE, -OUTSIDE, WIDTH + OUTSIDE, 0, WALL);
+        sweep.sweepBox(cx, cy, r, dx, dy, -OUTSIDE, HEIGHT, WIDTH + OUTSIDE, HEIGHT + OUTSIDE, FLOOR);
+        sweep.sweepBox(cx, cy, r, dx, dy, paddleX, PADDLE_Y, paddleX + PADDLE_WIDTH, PADDLE_Y + PADDLE_HEIGHT, PADDLE);
+
+        // Only the bricks under the area the ball moves through
+        int found = bricks.findAlive(Math.min(cx, cx + dx) - r, Math.min(cy, cy + dy) - r,
+                Math.max(cx, cx + dx) + r, Math.max(cy, cy + dy) + r, nearBricks);
+        double brickWidth = bricks.getBrickWidth();
+        double brickHeight = bricks.getBrickHeight();
+        for (int i = 0; i < found; i++) {
+            int id = nearBricks[i];
+            double brickX = bricks.getX(id);
+            double brickY = bricks.getY(id);
+            sweep.sweepBox(cx, cy, r, dx, dy, brickX, brickY, brickX + brickWidth, brickY + brickHeight, id);
+        }
+    }
+
+    // Reflects ball i off the last hit, only the component along the normal flips so the speed stays the same.
+    // On a rounded corner whichever axis the normal is closer to flips
+    private void bounce(int i) {
+        if (Math.abs(sweep.getNormalX()) > Math.abs(sweep.getNormalY())) {
+            vxs[i] = Math.copySign(vxs[i], sweep.getNormalX());
+        } else {
+            vys[i] = Math.copySign(vys[i], sweep.getNormalY());
+        }
+    }
+
+    private boolean isTouchingPaddle(int i) {
+        double cx = ballXs[i] + BALL_RADIUS;
+        double cy = ballYs[i] + BALL_RADIUS;
+        double offX = cx - Math.max(paddleX, Math.min(paddleX + PADDLE_WIDTH, cx));
+        double offY = cy - Math.max(PADDLE_Y, Math.min(PADDLE_Y + PADDLE_HEIGHT, cy));
+        return offX * offX + offY * offY < BALL_RADIUS * BALL_RADIUS;
+    }
+
+    // If the paddle misses the last ball... RIP. Extra balls just disappear
+    private int handleBallMiss(int i) {
+        if (ballCount > 1) {
+            removeBall(i);
+            return 0;
+        }
+        turnsLeft--;
+        if (turnsLeft > 0) {
+            resetBall();
+            return EVENT_BALL_MISSED;
+        }
+        return EVENT_BALL_MISSED | EVENT_GAME_LOST;
+    }
+
+    // We estimate the VX of the ball based on how far it was from the center of the paddle (we can try different values of sensitivity)
+    private void handlePaddleKick(int i) {
+        vys[i] = -Math.abs(vys[i]);
+        double paddleCenter = paddleX + (double) PADDLE_WIDTH / 2;
+        vxs[i] = (ballXs[i] + BALL_RADIUS - paddleCenter) / PADDLE_SENSITIVITY * speedScale;
+    }
+
+    // Reset the ball to center, it waits there 2 seconds (RESET_DELAY_TICKS at the default tick) before moving again
+    private void resetBall() {
+        centerBall();
+        vys[0] = Math.abs(vys[0]);
+        setRandomVx();
+        resetDelay = resetDelayTicks;
+    }
+
+    // The first serve again, for a board whose Random was reseeded before it started (see MatchRandom)
+    public void redrawServe() {
+        setRandomVx();
+    }
+
+    private void centerBall() {
+        ballXs[0] = (double) WIDTH / 2 - BALL_RADIUS;
+        ballYs[0] = (double) HEIGHT / 2 - BALL_RADIUS;
+    }
+
+    private void setRandomVx() {
+        vxs[0] = (1.0 + 2.0 * rgen.nextDouble()) * (rgen.nextDouble() < 0.5 ? -1 : 1) * speedScale;
+    }
+
+    private double clampPaddle(double x) {
+        return Math.max(0, Math.min(WIDTH - PADDLE_WIDTH, x));
+    }
+
+
+    // ----------- MULTI-BALL -----------------
+
+    // Adds count balls where ball 0 is, all going up and fanned out sideways (multi-ball power-up, stress tests).
+    // Doesn't touch rgen, so boards that never call this play exactly like before
+    public void spawnBalls(int count) {
+        ensureBallCapacity(ballCount + count);
+        double speedY = Math.abs(vys[0]);
+        for (int k = 0; k < count; k++) {
+            int i = ballCount++;
+            ballXs[i] = ballXs[0];
+            ballYs[i] = ballYs[0];
+            prevXs[i] = ballXs[0];
+            prevYs[i] = ballYs[0];
+            vxs[i] = (-3.0 + 6.0 * (k + 0.5) / count) * speedScale;
+            vys[i] = -speedY;
+        }
+    }
+
+    // The last ball takes its place
+    private void removeBall(int i) {
+        int last = --ballCount;
+        ballXs[i] = ballXs[last];
+        ballYs[i] = ballYs[last];
+        vxs[i] = vxs[last];
+        vys[i] = vys[last];
+        prevXs[i] = prevXs[last];
+        prevYs[i] = prevYs[last];
+    }
+
+    // Arrays only grow when balls are spawned, never during a step()
+    private void ensureBallCapacity(int capacity) {
+        if (capacity <= ballXs.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, ballXs.length * 2);
+        ballXs = Arrays.copyOf(ballXs, newCapacity);
+        ballYs = Arrays.copyOf(ballYs, newCapacity);
+        vxs = Arrays.copyOf(vxs, newCapacity);
+        vys = Arrays.copyOf(vys, newCapacity);
+        prevXs = Arrays.copyOf(prevXs, newCapacity);
+        prevYs = Arrays.copyOf(prevYs, newCapacity);
+        destroyedBricks = Arrays.copyOf(destroyedBricks, newCapacity);
+    }
+
+
+    // ----------- PREDICTION -----------------
+
+    // Puts the board back to a state the server sent (see PredictedBoard), bricks are copied from confirmedBricks.
+    // Networked games only have one ball
+    public void restore(double paddleX, double ballX, double ballY, double vx, double vy, int resetDelay, int turnsLeft, BrickGrid confirmedBricks) {
+        this.paddleX = paddleX;
+        ballCount = 1;
+        ballXs[0] = ballX;
+        ballYs[0] = ballY;
+        vxs[0] = vx;
+        vys[0] = vy;
+        this.resetDelay = resetDelay;
+        this.turnsLeft = turnsLeft;
+        bricks.copyFrom(confirmedBricks);
+    }
+
+    // Everything other's game is at right now, balls and all (not its Random). Same wall size and tick length,
+    // for replay keyframes (see ReplayReader)
+    public void copyFrom(BreakoutEngine other) {
+        ensureBallCapacity(other.ballCount);
+        ballCount = other.ballCount;
+        System.arraycopy(other.ballXs, 0, ballXs, 0, ballCount);
+        System.arraycopy(other.ballYs, 0, ballYs, 0, ballCount);
+        System.arraycopy(other.vxs, 0, vxs, 0, ballCount);
+        System.arraycopy(other.vys, 0, vys, 0, ballCount);
+        System.arraycopy(other.prevXs, 0, prevXs, 0, ballCount);
+        System.arraycopy(other.prevYs, 0, prevYs, 0, ballCount);
+        System.arraycopy(other.destroyedBricks, 0, destroyedBricks, 0, other.destroyedCount);
+        destroyedCount = other.destroyedCount;
+        paddleX = other.paddleX;
+        turnsLeft = other.turnsLeft;
+        lastDestroyedBrick = other.lastDestroyedBrick;
+        resetDelay = other.resetDelay;
+        tick = other.tick;
+        bricks.copyFrom(other.bricks);
+    }
+
+    // Everything on the board the next step() depends on mixed into one long (the lockstep desync check, see
+    // LockstepSession). Not the Random, which the engine can't see into, LockstepSession adds the board's
+    // MatchRandom itself. Not for anything that has to be hard to forge
+    public long stateHash() {
+        long hash = mix(tick, Double.doubleToLongBits(paddleX));
+        hash = mix(hash, turnsLeft);
+        hash = mix(hash, resetDelay);
+        hash = mix(hash, ballCount);
+        for (int i = 0; i < ballCount; i++) {
+            hash = mix(hash, Double.doubleToLongBits(ballXs[i]));
+            hash = mix(hash, Double.doubleToLongBits(ballYs[i]));
+            hash = mix(hash, Double.doubleToLongBits(vxs[i]));
+            hash = mix(hash, Double.doubleToLongBits(vys[i]));
+        }
+        // The wall 64 bricks at a time
+        long alive = 0;
+        int count = bricks.getBrickCount();
+        for (int id = 0; id < count; id++) {
+            if (bricks.isAlive(id)) {
+                alive |= 1L << (id & 63);
+            }
+            if ((id & 63) == 63 || id == count - 1) {
+                hash = mix(hash, alive);
+                alive = 0;
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    // Independent copy of the wall as it is now, same layout
+    public BrickGrid copyBricks() {
+        return bricks.copy();
+    }
+
+
+    // ----------- GETTERS -----------------
+
+    public boolean isGameOver() {
+        return turnsLeft == 0 || bricks.getAliveCount() == 0;
+    }
+
+    public boolean isWon() {
+        return bricks.getAliveCount() == 0;
+    }
+
+    // Ball 0
+    public double getBallX() {
+        return ballXs[0];
+    }
+
+    public double getBallY() {
+        return ballYs[0];
+    }
+
+    public double getVx() {
+        return vxs[0];
+    }
+
+    public double getVy() {
+        return vys[0];
+    }
+
+    public int getBallCount() {
+        return ballCount;
+    }
+
+    public double getBallX(int i) {
+        return ballXs[i];
+    }
+
+    public double getBallY(int i) {
+        return ballYs[i];
+    }
+
+    // Where ball i was before the last step(), for drawing in between two ticks
+    public double getPreviousBallX(int i) {
+        return prevXs[i];
+    }
+
+    public double getPreviousBallY(int i) {
+        return prevYs[i];
+    }
+
+    public double getPaddleX() {
+        return paddleX;
+    }
+
+    // Ticks the ball still waits in the center after a miss, 0 while it moves
+    public int getResetDelay() {
+        return resetDelay;
+    }
+
+    public int getTurnsLeft() {
+        return turnsLeft;
+    }
+
+    public int getAliveBricks() {
+        return bricks.getAliveCount();
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    // Only meaningful right after a step() that returned EVENT_BRICK_DESTROYED. With more than one ball
+    // several bricks can go in the same tick, see getDestroyedCount()
+    public int getLastDestroyedBrick() {
+        return lastDestroyedBrick;
+    }
+
+    // Bricks destroyed during the last step()
+    public int getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    public int getDestroyedBrick(int k) {
+        return destroyedBricks[k];
+    }
+
+    public int getBrickCount() {
+        return bricks.getBrickCount();
+    }
+
+    public boolean isBrickAlive(int id) {
+        return bricks.isAlive(id);
+    }
+
+    public int getBrickRow(int id) {
+        return bricks.getRow(id);
+    }
+
+    public double getBrickX(int id) {
+        return bricks.getX(id);
+    }
+
+    public double getBrickY(int id) {
+        return bricks.getY(id);
+    }
+
+    // BRICK_WIDTH x BRICK_HEIGHT for the default wall, smaller for bigger ones
+    public double getBrickWidth() {
+        return bricks.getBrickWidth();
+    }
+
+    public double getBrickHeight() {
+        return bricks.getBrickHeight();
+    }
+}
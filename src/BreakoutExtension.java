@@ -1,32 +1,20 @@
 import acm.graphics.*;
 import acm.program.GraphicsProgram;
-import acm.util.MediaTools;
 import acm.util.RandomGenerator;
 
-import java.applet.AudioClip;
 import java.awt.*;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 
 public class BreakoutExtension extends GraphicsProgram {
 
-    public static final int DELAY = 7;
     public static final int APPLICATION_WIDTH = 400;
     public static final int APPLICATION_HEIGHT = 600;
     private static final int WIDTH = APPLICATION_WIDTH;
     private static final int HEIGHT = APPLICATION_HEIGHT;
-    private static final int PADDLE_WIDTH = 60;
-    private static final int PADDLE_HEIGHT = 10;
-    private static final int PADDLE_Y_OFFSET = 30;
-    private static final int NBRICKS_PER_ROW = 10;
-    private static final int NBRICK_ROWS = 10;
-    private static final int BRICK_SEP = 4;
-    private static final int BRICK_WIDTH =
-            (WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / NBRICKS_PER_ROW;
-    private static final int BRICK_HEIGHT = 8;
-    private static final int BALL_RADIUS = 10;
-    private static final int BRICK_Y_OFFSET = 70;
-    private static final int NTURNS = 3;
-    private static final int PADDLE_SENSITIVITY = 8;
+    private static final int PADDLE_WIDTH = BreakoutEngine.PADDLE_WIDTH;
+    private static final int PADDLE_HEIGHT = BreakoutEngine.PADDLE_HEIGHT;
+    private static final int BALL_RADIUS = BreakoutEngine.BALL_RADIUS;
     private static final int HEART_OFFSET = 10;
     private static final int HEART_GAP = 5;
     private static final int HEART_WIDTH = 30;
@@ -34,20 +22,38 @@ public class BreakoutExtension extends GraphicsProgram {
     private static final int START_BUTTON_HEIGHT = 50;
     private static final Color START_BUTTON_COLOR = Color.GREEN;
     private static final Color startButtonLabelText = Color.WHITE;
-
-    AudioClip bgMusic = MediaTools.loadAudioClip("background_music.au");
-    AudioClip destroySound = MediaTools.loadAudioClip("destroy.au");
-    AudioClip winSound = MediaTools.loadAudioClip("victory.au");
-    AudioClip loseSound = MediaTools.loadAudioClip("lose.au");
-    AudioClip paddleKickSound = MediaTools.loadAudioClip("kick.au");
-
+    // Built once, so the label that changes during the game never allocates (see GameLoop's alloc/tick)
+    private static final Font START_BUTTON_FONT = new Font("Serif", Font.PLAIN, 20);
+    private static final Font BRICKS_LEFT_FONT = new Font("Serif", Font.PLAIN, 17);
+    private static final Font MESSAGE_FONT = new Font("Serif", Font.PLAIN, 30);
+    // -Dbreakout.multiBall=true turns on the multi-ball power-up, every MULTI_BALL_BRICKS bricks MULTI_BALL_SPLIT more balls come out
+    public static final String MULTI_BALL_PROPERTY = "breakout.multiBall";
+    private static final int MULTI_BALL_BRICKS = 10;
+    private static final int MULTI_BALL_SPLIT = 2;
+    // -Dbreakout.balls=N starts with N balls, to see how many of them the game keeps up with
+    public static final String BALLS_PROPERTY = "breakout.balls";
+
+    // One mixer for every program, a file is only read the first time it plays (see Assets)
+    SoundMixer sounds = Assets.sounds();
+    int bgMusic = sounds.load("background_music.au");
+    int destroySound = sounds.load("destroy.au");
+    int winSound = sounds.load("victory.au");
+    int loseSound = sounds.load("lose.au");
+    int paddleKickSound = sounds.load("kick.au");
+
+    private BreakoutEngine engine;
+    private GameLoop loop;
     private GRect paddle;
-    private GOval ball;
-    private double vx, vy = 3.0;
+    // balls.get(i) draws the engine's ball i, there can be more GOvals than balls (hidden)
+    private final ArrayList<GOval> balls = new ArrayList<>();
+    private Color ballColor = Color.BLACK;
+    private final boolean multiBall = Boolean.getBoolean(MULTI_BALL_PROPERTY);
+    private int bricksUntilMultiBall = MULTI_BALL_BRICKS;
+    private BrickLayer bricks;
+    private GImage[] hearts;
     private RandomGenerator rgen = RandomGenerator.getInstance();
-    private double turnsCount = NTURNS;
-    private double aliveBricks = NBRICK_ROWS * NBRICKS_PER_ROW;
     private GLabel bricksLeft = null;
+    private String[] bricksLeftLabels;
     private boolean isDarkModeEnabled = true;
     private GImage switcher;
     private GRect startButton;
@@ -69,47 +75,106 @@ public class BreakoutExtension extends GraphicsProgram {
 
     // Setting all variables ready for the game
     private void initGame() {
+        loop = new GameLoop(GameLoop.configuredTickHz(GameLoop.DEFAULT_TICK_HZ), GameLoop.configuredRenderHz(), 0);
+        engine = new BreakoutEngine(rgen, BreakoutEngine.NBRICK_ROWS, BreakoutEngine.NBRICKS_PER_ROW, loop.getTickMillis());
+        int extraBalls = Integer.getInteger(BALLS_PROPERTY, 1) - 1;
+        if (extraBalls > 0) {
+            engine.spawnBalls(extraBalls);
+        }
         drawBricks();
-        setRandomVx();
         renderHearts();
         renderBricksLeft();
         renderThemeSwitcher(true);
         createPaddle();
-        createBall();
+        renderBalls(0);
         renderStartMenu();
     }
 
-    // Each *frame* happens here
+    // The engine ticks at a fixed rate and we draw what it says at the screen's rate (see GameLoop)
     private void gameLoop() {
-        bgMusic.loop();
-        while (turnsCount > 0 && aliveBricks > 0) {
-            moveBall();
-            checkCollisions();
-            pause(DELAY);
-        }
-        if (turnsCount == 0) {
-            handleGameLoss();
-        } else {
+        sounds.loop(bgMusic);
+        loop.run(new GameLoop.Game() {
+            public boolean isRunning() {
+                return !engine.isGameOver();
+            }
+
+            public void tick() {
+                renderEvents(engine.step(paddle.getX()));
+                if (multiBall) {
+                    checkMultiBall();
+                }
+            }
+
+            public void render(double alpha) {
+                renderBalls(alpha);
+            }
+
+            public void send() {
+            }
+        });
+        System.out.println("Game loop: " + loop.getStats());
+        System.out.println("Sound: " + sounds.getStats());
+        System.out.println("Assets: " + Assets.getStats());
+        if (engine.isWon()) {
             handleGameWin();
+        } else {
+            handleGameLoss();
+        }
+        for (GOval ball : balls) {
+            remove(ball);
         }
-        remove(ball);
     }
 
-    // DVD screensaver like animation, but if it touches the bottom of the screen we record it as a *missed ball*
-    private void moveBall() {
-        ball.move(vx, vy);
-        if (ball.getX() <= 0 || ball.getX() + BALL_RADIUS * 2 >= WIDTH) {
-            // ball was sticking to edges and had to use the absolute value of vx
-            if (ball.getX() <= 0) {
-                vx = Math.abs(vx);
-            } else {
-                vx = -Math.abs(vx);
+    // Power-up, counts the destroyed bricks down to the next split
+    private void checkMultiBall() {
+        bricksUntilMultiBall -= engine.getDestroyedCount();
+        if (bricksUntilMultiBall <= 0) {
+            engine.spawnBalls(MULTI_BALL_SPLIT);
+            bricksUntilMultiBall += MULTI_BALL_BRICKS;
+        }
+    }
+
+    // Sounds and GObjects that need to change because of what happened during the last tick
+    private void renderEvents(int events) {
+        if ((events & BreakoutEngine.EVENT_PADDLE_KICK) != 0) {
+            sounds.play(paddleKickSound);
+        }
+        if ((events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+            sounds.play(destroySound);
+            // More than one with more balls
+            for (int k = 0; k < engine.getDestroyedCount(); k++) {
+                bricks.eraseBrick(engine.getDestroyedBrick(k));
             }
+            bricksLeft.setLabel(bricksLeftLabels[engine.getAliveBricks()]);
         }
-        if (ball.getY() <= 0) {
-            vy = -vy;
-        } else if (ball.getY() + BALL_RADIUS * 2 >= HEIGHT) {
-            handleBallMiss();
+        if ((events & BreakoutEngine.EVENT_BALL_MISSED) != 0) {
+            remove(hearts[engine.getTurnsLeft()]);
+        }
+    }
+
+
+    // Between the previous and the current tick, except right after a miss where the ball jumps back to the center.
+    // GOvals get added when there are more balls than ever before, and hidden when there are fewer
+    private void renderBalls(double alpha) {
+        int count = engine.getBallCount();
+        while (balls.size() < count) {
+            balls.add(createBall());
+        }
+        boolean waiting = engine.getResetDelay() > 0;
+        for (int i = 0; i < balls.size(); i++) {
+            GOval ball = balls.get(i);
+            if (i >= count) {
+                ball.setVisible(false);
+                continue;
+            }
+            double x = engine.getBallX(i);
+            double y = engine.getBallY(i);
+            if (!waiting) {
+                x = engine.getPreviousBallX(i) + (x - engine.getPreviousBallX(i)) * alpha;
+                y = engine.getPreviousBallY(i) + (y - engine.getPreviousBallY(i)) * alpha;
+            }
+            ball.setLocation(x, y);
+            ball.setVisible(true);
         }
     }
 
@@ -118,56 +183,45 @@ public class BreakoutExtension extends GraphicsProgram {
         GAME INIT
      */
 
+    // hearts[i] is the heart that disappears when only i turns are left
     private void renderHearts() {
         double y = 0;
         double x = HEART_OFFSET;
 
-        for (int i = 0; i < turnsCount; i++) {
-            renderSingleHeart(x, y);
+        hearts = new GImage[engine.getTurnsLeft()];
+        for (int i = 0; i < hearts.length; i++) {
+            hearts[i] = renderSingleHeart(x, y);
             x += HEART_GAP + HEART_WIDTH;
         }
     }
 
-    private void renderSingleHeart(double x, double y) {
-        GImage heart = new GImage("./heart.png");
+    private GImage renderSingleHeart(double x, double y) {
+        GImage heart = new GImage(Assets.image("heart.png"));
         heart.setSize(HEART_WIDTH, HEART_WIDTH);
         add(heart, x, y);
         heart.sendToFront();
+        return heart;
     }
 
-    private void createBall() {
-        ball = new GOval(WIDTH / 2 - BALL_RADIUS, HEIGHT / 2 - BALL_RADIUS, BALL_RADIUS * 2, BALL_RADIUS * 2);
+    private GOval createBall() {
+        GOval ball = new GOval(engine.getBallX(), engine.getBallY(), BALL_RADIUS * 2, BALL_RADIUS * 2);
         ball.setFilled(true);
+        ball.setColor(ballColor);
         add(ball);
+        return ball;
     }
 
+    // The whole wall is one image (see BrickLayer), bricks get erased from it by the engine's brick id
     private void drawBricks() {
-        double startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
-        }
-    }
-
-    // just draws one row of bricks, self-explanatory, no more comments needed
-    private void drawBrickRow(Color color, double y) {
-        double x = (WIDTH - NBRICKS_PER_ROW * BRICK_WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / 2;
-        for (int j = 0; j < NBRICKS_PER_ROW; j++) {
-            drawBrick(color, x, y);
-            x += BRICK_WIDTH + BRICK_SEP;
+        bricks = new BrickLayer(engine, 0);
+        for (int id = 0; id < engine.getBrickCount(); id++) {
+            bricks.drawBrick(id, getBrickColor(engine.getBrickRow(id)));
         }
-    }
-
-    private void drawBrick(Color color, double x, double y) {
-        GRect brick = new GRect(x, y, BRICK_WIDTH, BRICK_HEIGHT);
-        brick.setFilled(true);
-        brick.setFillColor(color);
-        brick.setColor(color);
-        add(brick);
+        add(bricks);
     }
 
     private void createPaddle() {
-        paddle = new GRect((WIDTH - PADDLE_WIDTH) / 2, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT, PADDLE_WIDTH, PADDLE_HEIGHT);
+        paddle = new GRect(engine.getPaddleX(), BreakoutEngine.PADDLE_Y, PADDLE_WIDTH, PADDLE_HEIGHT);
         paddle.setFilled(true);
         add(paddle);
     }
@@ -182,7 +236,7 @@ public class BreakoutExtension extends GraphicsProgram {
     public void mouseMoved(MouseEvent e) {
         double x = e.getX() - PADDLE_WIDTH / 2;
         double paddleY = paddle.getY();
-        if (gameStarted && x >= 0 && x + PADDLE_WIDTH <= WIDTH && !isGameOver()) {
+        if (gameStarted && x >= 0 && x + PADDLE_WIDTH <= WIDTH && !engine.isGameOver()) {
             paddle.setLocation(x, paddleY);
         }
     }
@@ -201,35 +255,16 @@ public class BreakoutExtension extends GraphicsProgram {
         }
     }
 
-    // If the paddle misses the ball... RIP
-    private void handleBallMiss() {
-        GObject heart = getCurrentHeart();
-        remove(heart);
-        turnsCount--;
-        if (turnsCount > 0) {
-            resetBall();
-        }
-
-    }
-
-    // We estimate the VX of the ball based on how far it was from the center of the paddle (we can try different values of sensitivity)
-    private void handlePaddleKick() {
-        paddleKickSound.play();
-        vy = -Math.abs(vy);
-        double paddleCenter = paddle.getX() + PADDLE_WIDTH / 2;
-        vx = (ball.getX() + BALL_RADIUS - paddleCenter) / PADDLE_SENSITIVITY;
-    }
-
     private void handleGameLoss() {
-        bgMusic.stop();
-        loseSound.play();
-        renderTextInCenter("You Lost :(((", Color.RED, 30);
+        sounds.stop(bgMusic);
+        sounds.play(loseSound);
+        renderTextInCenter("You Lost :(((", Color.RED);
     }
 
     private void handleGameWin() {
-        bgMusic.stop();
-        winSound.play();
-        renderTextInCenter("You WONN :))", Color.GREEN, 30);
+        sounds.stop(bgMusic);
+        sounds.play(winSound);
+        renderTextInCenter("You WONN :))", Color.GREEN);
     }
 
 
@@ -237,22 +272,6 @@ public class BreakoutExtension extends GraphicsProgram {
         HELPER FUNCTIONS
      */
 
-    private boolean isGameOver() {
-        return turnsCount == 0 || aliveBricks == 0;
-    }
-
-    // Reset the ball to center
-    private void resetBall() {
-        ball.setLocation(WIDTH / 2 - BALL_RADIUS, HEIGHT / 2 - BALL_RADIUS);
-        vy = Math.abs(vy);
-        setRandomVx();
-        pause(2000);
-    }
-
-    private void setRandomVx() {
-        vx = rgen.nextDouble(1.0, 3.0) * (rgen.nextBoolean(0.5) ? -1 : 1);
-    }
-
     private Color getBrickColor(int row) {
         if (row >= 8) {
             return Color.CYAN;
@@ -267,53 +286,9 @@ public class BreakoutExtension extends GraphicsProgram {
         }
     }
 
-    private void checkCollisions() {
-        GObject collider = getBallCollidingObject();
-        if (collider == paddle) {
-            handlePaddleKick();
-        } else if (collider instanceof GRect) {
-            destroySound.play();
-            remove(collider);
-            aliveBricks--;
-            bricksLeft.setLabel("Bricks : " + (int) aliveBricks);
-            vy = -vy;
-        }
-    }
-
-    // Returns either NULL or object the ball is colliding
-    private GObject getBallCollidingObject() {
-        double leftX = ball.getX();
-        double rightX = leftX + BALL_RADIUS * 2;
-        double topY = ball.getY();
-        double bottomY = topY + BALL_RADIUS * 2;
-
-        // Checking bottom left corner of the collider
-        GObject collider = getElementAt(leftX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking bottom right of the collider
-        collider = getElementAt(rightX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking top left corner of the collider
-        collider = getElementAt(leftX, topY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Or the top right corner, no need to check if its null cause if its null we already checked other corners so no object are being collided
-        collider = getElementAt(rightX, topY);
-        return collider;
-    }
-
-
-    private void renderTextInCenter(String str, Color color, int fontSize) {
+    private void renderTextInCenter(String str, Color color) {
         GLabel text = new GLabel(str);
-        text.setFont(new Font("Serif", Font.PLAIN, fontSize));
+        text.setFont(MESSAGE_FONT);
         text.setColor(color);
         double x = (WIDTH - text.getWidth()) / 2;
         double y = (HEIGHT - text.getAscent()) / 2;
@@ -322,8 +297,13 @@ public class BreakoutExtension extends GraphicsProgram {
 
 
     private void renderBricksLeft() {
-        bricksLeft = new GLabel("Bricks: " + (int) aliveBricks);
-        bricksLeft.setFont(new Font("Serif", Font.PLAIN, 17));
+        // bricksLeftLabels[n] is the text for n bricks left
+        bricksLeftLabels = new String[engine.getBrickCount() + 1];
+        for (int n = 0; n < bricksLeftLabels.length; n++) {
+            bricksLeftLabels[n] = "Bricks : " + n;
+        }
+        bricksLeft = new GLabel("Bricks: " + engine.getAliveBricks());
+        bricksLeft.setFont(BRICKS_LEFT_FONT);
         bricksLeft.setColor(Color.ORANGE);
         bricksLeft.sendToFront();
         double x = WIDTH - bricksLeft.getWidth();
@@ -331,14 +311,8 @@ public class BreakoutExtension extends GraphicsProgram {
         add(bricksLeft, x, y);
     }
 
-    private GObject getCurrentHeart() {
-        double x = HEART_OFFSET + (turnsCount - 1) * (HEART_WIDTH + HEART_GAP) + HEART_WIDTH / 2;
-        GObject heart = getElementAt(x, HEART_WIDTH / 2);
-        return heart;
-    }
-
     private void renderThemeSwitcher(boolean darkMode) {
-        switcher = darkMode ? new GImage("./light.png") : new GImage("./dark.png");
+        switcher = new GImage(Assets.image(darkMode ? "light.png" : "dark.png"));
         switcher.setSize(30, 20);
         switcher.sendToFront();
         double x = bricksLeft.getX() - switcher.getWidth() - 10;
@@ -351,7 +325,10 @@ public class BreakoutExtension extends GraphicsProgram {
         renderThemeSwitcher(isDarkModeEnabled);
         Color secondaryColor = isDarkModeEnabled ? Color.BLACK : Color.WHITE;
         Color primaryColor = isDarkModeEnabled ? Color.WHITE : Color.BLACK;
-        ball.setColor(secondaryColor);
+        ballColor = secondaryColor;
+        for (GOval ball : balls) {
+            ball.setColor(secondaryColor);
+        }
         paddle.setColor(secondaryColor);
         setBackground(primaryColor);
     }
@@ -361,7 +338,7 @@ public class BreakoutExtension extends GraphicsProgram {
         startButton.setFilled(true);
         startButton.setColor(START_BUTTON_COLOR);
         startButtonLabel = new GLabel(startButtonText);
-        startButtonLabel.setFont(new Font("Serif", Font.PLAIN, 20));
+        startButtonLabel.setFont(START_BUTTON_FONT);
         startButtonLabel.setColor(startButtonLabelText);
         double startButtonX = (WIDTH - startButton.getWidth()) / 2;
         double startButtonY = (HEIGHT - startButton.getHeight()) / 2;
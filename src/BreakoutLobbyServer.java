@@ -0,0 +1,488 @@
+/*
+ * Filename: BreakoutLobbyServer.java
+ * Description: Headless server that hosts many BreakoutOnline matches at once, without any window.
+ *
+ * Instructions:
+ * - Run it with: java BreakoutLobbyServer [port] [eventLoops]  (defaults to 6969 and one loop per core)
+ * - Point every BreakoutClient's ADDRESS at this machine. Clients are paired in the order they connect,
+ *   each pair gets the same handshake, countdown and game BreakoutServer would run, and then plays against each other.
+ *
+ * Note:
+ * Everything is non-blocking NIO. One acceptor thread takes new connections and puts them in the lobby,
+ * every pair of players becomes a Match that lives on one of a few event loop threads (Selector + ByteBuffers),
+ * so there are no threads per connection and one JVM can host thousands of games.
+ * During the game the event loop also runs the match itself (BreakoutMatch, one tick every BreakoutEngine.TICK_MILLIS),
+ * reading the paddle inputs the clients send and writing both boards back to them. If a player leaves before
+ * the game started, the other one goes back to the lobby and waits for someone else (BreakoutClient just
+ * shows every countdown message until the game start comes, so starting the countdown over is fine).
+ * What the clients send is decoded right out of the player's read buffer (see MessageRegistry), a frame that only
+ * arrived partly waits there for the rest.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BreakoutLobbyServer {
+
+    private static final int PORT = 6969;
+    private static final int BACKLOG = 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int COUNTDOWN_FROM = 3;
+    private static final long COUNTDOWN_STEP_NANOS = 1000L * 1000 * 1000;
+    private static final long TICK_NANOS = BreakoutEngine.TICK_MILLIS * 1000L * 1000;
+    // If an event loop falls further behind than this, the match slows down instead of running a burst of ticks
+    private static final int MAX_CATCH_UP_TICKS = 10;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private Player waiting = null;
+
+    // Stats
+    private final AtomicLong acceptedPlayers = new AtomicLong();
+    private final AtomicLong startedMatches = new AtomicLong();
+    private final AtomicInteger activeMatches = new AtomicInteger();
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        int loopCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        new BreakoutLobbyServer(port, loopCount).run();
+    }
+
+    public BreakoutLobbyServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    // Starts the event loops and accepts connections on the calling thread, forever
+    public void run() throws IOException {
+        for (EventLoop loop : loops) {
+            Thread thread = new Thread(loop, "breakout-loop-" + loop.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port), BACKLOG);
+        serverChannel.configureBlocking(false);
+        Selector acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        System.out.println("Lobby listening on port " + port + " with " + loops.length + " event loops");
+
+        while (true) {
+            acceptSelector.select();
+            acceptSelector.selectedKeys().clear();
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                acceptedPlayers.incrementAndGet();
+                join(new Player(channel));
+            }
+        }
+    }
+
+
+    // ----------- LOBBY -----------------
+
+    // Pairs the player with whoever is waiting, or makes them wait. Called from the acceptor and from event loops
+    private synchronized void join(Player player) {
+        if (waiting == null || !waiting.channel.isOpen()) {
+            waiting = player;
+            return;
+        }
+        Match match = new Match(waiting, player);
+        waiting = null;
+        startedMatches.incrementAndGet();
+        activeMatches.incrementAndGet();
+        loops[Math.abs(nextLoop.getAndIncrement() % loops.length)].add(match);
+    }
+
+    public long getAcceptedPlayers() {
+        return acceptedPlayers.get();
+    }
+
+    public long getStartedMatches() {
+        return startedMatches.get();
+    }
+
+    public int getActiveMatches() {
+        return activeMatches.get();
+    }
+
+
+    // ----------- EVENT LOOP -----------------
+
+    private class EventLoop implements Runnable {
+
+        private final int index;
+        private final Selector selector;
+        private final Queue<Match> newMatches = new ConcurrentLinkedQueue<>();
+        private final List<Match> matches = new ArrayList<>();
+        private final List<Player> backToLobby = new ArrayList<>();
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        // Any thread, the match gets registered on the next loop iteration
+        void add(Match match) {
+            newMatches.add(match);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(millisUntilNextDeadline());
+                    registerNewMatches();
+                    processKeys();
+                    tickMatches();
+                    returnPlayersToLobby();
+                } catch (IOException e) {
+                    System.out.println("Event loop " + index + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Next countdown number or game tick of any match on this loop
+        private long millisUntilNextDeadline() {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            for (Match match : matches) {
+                if (match.isCountingDown()) {
+                    wait = Math.min(wait, match.nextCountdownAt - now);
+                } else if (match.isRunning()) {
+                    wait = Math.min(wait, match.nextTickAt - now);
+                }
+            }
+            if (wait == Long.MAX_VALUE) {
+                return 0;
+            }
+            // select(0) would block forever
+            return Math.max(1, wait / 1000000);
+        }
+
+        private void registerNewMatches() {
+            Match match;
+            while ((match = newMatches.poll()) != null) {
+                try {
+                    match.start(selector);
+                    matches.add(match);
+                } catch (IOException e) {
+                    endMatch(match);
+                }
+            }
+        }
+
+        private void processKeys() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Player player = (Player) key.attachment();
+                Match match = player.match;
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        match.flush(player);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        match.read(player);
+                    }
+                } catch (IOException e) {
+                    endMatch(match);
+                }
+            }
+        }
+
+        private void tickMatches() {
+            long now = System.nanoTime();
+            for (int i = 0; i < matches.size(); i++) {
+                Match match = matches.get(i);
+                try {
+                    if (match.isCountingDown() && now >= match.nextCountdownAt) {
+                        match.countdown(now);
+                    } else if (match.isRunning() && now >= match.nextTickAt) {
+                        match.tick(now);
+                    }
+                } catch (IOException e) {
+                    endMatch(match);
+                    // endMatch() removed it from the list
+                    i--;
+                }
+            }
+        }
+
+        // A player that left before the game started doesn't take the opponent down with them
+        private void endMatch(Match match) {
+            if (!matches.remove(match) && match.ended) {
+                return;
+            }
+            match.ended = true;
+            activeMatches.decrementAndGet();
+            for (Player player : match.players) {
+                if (!match.playing && player.channel.isOpen() && !player.left) {
+                    if (player.key != null) {
+                        player.key.cancel();
+                    }
+                    backToLobby.add(player);
+                } else {
+                    closeQuietly(player);
+                }
+            }
+        }
+
+        private void returnPlayersToLobby() throws IOException {
+            if (backToLobby.isEmpty()) {
+                return;
+            }
+            // Flushes the cancelled keys so the channels can be registered again (maybe even on this selector)
+            selector.selectNow();
+            for (Player player : backToLobby) {
+                player.reset();
+                join(player);
+            }
+            backToLobby.clear();
+        }
+    }
+
+
+    // ----------- MATCH -----------------
+
+    private static class Match {
+
+        private final Player[] players;
+        private final BreakoutMatch game = new BreakoutMatch(MatchRandom.newSeed());
+        private boolean countdownStarted = false;
+        private boolean playing = false;
+        private boolean ended = false;
+        private int countdown = COUNTDOWN_FROM;
+        private long nextCountdownAt;
+        private long nextTickAt;
+
+        Match(Player first, Player second) {
+            this.players = new Player[]{first, second};
+            first.opponent = second;
+            second.opponent = first;
+            first.match = this;
+            second.match = this;
+            first.index = 0;
+            second.index = 1;
+        }
+
+        void start(Selector selector) throws IOException {
+            for (Player player : players) {
+                try {
+                    player.key = player.channel.register(selector, SelectionKey.OP_READ, player);
+                } catch (IOException e) {
+                    player.left = true;
+                    throw e;
+                }
+                if (!player.handshakeSent) {
+                    player.out.put((byte) Protocol.VERSION);
+                    player.handshakeSent = true;
+                    flush(player);
+                }
+            }
+            startCountdownIfReady();
+        }
+
+        boolean isCountingDown() {
+            return countdownStarted && !playing && !ended;
+        }
+
+        boolean isRunning() {
+            return playing && !ended && !game.isOver();
+        }
+
+        private void startCountdownIfReady() {
+            if (!countdownStarted && players[0].handshakeReceived && players[1].handshakeReceived) {
+                countdownStarted = true;
+                nextCountdownAt = System.nanoTime();
+            }
+        }
+
+        // Same sequence BreakoutServer.startCountdown() sends: 3, 2, 1, 0 one second apart, then the game start
+        void countdown(long now) throws IOException {
+            for (Player player : players) {
+                if (countdown >= 0) {
+                    Protocol.writeCountdown(player.data, countdown);
+                } else {
+                    Protocol.writeGameStarted(player.data, game.getSeed(), player.index, Protocol.MODE_SERVER);
+                }
+                flush(player);
+            }
+            if (countdown < 0) {
+                playing = true;
+                nextTickAt = now + TICK_NANOS;
+            }
+            countdown--;
+            nextCountdownAt = now + COUNTDOWN_STEP_NANOS;
+        }
+
+        // Runs the ticks that are due and sends every one of them to both players, like BreakoutServer.gameLoop()
+        void tick(long now) throws IOException {
+            int ticks = 0;
+            while (now >= nextTickAt && !game.isOver() && ticks < MAX_CATCH_UP_TICKS) {
+                game.step();
+                for (Player player : players) {
+                    writeUpdate(player);
+                }
+                nextTickAt += TICK_NANOS;
+                ticks++;
+            }
+            if (now >= nextTickAt) {
+                nextTickAt = now + TICK_NANOS;
+            }
+            for (Player player : players) {
+                flush(player);
+            }
+        }
+
+        // A client that hasn't read a whole buffer worth of ticks isn't coming back
+        private void writeUpdate(Player player) throws IOException {
+            try {
+                game.writeUpdate(player.data, player.index);
+            } catch (BufferOverflowException e) {
+                player.left = true;
+                throw new IOException("Player is too slow");
+            }
+        }
+
+        // Whoever's channel fails is marked as left, so only the other player goes back to the lobby
+        void read(Player player) throws IOException {
+            int read;
+            try {
+                read = player.channel.read(player.in);
+            } catch (IOException e) {
+                player.left = true;
+                throw e;
+            }
+            if (read < 0) {
+                if (game.isOver() && player.opponent.channel.isOpen()) {
+                    // This one got its game end, the opponent might still be reading theirs
+                    closeQuietly(player);
+                    return;
+                }
+                player.left = true;
+                throw new ClosedChannelException();
+            }
+            player.in.flip();
+            if (!player.handshakeReceived && player.in.hasRemaining()) {
+                int version = player.in.get() & 0xFF;
+                if (version != Protocol.VERSION) {
+                    player.left = true;
+                    throw new IOException("Protocol version mismatch, got " + version);
+                }
+                player.handshakeReceived = true;
+                startCountdownIfReady();
+            }
+            // Only once the handshake is in, the frames come after it
+            if (player.handshakeReceived) {
+                try {
+                    player.registry.dispatch(player.in);
+                } catch (IOException e) {
+                    player.left = true;
+                    throw e;
+                }
+            }
+            player.in.compact();
+        }
+
+        void flush(Player player) throws IOException {
+            // Most ticks have nothing to send now that snapshots only go out every few ticks
+            if (player.outputShutdown || (player.out.position() == 0 && !game.isOver())) {
+                return;
+            }
+            player.out.flip();
+            try {
+                player.channel.write(player.out);
+                // The game end went out, the client closes when it reads it and read() sees that
+                if (game.isOver() && !player.out.hasRemaining()) {
+                    player.channel.shutdownOutput();
+                    player.outputShutdown = true;
+                }
+            } catch (IOException e) {
+                player.left = true;
+                throw e;
+            }
+            boolean leftover = player.out.hasRemaining();
+            player.out.compact();
+            setInterest(player, SelectionKey.OP_WRITE, leftover);
+        }
+
+        private void setInterest(Player player, int op, boolean on) {
+            if (player.key == null || !player.key.isValid()) {
+                return;
+            }
+            int ops = player.key.interestOps();
+            player.key.interestOps(on ? ops | op : ops & ~op);
+        }
+    }
+
+
+    // ----------- PLAYER -----------------
+
+    private static class Player {
+
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        // Writes straight into out, for BreakoutMatch.writeUpdate() and the countdown
+        private final DataOutputStream data = new DataOutputStream(new ByteBufferOutput(out));
+        private SelectionKey key;
+        private Match match;
+        private Player opponent;
+        private int index;
+        private boolean handshakeSent = false;
+        private boolean handshakeReceived = false;
+        private boolean outputShutdown = false;
+        private boolean left = false;
+        // Clients only send protocol 3 (paddle x of a few ticks), to whatever match they're in
+        private final MessageRegistry registry = new MessageRegistry().on(Protocol.INPUT, new Protocol.Inputs(), inputs -> {
+            for (int i = 0; i < inputs.getCount(); i++) {
+                match.game.addInput(index, inputs.getFirstSeq() + i, inputs.getPaddleX(i));
+            }
+            return true;
+        });
+
+        Player(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Going back to the lobby, keeps the handshake flags and anything the client already sent
+        void reset() {
+            key = null;
+            match = null;
+            opponent = null;
+        }
+    }
+
+    private static void closeQuietly(Player player) {
+        try {
+            player.channel.close();
+        } catch (IOException e) {
+            // Nothing to do, we're closing anyway
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Filename: BreakoutMatch.java
+ * Description: Headless, authoritative simulation of one BreakoutOnline match, both players' boards on the server.
+ *
+ * Note:
+ * Clients used to run their own game and tell each other which bricks they destroyed, and when a message
+ * got lost between the coordinates the two screens disagreed forever. Now the server runs one BreakoutEngine
+ * per player, the clients only send their paddle x (protocol 3), and each player gets both boards (protocol 0)
+ * and what happened on them by brick id (protocol 2). Clients just draw that.
+ *
+ * Inputs and snapshots only go out every Protocol.SEND_INTERVAL_TICKS ticks. A client sends the paddle x of
+ * every tick it predicted, numbered, and they wait in a queue here so every tick applies exactly one of them,
+ * the snapshot then says which one was applied last (see PredictedBoard). Events still go out the tick they happen.
+ *
+ * Player 0 wins if both games end in the same tick. BreakoutServer is player 0 itself and sends to the client
+ * through its NetworkWriter, BreakoutLobbyServer and BreakoutThreadedServer use writeUpdate() for both players.
+ */
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class BreakoutMatch {
+
+    public static final int PLAYERS = 2;
+    public static final int NO_WINNER = -1;
+    // A client further ahead than this gets its oldest inputs dropped, otherwise its lag would only grow.
+    // About half a second, so a BreakoutClient sending at a low -Dbreakout.sendHz doesn't lose a whole batch
+    private static final int MAX_QUEUED_INPUTS = 64;
+
+    private final long seed;
+    private final MatchRandom[] randoms = new MatchRandom[PLAYERS];
+    private final BreakoutEngine[] engines = new BreakoutEngine[PLAYERS];
+    private final InputQueue[] inputs = new InputQueue[PLAYERS];
+    private final double[] paddleInputs = new double[PLAYERS];
+    private final int[] inputAcks = new int[PLAYERS];
+    private final int[] events = new int[PLAYERS];
+    // codecs[viewer][board], every player keeps its own delta state for both boards
+    private final StateFrameCodec[][] codecs = new StateFrameCodec[PLAYERS][PLAYERS];
+    private final int[] frame = new int[StateFrameCodec.FIELD_COUNT];
+    private long tick = 0;
+    private int winner = NO_WINNER;
+
+    // Every board gets its own stream of the seed (see MatchRandom), so either one plays the same without the other
+    public BreakoutMatch(long seed) {
+        this.seed = seed;
+        for (int player = 0; player < PLAYERS; player++) {
+            randoms[player] = new MatchRandom(MatchRandom.boardSeed(seed, player));
+            engines[player] = new BreakoutEngine(randoms[player]);
+            inputs[player] = new InputQueue();
+            paddleInputs[player] = engines[player].getPaddleX();
+            codecs[player][Protocol.BOARD_YOURS] = new StateFrameCodec(Protocol.BOARD_YOURS);
+            codecs[player][Protocol.BOARD_OPPONENT] = new StateFrameCodec(Protocol.BOARD_OPPONENT);
+        }
+    }
+
+    // For a local player (the BreakoutServer host), used from the next step() on
+    public void setPaddleInput(int player, double paddleX) {
+        paddleInputs[player] = paddleX;
+    }
+
+    // For a remote player, any thread. Every step() applies one of these in order
+    public void addInput(int player, int seq, double paddleX) {
+        inputs[player].add(seq, paddleX);
+    }
+
+    // One tick for both boards
+    public void step() {
+        if (isOver()) {
+            return;
+        }
+        tick++;
+        for (int player = 0; player < PLAYERS; player++) {
+            // Nothing queued means the client is late, it keeps the last paddle x it sent
+            inputs[player].poll(this, player);
+            events[player] = engines[player].step(paddleInputs[player]);
+        }
+        for (int player = 0; player < PLAYERS; player++) {
+            if (engines[player].isWon()) {
+                winner = player;
+                return;
+            }
+        }
+        // Backwards so that if both ran out of turns, player 1 is the one who lost
+        for (int player = PLAYERS - 1; player >= 0; player--) {
+            if (engines[player].isGameOver()) {
+                winner = opponentOf(player);
+                return;
+            }
+        }
+    }
+
+    // Both boards where other's are right now, for replay keyframes (see ReplayReader). Queued inputs and what
+    // was already sent aren't copied, a replay doesn't have either
+    public void copyFrom(BreakoutMatch other) {
+        for (int player = 0; player < PLAYERS; player++) {
+            engines[player].copyFrom(other.engines[player]);
+            paddleInputs[player] = other.paddleInputs[player];
+            inputAcks[player] = other.inputAcks[player];
+            events[player] = other.events[player];
+        }
+        tick = other.tick;
+        winner = other.winner;
+    }
+
+    // Everything viewer needs to know about the last tick, call it once per step() and player
+    public void writeUpdate(DataOutput out, int viewer) throws IOException {
+        int opponent = opponentOf(viewer);
+        writeEvents(out, Protocol.BOARD_YOURS, viewer);
+        writeEvents(out, Protocol.BOARD_OPPONENT, opponent);
+        if (isSnapshotTick()) {
+            writeState(out, viewer, Protocol.BOARD_YOURS, viewer);
+            writeState(out, viewer, Protocol.BOARD_OPPONENT, opponent);
+        }
+        if (isOver()) {
+            Protocol.writeGameEnd(out, winner == viewer);
+        }
+    }
+
+    private void writeEvents(DataOutput out, int board, int player) throws IOException {
+        BreakoutEngine engine = engines[player];
+        Protocol.writeBoardEvents(out, board, events[player], engine.getLastDestroyedBrick(), engine.getTurnsLeft());
+    }
+
+    // Nobody predicts the opponent's board, so its ack stays 0 and never costs a byte
+    private void writeState(DataOutput out, int viewer, int board, int player) throws IOException {
+        StateFrameCodec.capture(frame, tick, engines[player], board == Protocol.BOARD_YOURS ? inputAcks[player] : 0);
+        codecs[viewer][board].write(out, frame);
+    }
+
+    // Snapshots go out every SEND_INTERVAL_TICKS, and once more with the final state
+    public boolean isSnapshotTick() {
+        return tick % Protocol.SEND_INTERVAL_TICKS == 0 || isOver();
+    }
+
+    public static int opponentOf(int player) {
+        return 1 - player;
+    }
+
+    public boolean isOver() {
+        return winner != NO_WINNER;
+    }
+
+    public int getWinner() {
+        return winner;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public BreakoutEngine getEngine(int player) {
+        return engines[player];
+    }
+
+    // What the clients get at the end of the countdown, to play any board of the match themselves
+    public long getSeed() {
+        return seed;
+    }
+
+    // The player's board's stream, for replay keyframes (see ReplayReader)
+    public MatchRandom getRandom(int player) {
+        return randoms[player];
+    }
+
+    // The paddle x the last step() used for the player, what a replay has to give it (see ReplayWriter)
+    public double getPaddleInput(int player) {
+        return paddleInputs[player];
+    }
+
+    // Sequence number of the last input step() applied for the player, 0 before the first one
+    public int getInputAck(int player) {
+        return inputAcks[player];
+    }
+
+    // What happened on the player's board during the last step(), BreakoutEngine EVENT_* bits
+    public int getEvents(int player) {
+        return events[player];
+    }
+
+
+    // ----------- INPUTS -----------------
+
+    // Ring buffer of the inputs a client sent that no tick used yet, filled by whatever thread reads the socket
+    private static class InputQueue {
+
+        private final int[] seqs = new int[MAX_QUEUED_INPUTS];
+        private final double[] paddleXs = new double[MAX_QUEUED_INPUTS];
+        private int head = 0;
+        private int size = 0;
+        private int lastSeq = 0;
+
+        synchronized void add(int seq, double paddleX) {
+            // Duplicates and old ones are ignored
+            if (seq <= lastSeq) {
+                return;
+            }
+            lastSeq = seq;
+            if (size == MAX_QUEUED_INPUTS) {
+                head = (head + 1) % MAX_QUEUED_INPUTS;
+                size--;
+            }
+            int tail = (head + size) % MAX_QUEUED_INPUTS;
+            seqs[tail] = seq;
+            paddleXs[tail] = paddleX;
+            size++;
+        }
+
+        synchronized void poll(BreakoutMatch match, int player) {
+            if (size == 0) {
+                return;
+            }
+            match.paddleInputs[player] = paddleXs[head];
+            match.inputAcks[player] = seqs[head];
+            head = (head + 1) % MAX_QUEUED_INPUTS;
+            size--;
+        }
+    }
+}
@@ -10,57 +10,50 @@
  *
  * Note:
  *
- * The server manages the game state (countdown and when to start the game), there might be some lags and bugs, but it was fun thing to work on.
+ * The server manages the whole game state (countdown, when to start the game, and both players' boards, see BreakoutMatch),
+ * the client only sends its paddle. There might be some lags and bugs, but it was fun thing to work on.
+ * With -Dbreakout.lockstep=true both sides play both boards instead and only send each other their paddle (see LockstepSession).
+ * With -Dbreakout.udp=true the snapshots go as datagrams once the client gets them, the rest stays on TCP (see DatagramStateSender).
  * There may be tons of ways to refactor the code better way, but I had enough of it
  *
  * took some examples from geeksforgeeks (https://www.geeksforgeeks.org/socket-programming-in-java)
  * audios from https://pixabay.com/sound-effects
  *
  * Known Bugs:
- * - bricks destroyed by the opponent appear correctly on their screen but do not update on this player's screen.
- *   This causes the ball to appear as though it passes through an intact brick, even though it has already been destroyed.
+ * - (fixed) bricks destroyed by the opponent appeared correctly on their screen but did not update on this player's screen,
+ *   so the ball seemed to pass through intact bricks. Both boards are simulated here now and the client gets brick ids.
  * (Deadline :(( )
  */
 
 import acm.graphics.*;
 import acm.program.GraphicsProgram;
-import acm.util.MediaTools;
-import acm.util.RandomGenerator;
 
-import java.applet.AudioClip;
 import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Future;
 
 public class BreakoutServer extends GraphicsProgram {
 
     private static final int PORT = 6969;
 
+    // Player numbers in the BreakoutMatch
+    private static final int HOST = 0;
+    private static final int CLIENT = 1;
 
-    public static final int DELAY = 7;
     public static final int SEPARATOR_WIDTH = 300;
     private static final int WIDTH = 400;
     private static final int HEIGHT = 600;
     public static final int APPLICATION_WIDTH = WIDTH * 2 + SEPARATOR_WIDTH;
     public static final int APPLICATION_HEIGHT = 600;
-    private static final int PADDLE_WIDTH = 60;
-    private static final int PADDLE_HEIGHT = 10;
-    private static final int PADDLE_Y_OFFSET = 30;
-    private static final int NBRICKS_PER_ROW = 10;
-    private static final int NBRICK_ROWS = 10;
-    private static final int BRICK_SEP = 4;
-    private static final int BRICK_WIDTH =
-            (WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / NBRICKS_PER_ROW;
-    private static final int BRICK_HEIGHT = 8;
-    private static final int BALL_RADIUS = 10;
-    private static final int BRICK_Y_OFFSET = 70;
-    private static final int NTURNS = 3;
-    private static final int PADDLE_SENSITIVITY = 8;
+    private static final int PADDLE_WIDTH = BreakoutEngine.PADDLE_WIDTH;
+    private static final int PADDLE_HEIGHT = BreakoutEngine.PADDLE_HEIGHT;
+    private static final int PADDLE_Y_OFFSET = BreakoutEngine.PADDLE_Y_OFFSET;
+    private static final int BALL_RADIUS = BreakoutEngine.BALL_RADIUS;
     private static final int HEART_OFFSET = 10;
     private static final int HEART_GAP = 5;
     private static final int HEART_WIDTH = 30;
@@ -68,32 +61,55 @@ public class BreakoutServer extends GraphicsProgram {
     private static final int START_BUTTON_HEIGHT = 50;
     private static final Color START_BUTTON_COLOR = Color.GREEN;
     private static final Color startButtonLabelText = Color.WHITE;
+    // Built once, so the labels that change during the game never allocate (see GameLoop's alloc/tick)
+    private static final Font START_BUTTON_FONT = new Font("Serif", Font.PLAIN, 20);
+    private static final Font BRICKS_LEFT_FONT = new Font("Serif", Font.PLAIN, 17);
+    private static final Font COUNTER_FONT = new Font("serif", Font.PLAIN, 25);
+    private static final Font MESSAGE_FONT = new Font("Serif", Font.PLAIN, 30);
+    private static final String[] COUNTDOWN_LABELS = {"0", "1", "2", "3"};
 
 
     // Audio
-    AudioClip bgMusic = MediaTools.loadAudioClip("background_music.au");
-    AudioClip destroySound = MediaTools.loadAudioClip("destroy.au");
-    AudioClip winSound = MediaTools.loadAudioClip("victory.au");
-    AudioClip loseSound = MediaTools.loadAudioClip("lose.au");
-    AudioClip paddleKickSound = MediaTools.loadAudioClip("kick.au");
-    AudioClip countdownSound = MediaTools.loadAudioClip("countdown.au");
-
-
+    // One mixer for every program, a file is only read the first time it plays (see Assets)
+    SoundMixer sounds = Assets.sounds();
+    int bgMusic = sounds.load("background_music.au");
+    int destroySound = sounds.load("destroy.au");
+    int winSound = sounds.load("victory.au");
+    int loseSound = sounds.load("lose.au");
+    int paddleKickSound = sounds.load("kick.au");
+    int countdownSound = sounds.load("countdown.au");
+
+
+    private BreakoutMatch match;
+    // The match has to tick at the protocol rate, drawing and snapshots can go at any rate (-Dbreakout.renderHz/sendHz)
+    private final GameLoop loop = new GameLoop(GameLoop.DEFAULT_TICK_HZ, GameLoop.configuredRenderHz(), GameLoop.configuredSendHz(Protocol.DEFAULT_SEND_HZ));
+    private BreakoutEngine engine;
+    private BreakoutEngine clientEngine;
     private GRect paddle;
     private GRect clientPaddle;
     private GOval ball;
     private GOval clientBall;
-    private double vx, vy = 3.0;
-    private final RandomGenerator rgen = RandomGenerator.getInstance();
-    private double turnsCount = NTURNS;
-    private double aliveBricks = NBRICK_ROWS * NBRICKS_PER_ROW;
+    private BrickLayer bricks;
+    private BrickLayer clientBricks;
+    private GImage[] hearts;
+    // The client gets it at the end of the countdown, and a recording (-Dbreakout.replay=file) starts from it (see MatchRandom)
+    private final long seed = MatchRandom.newSeed();
+    private ReplayWriter replay;
+    // Set with -Dbreakout.lockstep=true, the client plays both boards too and only inputs go back and forth
+    private LockstepSession lockstep;
+    private final double[] lockstepInput = new double[1];
+    // Set with -Dbreakout.udp=true, snapshots only go through it once the client said it's ready (protocol 8)
+    private DatagramStateSender udp;
+    private volatile boolean udpReady = false;
     private GLabel bricksLeft = null;
+    private String[] bricksLeftLabels;
     private boolean isDarkModeEnabled = true;
     private GImage switcher;
     private GRect startButton;
     private GLabel startButtonLabel;
     private static final String startButtonText = "Start Game";
-    private boolean gameStarted = false;
+    // Set by the countdown thread, run() waits for it before the game loop starts
+    private volatile boolean gameStarted = false;
     private GLabel counter;
     private GLine separator1;
     private GLine separator2;
@@ -102,24 +118,44 @@ public class BreakoutServer extends GraphicsProgram {
     private Socket socket = null;
     private ServerSocket server = null;
     private DataInputStream in = null;
-    private DataOutputStream out = null;
+    private NetworkWriter writer = null;
 
     private boolean connectionActive = false;
 
 
     public void run() {
-        initGame();
+        // Waiting for the client, decoding and drawing the brick walls all happen while the board is set up (see Startup)
+        Startup startup = new Startup();
+        startup.run("board", () -> initGame(startup));
         addMouseListeners();
-        waitForConnection();
+        startup.boardShown();
+        startup.finish();
+        System.out.println("Startup: " + startup.getStats());
         while (!gameStarted) {
             pause(100);
         }
         gameLoop();
     }
 
-    private void initGame() {
-        drawBricks();
-        setRandomVx();
+    // Draws only what changed while the game runs, instead of the whole window for every move
+    @Override
+    protected GCanvas createGCanvas() {
+        return new DirtyRectCanvas();
+    }
+
+    private void initGame(Startup startup) {
+        match = new BreakoutMatch(seed);
+        engine = match.getEngine(HOST);
+        clientEngine = match.getEngine(CLIENT);
+        lockstep = LockstepSession.isEnabled() ? new LockstepSession(match, HOST) : null;
+        replay = ReplayWriter.fromProperty(BreakoutMatch.PLAYERS, HOST, seed, BreakoutEngine.NBRICK_ROWS, BreakoutEngine.NBRICKS_PER_ROW, BreakoutEngine.TICK_MILLIS);
+        // The receiver only needs match, so the client can connect from now on
+        startup.submit("network", this::waitForConnection);
+        Color background = getGCanvas().getBackground();
+        Future<BrickLayer> hostWall = startup.submit("bricks", () -> prepareBricks(0, background));
+        Future<BrickLayer> clientWall = startup.submit("client bricks", () -> prepareBricks(WIDTH + SEPARATOR_WIDTH, background));
+        startup.submit("images", () -> Assets.preloadImages("heart.png", "light.png", "dark.png"));
+        startup.submit("sounds", sounds::preload);
         renderHearts();
         renderBricksLeft();
         renderThemeSwitcher(true);
@@ -129,21 +165,72 @@ public class BreakoutServer extends GraphicsProgram {
         createClientBall();
         renderStartMenu();
         renderSeparator();
+        addBricks(startup.get(hostWall), startup.get(clientWall));
     }
 
-    // Each *frame* happens here
+    // Ticks, frames and snapshots each at their own rate (see GameLoop)
     private void gameLoop() {
-        bgMusic.loop();
-        while (turnsCount > 0 && aliveBricks > 0 && connectionActive) {
-            moveBall();
-            checkCollisions();
-            sendPositionsToClient(0, 0);
-            pause(DELAY);
+        sounds.loop(bgMusic);
+        canvas().setDirtyTracking(true);
+        loop.run(new GameLoop.Game() {
+            public boolean isRunning() {
+                if (lockstep != null) {
+                    return lockstep.isRunning(connectionActive);
+                }
+                return !match.isOver() && connectionActive;
+            }
+
+            public void tick() {
+                if (lockstep != null) {
+                    tickLockstep();
+                    return;
+                }
+                // The client's paddle comes from the inputs the receiver thread queues in match
+                match.setPaddleInput(HOST, paddle.getX());
+                match.step();
+                recordTick();
+                renderEvents(match.getEvents(HOST));
+                renderClientEvents(match.getEvents(CLIENT));
+                sendEventsToClient();
+            }
+
+            public void render(double alpha) {
+                ball.setLocation(engine.getBallX(), engine.getBallY());
+                renderClientBoard();
+                // Only where something moved or changed, see DirtyRectCanvas
+                canvas().paintDirty();
+            }
+
+            public void send() {
+                // In lockstep every tick sends its input right away
+                if (lockstep == null) {
+                    sendSnapshotToClient(false);
+                }
+            }
+        });
+        canvas().setDirtyTracking(false);
+        if (replay != null) {
+            replay.end(engine, clientEngine);
+            System.out.println("Replay: " + replay.getStats());
+        }
+        System.out.println("Game loop: " + loop.getStats());
+        if (lockstep != null) {
+            System.out.println("Lockstep: " + lockstep.getStats());
         }
-        if (turnsCount == 0) {
-            handleGameLoss(1);
-        } else if (aliveBricks == 0) {
-            handleGameWin(1);
+        System.out.println("Sound: " + sounds.getStats());
+        System.out.println("Assets: " + Assets.getStats());
+        System.out.println("Painting: " + canvas().getStats());
+        if (match.isOver() && connectionActive && lockstep == null) {
+            // The final state, right before the game end, always on TCP so it can't get lost
+            sendSnapshotToClient(true);
+        }
+        // 1 if it happened on our board, 0 if on the client's
+        if (lockstep != null && lockstep.getDesyncTick() != LockstepSession.NO_DESYNC) {
+            handleDesync();
+        } else if (match.getWinner() == HOST) {
+            handleGameWin(engine.isWon() ? 1 : 0);
+        } else if (match.getWinner() == CLIENT) {
+            handleGameLoss(engine.getTurnsLeft() == 0 ? 1 : 0);
         }
         remove(ball);
     }
@@ -159,19 +246,25 @@ public class BreakoutServer extends GraphicsProgram {
             connectionActive = true;
 
             in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            out = new DataOutputStream(socket.getOutputStream());
+            // Everything we send goes through the writer thread, the game loop only queues and flushes once per tick
+            writer = new NetworkWriter(socket.getOutputStream(), this::closeConnection);
+            writer.sendHandshake();
+            writer.flush();
+            if (DatagramStateSender.isEnabled() && lockstep == null) {
+                offerDatagrams();
+            }
 
             // We need a new thread so that game loop doesn't stop
-            new Thread(() -> {
-                while (true) {
-                    try {
-                        receiveData();
-                    } catch (IOException e) {
-                        System.out.println(e.getMessage());
-                        break;
-                    }
+            MessageReceiver receiver = new MessageReceiver(in, createRegistry());
+            GameThreads.start("breakout-receiver", () -> {
+                try {
+                    Protocol.readHandshake(in);
+                    // Blocks in read() until the client sends something, no handler ever says it's the last one
+                    receiver.receive();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
                 }
-            }).start();
+            });
 
         } catch (IOException e) {
             closeConnection();
@@ -179,87 +272,104 @@ public class BreakoutServer extends GraphicsProgram {
         }
     }
 
-    // There are 2 kinds of *protocols*, one starts with 0, the second one starts with 1, protocol 0 is for receiveing game variables like paddle and ball location, protocol 1 is for finishing the game, happens when one of the players lost/won the game
-    private void receiveData() throws IOException {
-        int messageType = in.readInt();
-        if (messageType == 0) {
-            receiveAndProcessGameVariables();
-        } else if (messageType == 1) {
-            receiveGameEndEvent();
-        }
+    // The client only ever sends protocol 3, its paddle x for a few ticks, everything else is decided here (see Protocol).
+    // In lockstep it's the paddle x for a tick and now and then protocol 4
+    private MessageRegistry createRegistry() {
+        return new MessageRegistry()
+                .on(Protocol.INPUT, new Protocol.Inputs(), inputs -> {
+                    receiveInputs(inputs);
+                    return true;
+                }).on(Protocol.STATE_HASH, new Protocol.StateHash(), hash -> {
+                    if (lockstep == null) {
+                        throw new IOException("State hash, but this isn't a lockstep game");
+                    }
+                    lockstep.addRemoteHash(hash.getTick(), hash.getHash());
+                    return true;
+                }).on(Protocol.UDP_READY, new Protocol.UdpReady(), ready -> {
+                    if (udp == null) {
+                        throw new IOException("UDP ready, but no UDP was offered");
+                    }
+                    udpReady = true;
+                    return true;
+                });
     }
 
-    private void receiveGameEndEvent() throws IOException {
-        boolean statusMessage = in.readBoolean();
-        if (statusMessage) {
-            handleGameLoss(0);
-        } else {
-            handleGameWin(0);
+    // Protocol 7, the client says hello on UDP and then protocol 8 if the answer got back to it. Until then (or forever,
+    // if UDP doesn't get through) the snapshots keep going over TCP
+    private void offerDatagrams() {
+        try {
+            udp = new DatagramStateSender();
+        } catch (IOException e) {
+            System.out.println("No UDP, snapshots stay on TCP: " + e.getMessage());
+            return;
         }
+        writer.sendUdpOffer(udp.getPort(), udp.getToken());
+        writer.flush();
     }
 
-    private void receiveAndProcessGameVariables() throws IOException {
-        double paddleX = in.readDouble();
-        double ballX = in.readDouble();
-        double ballY = in.readDouble();
-        double brickX = in.readDouble();
-        double brickY = in.readDouble();
-
-        GObject currentEl = getElementAt(brickX + WIDTH + SEPARATOR_WIDTH, brickY);
-        if (currentEl instanceof GRect) {
-            remove(currentEl);
+    private void receiveInputs(Protocol.Inputs inputs) throws IOException {
+        for (int i = 0; i < inputs.getCount(); i++) {
+            double paddleX = inputs.getPaddleX(i);
+            if (lockstep != null) {
+                lockstep.addRemoteInput(inputs.getFirstSeq() + i, paddleX);
+            } else {
+                match.addInput(CLIENT, inputs.getFirstSeq() + i, paddleX);
+            }
         }
+    }
 
-        clientPaddle.setLocation(paddleX + WIDTH + SEPARATOR_WIDTH, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT);
-        clientBall.setLocation(ballX + WIDTH + SEPARATOR_WIDTH, ballY);
+    // Protocol 2 the tick something happens, bricks go by id so both screens always agree. Both boards as the client sees them, its own one is BOARD_YOURS
+    private void sendEventsToClient() {
+        writer.sendBoardEvents(Protocol.BOARD_YOURS, match.getEvents(CLIENT), clientEngine.getLastDestroyedBrick(), clientEngine.getTurnsLeft());
+        writer.sendBoardEvents(Protocol.BOARD_OPPONENT, match.getEvents(HOST), engine.getLastDestroyedBrick(), engine.getTurnsLeft());
+        // Does nothing on the (most) ticks where nothing happened
+        writer.flush();
     }
 
-    private void sendPositionsToClient(double brickX, double brickY) {
-        try {
-            double paddleX = paddle.getX();
-            double ballX = ball.getX();
-            double ballY = ball.getY();
-            // We are sending game variables, so here comes protocol 0
-            out.writeInt(0);
-
-            out.writeDouble(paddleX);
-            out.writeDouble(ballX);
-            out.writeDouble(ballY);
-            out.writeDouble(brickX);
-            out.writeDouble(brickY);
-        } catch (IOException e) {
-            System.out.println(e);
-            closeConnection();
+    // Protocol 0 at sendHz, the client predicts/interpolates in between. The writer only keeps the latest frame per board if the client is slow.
+    // As one datagram once UDP is ready, unless it has to arrive
+    private void sendSnapshotToClient(boolean reliable) {
+        if (udpReady && !reliable) {
+            udp.sendState(Protocol.BOARD_YOURS, match.getTick(), clientEngine, match.getInputAck(CLIENT));
+            udp.sendState(Protocol.BOARD_OPPONENT, match.getTick(), engine, 0);
+            udp.flush();
+            return;
         }
+        writer.sendState(Protocol.BOARD_YOURS, match.getTick(), clientEngine, match.getInputAck(CLIENT));
+        writer.sendState(Protocol.BOARD_OPPONENT, match.getTick(), engine, 0);
+        writer.flush();
     }
 
     private void sendWinEvent() {
-        try {
-            // We won, so here comes protocol 1
-            out.writeInt(1);
-
-            out.writeBoolean(true);
-        } catch (IOException e) {
-            closeConnection();
-            System.out.println(e);
+        // In lockstep the client saw the same end already
+        if (lockstep != null) {
+            return;
         }
+        // We won so the client lost, here comes protocol 1
+        writer.sendGameEnd(false);
+        writer.flush();
     }
 
     private void sendLoseEvent() {
-        try {
-            // We lost, so here comes protocol 1
-            out.writeInt(1);
-
-            out.writeBoolean(false);
-        } catch (IOException e) {
-            closeConnection();
-            System.out.println(e);
+        if (lockstep != null) {
+            return;
         }
+        // We lost so the client won, here comes protocol 1
+        writer.sendGameEnd(true);
+        writer.flush();
     }
 
     private void closeConnection() {
         try {
-            if (out != null) out.close();
+            if (writer != null) {
+                // Sends whatever is still queued (like the game end event) before we close the socket
+                writer.close();
+                System.out.println("Network writer: " + writer.getStats());
+            }
+            if (udp != null) {
+                udp.close();
+                System.out.println("UDP: " + udp.getStats());
+            }
             if (socket != null) socket.close();
             connectionActive = false;
             System.out.println("Connection closed.");
@@ -269,70 +379,89 @@ public class BreakoutServer extends GraphicsProgram {
     }
 
 
-    // ----------- HELPERS -------------
-
-    // DVD screensaver like animation, but if it touches the bottom of the screen we record it as a *missed ball*
-    private void moveBall() {
-        ball.move(vx, vy);
-        if (ball.getX() <= 0 || ball.getX() + BALL_RADIUS * 2 >= WIDTH) {
-            // ball was sticking to edges and had to use the absolute value of vx
-            if (ball.getX() <= 0) {
-                vx = Math.abs(vx);
-            } else {
-                vx = -Math.abs(vx);
+    // Plays the next tick once the client's input for it is here, then takes ours for a few ticks later (see LockstepSession)
+    private void tickLockstep() {
+        if (lockstep.step()) {
+            recordTick();
+            renderEvents(match.getEvents(HOST));
+            renderClientEvents(match.getEvents(CLIENT));
+            if (lockstep.isHashTick()) {
+                writer.sendStateHash((int) match.getTick(), lockstep.getLastHash());
             }
         }
-        if (ball.getY() <= 0) {
-            vy = -vy;
-        } else if (ball.getY() + BALL_RADIUS * 2 >= HEIGHT) {
-            handleBallMiss();
+        double paddleX = paddle.getX();
+        int tick = lockstep.queueLocal(paddleX);
+        if (tick > 0) {
+            lockstepInput[0] = paddleX;
+            writer.sendInputs(tick, lockstepInput, 1);
         }
+        writer.flush();
     }
 
-    private void checkCollisions() {
-        GObject collider = getBallCollidingObject();
-        if (collider == paddle) {
-            handlePaddleKick();
-        } else if (collider instanceof GRect) {
-            destroySound.play();
-            remove(collider);
-            aliveBricks--;
-            bricksLeft.setLabel("Bricks : " + (int) aliveBricks);
-            vy = -vy;
-            sendPositionsToClient(collider.getX(), collider.getY());
+
+    // ----------- HELPERS -------------
+
+    // The paddles this tick's step() used, both boards
+    private void recordTick() {
+        if (replay != null) {
+            replay.recordPaddle(HOST, match.getPaddleInput(HOST));
+            replay.recordPaddle(CLIENT, match.getPaddleInput(CLIENT));
         }
     }
 
+    private DirtyRectCanvas canvas() {
+        return (DirtyRectCanvas) getGCanvas();
+    }
 
-    // Reset the ball to center
-    private void resetBall() {
-        ball.setLocation((double) WIDTH / 2 - BALL_RADIUS, (double) HEIGHT / 2 - BALL_RADIUS);
-        vy = Math.abs(vy);
-        setRandomVx();
-        pause(2000);
+    // Sounds and GObjects that need to change because of what happened during the last tick
+    private void renderEvents(int events) {
+        if ((events & BreakoutEngine.EVENT_PADDLE_KICK) != 0) {
+            sounds.play(paddleKickSound);
+        }
+        if ((events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+            int id = engine.getLastDestroyedBrick();
+            sounds.play(destroySound);
+            bricks.eraseBrick(id);
+            bricksLeft.setLabel(bricksLeftLabels[engine.getAliveBricks()]);
+        }
+        if ((events & BreakoutEngine.EVENT_BALL_MISSED) != 0) {
+            remove(hearts[engine.getTurnsLeft()]);
+        }
     }
 
-    private void setRandomVx() {
-        vx = rgen.nextDouble(1.0, 3.0) * (rgen.nextBoolean(0.5) ? -1 : 1);
+    private void renderClientEvents(int events) {
+        if ((events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0) {
+            clientBricks.eraseBrick(clientEngine.getLastDestroyedBrick());
+        }
+    }
+
+    // The client's board is simulated here too, so it is drawn straight from clientEngine
+    private void renderClientBoard() {
+        clientPaddle.setLocation(clientEngine.getPaddleX() + WIDTH + SEPARATOR_WIDTH, BreakoutEngine.PADDLE_Y);
+        clientBall.setLocation(clientEngine.getBallX() + WIDTH + SEPARATOR_WIDTH, clientEngine.getBallY());
     }
 
+
     // We need a new thread for countdown
     private void startCountdown() {
-        new Thread(() -> {
+        GameThreads.start("breakout-countdown", () -> {
             try {
-                countdownSound.play();
+                sounds.play(countdownSound);
                 for (int i = 3; i >= 0; i--) {
-                    out.writeInt(i);
+                    writer.sendCountdown(i);
+                    writer.flush();
                     displayCountdown(i);
                     Thread.sleep(1000);
                 }
-                gameStarted = true;
+                // Before anything the game loop sends, the client needs the seed before the first snapshot
+                writer.sendGameStarted(seed, CLIENT, lockstep != null ? Protocol.MODE_LOCKSTEP : Protocol.MODE_SERVER);
+                writer.flush();
                 remove(counter);
-                out.writeBoolean(true);
-            } catch (IOException | InterruptedException e) {
+                gameStarted = true;
+            } catch (InterruptedException e) {
                 closeConnection();
             }
-        }).start();
+        });
     }
 
 
@@ -343,7 +472,7 @@ public class BreakoutServer extends GraphicsProgram {
     public void mouseMoved(MouseEvent e) {
         double x = e.getX() - (double) PADDLE_WIDTH / 2;
         double paddleY = paddle.getY();
-        if (gameStarted && x >= 0 && x + PADDLE_WIDTH <= WIDTH && !isGameOver()) {
+        if (gameStarted && x >= 0 && x + PADDLE_WIDTH <= WIDTH && !engine.isGameOver()) {
             paddle.setLocation(x, paddleY);
         }
     }
@@ -366,10 +495,6 @@ public class BreakoutServer extends GraphicsProgram {
 
     // ------------ GETTERS ---------------
 
-    private boolean isGameOver() {
-        return turnsCount == 0 || aliveBricks == 0;
-    }
-
 
     private Color getBrickColor(int row) {
         if (row >= 8) {
@@ -385,92 +510,43 @@ public class BreakoutServer extends GraphicsProgram {
         }
     }
 
-    // Returns either NULL or object the ball is colliding
-    private GObject getBallCollidingObject() {
-        double leftX = ball.getX();
-        double rightX = leftX + BALL_RADIUS * 2;
-        double topY = ball.getY();
-        double bottomY = topY + BALL_RADIUS * 2;
-
-        // Checking bottom left corner of the collider
-        GObject collider = getElementAt(leftX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking bottom right of the collider
-        collider = getElementAt(rightX, bottomY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Checking top left corner of the collider
-        collider = getElementAt(leftX, topY);
-        if (collider != null) {
-            return collider;
-        }
-
-        // Or the top right corner, no need to check if its null cause if its null we already checked other corners so no object are being collided
-        collider = getElementAt(rightX, topY);
-        return collider;
-    }
-
-
-    // I need to get which heart needs to be deleted based on how many turns are left
-    private GObject getCurrentHeart() {
-        double x = HEART_OFFSET + (turnsCount - 1) * (HEART_WIDTH + HEART_GAP) + (double) HEART_WIDTH / 2;
-        return getElementAt(x, (double) HEART_WIDTH / 2);
-    }
-
-
     // ----------- HANDLERS ------------------
 
-    // If the paddle misses the ball... RIP
-    private void handleBallMiss() {
-        GObject heart = getCurrentHeart();
-        remove(heart);
-        turnsCount--;
-        if (turnsCount > 0) {
-            resetBall();
-        }
-
-    }
-
-    // We estimate the VX of the ball based on how far it was from the center of the paddle (we can try different values of sensitivity)
-    private void handlePaddleKick() {
-        paddleKickSound.play();
-        vy = -Math.abs(vy);
-        double paddleCenter = paddle.getX() + (double) PADDLE_WIDTH / 2;
-        vx = (ball.getX() + BALL_RADIUS - paddleCenter) / PADDLE_SENSITIVITY;
-    }
-
     private void handleGameLoss(int iLost) {
-        bgMusic.stop();
-        loseSound.play();
+        sounds.stop(bgMusic);
+        sounds.play(loseSound);
         sendLoseEvent();
 
         removeAll();
         if (iLost == 1) {
-            renderTextInCenter("You Lost :(((", Color.RED, 30);
+            renderTextInCenter("You Lost :(((", Color.RED);
         } else {
-            renderTextInCenter("Opponent won :((", Color.RED, 30);
+            renderTextInCenter("Opponent won :((", Color.RED);
         }
         closeConnection();
     }
 
     private void handleGameWin(int iWon) {
-        bgMusic.stop();
-        winSound.play();
+        sounds.stop(bgMusic);
+        sounds.play(winSound);
         sendWinEvent();
         removeAll();
         if (iWon == 1) {
-            renderTextInCenter("You WON :))", Color.GREEN, 30);
+            renderTextInCenter("You WON :))", Color.GREEN);
         } else {
-            renderTextInCenter("Opponent lost :))", Color.GREEN, 30);
+            renderTextInCenter("Opponent lost :))", Color.GREEN);
         }
         closeConnection();
     }
 
+    // Lockstep only, the two games went apart and neither side knows which one is right
+    private void handleDesync() {
+        sounds.stop(bgMusic);
+        removeAll();
+        renderTextInCenter("Out of sync with the opponent :((", Color.RED);
+        closeConnection();
+    }
+
     private void handleThemeChange() {
         remove(switcher);
         isDarkModeEnabled = !isDarkModeEnabled;
@@ -494,16 +570,17 @@ public class BreakoutServer extends GraphicsProgram {
 
     // ---------- RENDERERS ----------------
 
+    // One label for the whole countdown, only its text changes
     private void displayCountdown(int count) {
-        if (counter != null) {
-            remove(counter);
+        if (counter == null) {
+            counter = new GLabel(COUNTDOWN_LABELS[count]);
+            double counterX = WIDTH + (double) SEPARATOR_WIDTH / 2 + counter.getWidth() / 2;
+            double counterY = (double) HEIGHT / 2 - counter.getAscent() / 2;
+            counter.setFont(COUNTER_FONT);
+            add(counter, counterX, counterY);
         }
-        counter = new GLabel("" + count);
-        double counterX = WIDTH + (double) SEPARATOR_WIDTH / 2 + counter.getWidth() / 2;
-        double counterY = (double) HEIGHT / 2 - counter.getAscent() / 2;
+        counter.setLabel(COUNTDOWN_LABELS[count]);
         counter.setColor(isDarkModeEnabled ? Color.BLACK : Color.WHITE);
-        counter.setFont(new Font("serif", Font.PLAIN, 25));
-        add(counter, counterX, counterY);
     }
 
     private void renderSeparator() {
@@ -518,7 +595,7 @@ public class BreakoutServer extends GraphicsProgram {
         startButton.setFilled(true);
         startButton.setColor(START_BUTTON_COLOR);
         startButtonLabel = new GLabel(startButtonText);
-        startButtonLabel.setFont(new Font("Serif", Font.PLAIN, 20));
+        startButtonLabel.setFont(START_BUTTON_FONT);
         startButtonLabel.setColor(startButtonLabelText);
         double startButtonX = (APPLICATION_WIDTH - startButton.getWidth()) / 2;
         double startButtonY = (HEIGHT - startButton.getHeight()) / 2;
@@ -529,16 +606,16 @@ public class BreakoutServer extends GraphicsProgram {
     }
 
     private void renderThemeSwitcher(boolean darkMode) {
-        switcher = darkMode ? new GImage("./light.png") : new GImage("./dark.png");
+        switcher = new GImage(Assets.image(darkMode ? "light.png" : "dark.png"));
         switcher.setSize(30, 20);
         switcher.sendToFront();
         double x = bricksLeft.getX() - switcher.getWidth() - 10;
         add(switcher, x, (double) HEART_OFFSET / 2);
     }
 
-    private void renderTextInCenter(String str, Color color, int fontSize) {
+    private void renderTextInCenter(String str, Color color) {
         GLabel text = new GLabel(str);
-        text.setFont(new Font("Serif", Font.PLAIN, fontSize));
+        text.setFont(MESSAGE_FONT);
         text.setColor(color);
         double x = (APPLICATION_WIDTH - text.getWidth()) / 2;
         double y = (APPLICATION_HEIGHT - text.getAscent()) / 2;
@@ -547,8 +624,13 @@ public class BreakoutServer extends GraphicsProgram {
 
 
     private void renderBricksLeft() {
-        bricksLeft = new GLabel("Bricks: " + (int) aliveBricks);
-        bricksLeft.setFont(new Font("Serif", Font.PLAIN, 17));
+        // bricksLeftLabels[n] is the text for n bricks left
+        bricksLeftLabels = new String[engine.getBrickCount() + 1];
+        for (int n = 0; n < bricksLeftLabels.length; n++) {
+            bricksLeftLabels[n] = "Bricks : " + n;
+        }
+        bricksLeft = new GLabel("Bricks: " + engine.getAliveBricks());
+        bricksLeft.setFont(BRICKS_LEFT_FONT);
         bricksLeft.setColor(Color.ORANGE);
         bricksLeft.sendToFront();
         double x = WIDTH - bricksLeft.getWidth() - 20;
@@ -557,7 +639,7 @@ public class BreakoutServer extends GraphicsProgram {
     }
 
     private void createBall() {
-        ball = new GOval((double) WIDTH / 2 - BALL_RADIUS, (double) HEIGHT / 2 - BALL_RADIUS, BALL_RADIUS * 2, BALL_RADIUS * 2);
+        ball = new GOval(engine.getBallX(), engine.getBallY(), BALL_RADIUS * 2, BALL_RADIUS * 2);
         ball.setFilled(true);
         add(ball);
     }
@@ -568,42 +650,31 @@ public class BreakoutServer extends GraphicsProgram {
         add(clientBall);
     }
 
-    private void drawBricks() {
-        double startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY, false);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
-        }
-        startingY = BRICK_Y_OFFSET;
-        for (int i = 0; i < NBRICK_ROWS; i++) {
-            drawBrickRow(getBrickColor(i), startingY, true);
-            startingY += BRICK_HEIGHT + BRICK_SEP;
-        }
-    }
-
-    // just draws one row of bricks, self-explanatory, no more comments needed
-    private void drawBrickRow(Color color, double y, boolean isForClient) {
-        double x = (double) (WIDTH - NBRICKS_PER_ROW * BRICK_WIDTH - (NBRICKS_PER_ROW - 1) * BRICK_SEP) / 2;
-        if (isForClient) {
-            x += WIDTH + SEPARATOR_WIDTH;
-        }
-        for (int j = 0; j < NBRICKS_PER_ROW; j++) {
-            drawBrick(color, x, y);
-            x += BRICK_WIDTH + BRICK_SEP;
+    // One image per board (see BrickLayer), bricks get erased from them by the engine's brick id.
+    // The opponent's board has the same layout as ours
+    // On a startup thread, the wall isn't on the canvas yet. Both boards start with the same bricks
+    private BrickLayer prepareBricks(double offsetX, Color background) {
+        BrickLayer wall = new BrickLayer(engine, offsetX);
+        wall.prepare(background);
+        for (int id = 0; id < engine.getBrickCount(); id++) {
+            wall.drawBrick(id, getBrickColor(engine.getBrickRow(id)));
         }
+        return wall;
     }
 
-    private void drawBrick(Color color, double x, double y) {
-        GRect brick = new GRect(x, y, BRICK_WIDTH, BRICK_HEIGHT);
-        brick.setFilled(true);
-        brick.setFillColor(color);
-        brick.setColor(color);
-        add(brick);
+    // Behind everything else, the walls are opaque (see BrickLayer)
+    private void addBricks(BrickLayer hostWall, BrickLayer clientWall) {
+        bricks = hostWall;
+        clientBricks = clientWall;
+        add(bricks);
+        add(clientBricks);
+        bricks.sendToBack();
+        clientBricks.sendToBack();
     }
 
 
     private void createPaddle() {
-        paddle = new GRect((double) (WIDTH - PADDLE_WIDTH) / 2, HEIGHT - PADDLE_Y_OFFSET - PADDLE_HEIGHT, PADDLE_WIDTH, PADDLE_HEIGHT);
+        paddle = new GRect(engine.getPaddleX(), BreakoutEngine.PADDLE_Y, PADDLE_WIDTH, PADDLE_HEIGHT);
         paddle.setFilled(true);
         add(paddle);
     }
@@ -614,20 +685,23 @@ public class BreakoutServer extends GraphicsProgram {
         add(clientPaddle);
     }
 
+    // hearts[i] is the heart that disappears when only i turns are left
     private void renderHearts() {
         double y = 0;
         double x = HEART_OFFSET;
 
-        for (int i = 0; i < turnsCount; i++) {
-            renderSingleHeart(x, y);
+        hearts = new GImage[engine.getTurnsLeft()];
+        for (int i = 0; i < hearts.length; i++) {
+            hearts[i] = renderSingleHeart(x, y);
             x += HEART_GAP + HEART_WIDTH;
         }
     }
 
-    private void renderSingleHeart(double x, double y) {
-        GImage heart = new GImage("./heart.png");
+    private GImage renderSingleHeart(double x, double y) {
+        GImage heart = new GImage(Assets.image("heart.png"));
         heart.setSize(HEART_WIDTH, HEART_WIDTH);
         add(heart, x, y);
         heart.sendToFront();
+        return heart;
     }
 }
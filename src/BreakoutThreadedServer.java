@@ -0,0 +1,245 @@
+/*
+ * Filename: BreakoutThreadedServer.java
+ * Description: Blocking, thread-per-connection version of BreakoutLobbyServer, mainly to run on virtual threads.
+ *
+ * Instructions:
+ * - java -Dbreakout.virtualThreads=true BreakoutThreadedServer [port]  (one virtual thread per socket, needs Java 21+)
+ * - java BreakoutThreadedServer [port]  (exactly the same code on platform threads, to compare against)
+ * - Point every BreakoutClient's ADDRESS at this machine, clients are paired in the order they connect.
+ *
+ * Note:
+ * Same lobby, handshake, countdown and game (BreakoutMatch) as BreakoutLobbyServer, but written the simple way
+ * BreakoutServer is: blocking DataInputStream/DataOutputStream, a thread per player that just sits in read()
+ * waiting for paddle inputs, and one more thread per match for the countdown and the game loop (Thread.sleep
+ * between the numbers and ticks, like BreakoutServer.startCountdown() and gameLoop()).
+ * With virtual threads all that blocking is cheap, so it should keep up with tens of thousands of connections.
+ * To keep it simple a player leaving before the game starts also ends the match for the opponent.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BreakoutThreadedServer {
+
+    private static final int PORT = 6969;
+    private static final int BACKLOG = 1024;
+    private static final int COUNTDOWN_FROM = 3;
+
+    private final int port;
+    private Player waiting = null;
+
+    // Stats
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger activeMatches = new AtomicInteger();
+    private final AtomicLong startedMatches = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+        new BreakoutThreadedServer(port).run();
+    }
+
+    public BreakoutThreadedServer(int port) {
+        this.port = port;
+    }
+
+    // Accepts connections on the calling thread forever, every player gets its own thread
+    public void run() throws IOException {
+        ServerSocket server = new ServerSocket(port, BACKLOG);
+        System.out.println("Threaded lobby listening on port " + port + " using " + (GameThreads.isVirtual() ? "virtual" : "platform") + " threads");
+        while (true) {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            GameThreads.start("breakout-player", () -> handlePlayer(socket));
+        }
+    }
+
+    private void handlePlayer(Socket socket) {
+        activeConnections.incrementAndGet();
+        Player player = null;
+        try {
+            player = new Player(socket);
+            Protocol.writeHandshake(player.out);
+            player.out.flush();
+            Protocol.readHandshake(player.in);
+
+            join(player);
+            player.paired.await();
+            player.match.started.await();
+            readInputs(player);
+        } catch (IOException | InterruptedException e) {
+            // Either this player or the opponent is gone, the match is over for both
+        } finally {
+            if (player != null && player.match != null) {
+                player.match.leave(player);
+            } else {
+                closeQuietly(socket);
+            }
+            activeConnections.decrementAndGet();
+        }
+    }
+
+    // Pairs the player with whoever is waiting, or makes them wait
+    private synchronized void join(Player player) {
+        if (waiting == null || waiting.socket.isClosed()) {
+            waiting = player;
+            return;
+        }
+        Match match = new Match(waiting, player);
+        waiting = null;
+        startedMatches.incrementAndGet();
+        activeMatches.incrementAndGet();
+        GameThreads.start("breakout-match", match::run);
+    }
+
+    // Clients only send protocol 3 (paddle x of a few ticks), the match thread applies one of them every tick
+    private void readInputs(Player player) throws IOException {
+        BreakoutMatch game = player.match.game;
+        int index = player.match.players[0] == player ? 0 : 1;
+        MessageRegistry registry = new MessageRegistry().on(Protocol.INPUT, new Protocol.Inputs(), inputs -> {
+            for (int i = 0; i < inputs.getCount(); i++) {
+                game.addInput(index, inputs.getFirstSeq() + i, inputs.getPaddleX(i));
+            }
+            return true;
+        });
+        // Until the socket closes
+        new MessageReceiver(player.in, registry).receive();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getActiveMatches() {
+        return activeMatches.get();
+    }
+
+    public long getStartedMatches() {
+        return startedMatches.get();
+    }
+
+
+    // ----------- MATCH -----------------
+
+    private class Match {
+
+        private final Player[] players;
+        private final BreakoutMatch game = new BreakoutMatch(MatchRandom.newSeed());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile boolean finished = false;
+        private boolean ended = false;
+
+        Match(Player first, Player second) {
+            this.players = new Player[]{first, second};
+            first.opponent = second;
+            second.opponent = first;
+            first.match = this;
+            second.match = this;
+            first.paired.countDown();
+            second.paired.countDown();
+        }
+
+        void run() {
+            try {
+                countdown();
+                started.countDown();
+                gameLoop();
+            } catch (IOException | InterruptedException e) {
+                end();
+            }
+        }
+
+        // Same sequence BreakoutServer.startCountdown() sends: 3, 2, 1, 0 one second apart, then the game start
+        private void countdown() throws IOException, InterruptedException {
+            for (int i = COUNTDOWN_FROM; i >= 0; i--) {
+                for (Player player : players) {
+                    Protocol.writeCountdown(player.out, i);
+                    player.out.flush();
+                }
+                Thread.sleep(1000);
+            }
+            for (int i = 0; i < players.length; i++) {
+                Protocol.writeGameStarted(players[i].out, game.getSeed(), i, Protocol.MODE_SERVER);
+                players[i].out.flush();
+            }
+        }
+
+        // Like BreakoutServer.gameLoop(), but both boards belong to remote players
+        private void gameLoop() throws IOException, InterruptedException {
+            while (!game.isOver()) {
+                game.step();
+                for (int i = 0; i < players.length; i++) {
+                    game.writeUpdate(players[i].out, i);
+                    // Most ticks have nothing in the buffer, then this doesn't touch the socket
+                    players[i].out.flush();
+                }
+                Thread.sleep(BreakoutEngine.TICK_MILLIS);
+            }
+            // The clients close once they read the game end, then their player threads end the match
+            finished = true;
+            for (Player player : players) {
+                player.socket.shutdownOutput();
+            }
+        }
+
+        // After the game end every player leaves on its own, the opponent might still be reading theirs
+        synchronized void leave(Player player) {
+            player.left = true;
+            if (finished && !player.opponent.left) {
+                closeQuietly(player.socket);
+                return;
+            }
+            end();
+        }
+
+        // Closing the sockets makes both player threads fall out of read()
+        void end() {
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+            }
+            activeMatches.decrementAndGet();
+            for (Player player : players) {
+                closeQuietly(player.socket);
+            }
+            started.countDown();
+        }
+    }
+
+
+    // ----------- PLAYER -----------------
+
+    private static class Player {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final CountDownLatch paired = new CountDownLatch(1);
+        private Match match;
+        private Player opponent;
+        private boolean left = false;
+
+        Player(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do, we're closing anyway
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Filename: BrickGrid.java
+ * Description: Uniform grid over the brick field, BreakoutEngine asks it which bricks are under the area a ball moves through.
+ *
+ * Note:
+ * Brick ids are row * cols + col, the same ids the protocol sends (see Protocol) and BrickLayer erases by.
+ * Alive bricks are one bit each in a long[]. findAlive() takes the rows and columns under an area (a division
+ * each) and tests only those bits, never the whole wall. Small bricks put more cells under the same area, so a
+ * 100x100 wall costs more per query than the default one (BrickGridBenchmark).
+ */
+
+public class BrickGrid {
+
+    private final int rows;
+    private final int cols;
+    private final double x0;
+    private final double y0;
+    private final double brickWidth;
+    private final double brickHeight;
+    private final double pitchX;
+    private final double pitchY;
+    private final long[] alive;
+    private int aliveCount;
+
+    public BrickGrid(int rows, int cols, double x0, double y0, double brickWidth, double brickHeight, double sep) {
+        this.rows = rows;
+        this.cols = cols;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.brickWidth = brickWidth;
+        this.brickHeight = brickHeight;
+        this.pitchX = brickWidth + sep;
+        this.pitchY = brickHeight + sep;
+        this.alive = new long[(rows * cols + 63) / 64];
+        reset();
+    }
+
+    // Puts every brick back
+    public void reset() {
+        int count = rows * cols;
+        for (int i = 0; i < alive.length; i++) {
+            int bitsInWord = Math.min(64, count - i * 64);
+            alive[i] = bitsInWord == 64 ? -1L : (1L << bitsInWord) - 1;
+        }
+        aliveCount = count;
+    }
+
+    // Same layout and the same bricks alive, but independent from now on
+    public BrickGrid copy() {
+        BrickGrid copy = new BrickGrid(rows, cols, x0, y0, brickWidth, brickHeight, pitchX - brickWidth);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    // Makes the same bricks alive as in other, which has to have the same layout
+    public void copyFrom(BrickGrid other) {
+        System.arraycopy(other.alive, 0, alive, 0, alive.length);
+        aliveCount = other.aliveCount;
+    }
+
+    // The alive bricks in any cell under the area into ids, returns how many. ids needs room for every cell under
+    // the area, getBrickCount() is always enough
+    public int findAlive(double left, double top, double right, double bottom, int[] ids) {
+        if (right < getLeft() || left > getRight() || bottom < getTop() || top > getBottom()) {
+            return 0;
+        }
+        int count = 0;
+        int firstCol = getColumnAt(left);
+        int lastCol = getColumnAt(right);
+        int lastRow = getRowAt(bottom);
+        for (int row = getRowAt(top); row <= lastRow; row++) {
+            for (int id = row * cols + firstCol, last = row * cols + lastCol; id <= last; id++) {
+                // Written either way and only kept if alive, no branch to mispredict on a half empty wall
+                ids[count] = id;
+                count += (int) (alive[id >>> 6] >>> id) & 1;
+            }
+        }
+        return count;
+    }
+
+    // Column of the cell (a brick and the gap after it) at x, clamped to the wall
+    private int getColumnAt(double x) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - x0) / pitchX)));
+    }
+
+    // Row of the cell at y, clamped to the wall
+    private int getRowAt(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - y0) / pitchY)));
+    }
+
+    // Bounds of the whole wall, gaps included
+    public double getLeft() {
+        return x0;
+    }
+
+    public double getTop() {
+        return y0;
+    }
+
+    public double getRight() {
+        return x0 + cols * pitchX;
+    }
+
+    public double getBottom() {
+        return y0 + rows * pitchY;
+    }
+
+    public boolean isAlive(int id) {
+        return (alive[id >>> 6] & (1L << id)) != 0;
+    }
+
+    // Returns false if the brick was already gone
+    public boolean destroy(int id) {
+        long mask = 1L << id;
+        if ((alive[id >>> 6] & mask) == 0) {
+            return false;
+        }
+        alive[id >>> 6] &= ~mask;
+        aliveCount--;
+        return true;
+    }
+
+    public int getAliveCount() {
+        return aliveCount;
+    }
+
+    public int getBrickCount() {
+        return rows * cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRow(int id) {
+        return id / cols;
+    }
+
+    public double getX(int id) {
+        return x0 + (id % cols) * pitchX;
+    }
+
+    public double getY(int id) {
+        return y0 + (id / cols) * pitchY;
+    }
+
+    public double getBrickWidth() {
+        return brickWidth;
+    }
+
+    public double getBrickHeight() {
+        return brickHeight;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Filename: BrickLayer.java
+ * Description: A whole wall of bricks as one GImage, drawn once into an off-screen image and erased brick by brick.
+ *
+ * Note:
+ * Every brick used to be its own filled GRect, so every repaint painted 100 of them (200 on the online boards),
+ * and a big custom wall thousands. Here they are painted once into a BufferedImage and the canvas only draws that
+ * image, however many bricks are in it. A destroyed brick is painted over with the background in the image and
+ * the canvas is told that part changed.
+ *
+ * The image is opaque, the gaps between bricks are the canvas background baked in. Copying an opaque image is
+ * a plain copy, blending a transparent one costs more than painting the 100 GRects did. So add it before anything
+ * that has to show in front of it (balls, paddles...), and when the background changes (theme switch) the
+ * image gets painted again with the new one on its next paint.
+ *
+ * Bricks are painted with an actual GRect, so they look exactly like before. Ids are the engine's brick ids,
+ * offsetX moves the wall sideways for the second board of the online versions.
+ */
+
+import acm.graphics.GContainer;
+import acm.graphics.GImage;
+import acm.graphics.GRect;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+public class BrickLayer extends GImage {
+
+    // A filled GRect's outline goes one pixel past its width and height
+    private static final int OUTLINE = 1;
+
+    private final BufferedImage pixels;
+    private final double brickWidth;
+    private final double brickHeight;
+    // Where each brick is in the image and what it looks like, by id. null color means not drawn or erased
+    private final double[] xs;
+    private final double[] ys;
+    private final Color[] colors;
+    // What the gaps and erased bricks are painted with, null until we know the canvas
+    private Color background;
+    // Kept for erasing, a new Graphics per destroyed brick would be garbage in the middle of a tick
+    private Graphics eraser;
+
+    public BrickLayer(BreakoutEngine engine, double offsetX) {
+        this(engine, offsetX, createImage(engine));
+    }
+
+    private BrickLayer(BreakoutEngine engine, double offsetX, BufferedImage pixels) {
+        super(pixels, offsetX + left(engine), top(engine));
+        this.pixels = pixels;
+        this.brickWidth = engine.getBrickWidth();
+        this.brickHeight = engine.getBrickHeight();
+        this.xs = new double[engine.getBrickCount()];
+        this.ys = new double[engine.getBrickCount()];
+        this.colors = new Color[engine.getBrickCount()];
+        for (int id = 0; id < xs.length; id++) {
+            xs[id] = engine.getBrickX(id) - left(engine);
+            ys[id] = engine.getBrickY(id) - top(engine);
+        }
+    }
+
+    // Just big enough for every brick of the engine's wall
+    private static BufferedImage createImage(BreakoutEngine engine) {
+        int last = engine.getBrickCount() - 1;
+        int width = (int) Math.ceil(engine.getBrickX(last) + engine.getBrickWidth() - left(engine)) + OUTLINE;
+        int height = (int) Math.ceil(engine.getBrickY(last) + engine.getBrickHeight() - top(engine)) + OUTLINE;
+        return new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+    }
+
+    // The first brick is the top left one
+    private static double left(BreakoutEngine engine) {
+        return engine.getBrickX(0);
+    }
+
+    private static double top(BreakoutEngine engine) {
+        return engine.getBrickY(0);
+    }
+
+    // Paints the gaps with the background the canvas will have, so the first paint doesn't have to start over.
+    // Call it before drawing the bricks, the wall can be built on another thread before it's added
+    public synchronized void prepare(Color background) {
+        repaintImage(background);
+    }
+
+    // Paints the brick into the image, once when the wall is built
+    public void drawBrick(int id, Color color) {
+        synchronized (this) {
+            colors[id] = color;
+            Graphics g = pixels.createGraphics();
+            try {
+                paintBrick(g, id);
+            } finally {
+                g.dispose();
+            }
+        }
+        changed(xs[id], ys[id]);
+    }
+
+    // Paints over the brick with the background, any thread
+    public void eraseBrick(int id) {
+        synchronized (this) {
+            colors[id] = null;
+            if (background != null) {
+                if (eraser == null) {
+                    eraser = pixels.createGraphics();
+                }
+                eraseBrick(eraser, id);
+            }
+        }
+        // Not while holding our lock, the canvas takes its own and then paints us
+        changed(xs[id], ys[id]);
+    }
+
+    // Not halfway through an erase, and with the background the canvas has now
+    @Override
+    public synchronized void paint(Graphics g) {
+        GContainer parent = getParent();
+        if (parent instanceof Component && !((Component) parent).getBackground().equals(background)) {
+            repaintImage(((Component) parent).getBackground());
+        }
+        super.paint(g);
+    }
+
+    // Whole image again on a new background, only when the theme changes
+    private void repaintImage(Color newBackground) {
+        background = newBackground;
+        Graphics g = pixels.createGraphics();
+        try {
+            g.setColor(background);
+            g.fillRect(0, 0, pixels.getWidth(), pixels.getHeight());
+            for (int id = 0; id < colors.length; id++) {
+                if (colors[id] != null) {
+                    paintBrick(g, id);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private void paintBrick(Graphics g, int id) {
+        GRect brick = new GRect(xs[id], ys[id], brickWidth, brickHeight);
+        brick.setFilled(true);
+        brick.setFillColor(colors[id]);
+        brick.setColor(colors[id]);
+        g.setColor(colors[id]);
+        brick.paint(g);
+    }
+
+    private void eraseBrick(Graphics g, int id) {
+        g.setColor(background);
+        g.fillRect((int) Math.floor(xs[id]), (int) Math.floor(ys[id]),
+                (int) Math.ceil(brickWidth) + OUTLINE, (int) Math.ceil(brickHeight) + OUTLINE);
+    }
+
+    // Our bounds stay the same, so a DirtyRectCanvas can't see this by itself
+    private void changed(double x, double y) {
+        GContainer parent = getParent();
+        if (parent instanceof DirtyRectCanvas) {
+            ((DirtyRectCanvas) parent).markDirty(getX() + x, getY() + y, brickWidth + OUTLINE, brickHeight + OUTLINE);
+        } else {
+            repaint();
+        }
+    }
+}
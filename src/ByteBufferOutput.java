@@ -0,0 +1,30 @@
+/*
+ * Filename: ByteBufferOutput.java
+ * Description: An OutputStream that writes straight into a ByteBuffer, so a DataOutputStream can fill one.
+ *
+ * Note:
+ * The Protocol writers and StateFrameCodec write to a DataOutput. BreakoutLobbyServer wraps its players' send
+ * buffers with this, and DatagramStateSender its datagram. Throws BufferOverflowException if the buffer is full.
+ */
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferOutput extends OutputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferOutput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        buffer.put(bytes, offset, length);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Filename: DatagramStateReceiver.java
+ * Description: BreakoutClient's side of the UDP snapshots, the other end of DatagramStateSender.
+ *
+ * Note:
+ * Once the server offered UDP (protocol 7), run() says hello to it every HELLO_INTERVAL_MILLIS until it answers,
+ * then calls onReady (the client sends protocol 8 over TCP) and from then on sits in receive(). If nothing answers
+ * after HELLO_ATTEMPTS, UDP doesn't get through (a firewall, probably) and the snapshots just stay on TCP.
+ *
+ * Datagrams can get lost, duplicated and arrive out of order. Every one has a sequence number, one that isn't newer
+ * than the last one handled is stale and thrown away, there's a newer snapshot already. The frames in the rest go
+ * to the registry's STATE handler like they would from TCP (see MessageRegistry). A gap in the sequence numbers
+ * means datagrams were lost (or come late and will be stale), which is only counted, nobody sends them again.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+public class DatagramStateReceiver implements Runnable {
+
+    private static final int HELLO_INTERVAL_MILLIS = 100;
+    private static final int HELLO_ATTEMPTS = 30;
+
+    private final DatagramSocket socket;
+    private final int token;
+    private final MessageRegistry registry;
+    private final Runnable onReady;
+    private final byte[] data = new byte[Protocol.MAX_DATAGRAM_SIZE];
+    private final DatagramPacket packet = new DatagramPacket(data, data.length);
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    private int lastSequence = 0;
+    private volatile boolean closed = false;
+
+    // Stats
+    private long received = 0;
+    private long stale = 0;
+    private long lost = 0;
+    private long broken = 0;
+    private volatile boolean ready = false;
+
+    // Talks only to the server's UDP port, onReady runs on the receiving thread
+    public DatagramStateReceiver(InetAddress server, int port, int token, MessageRegistry registry, Runnable onReady) throws IOException {
+        this.socket = new DatagramSocket();
+        this.socket.connect(server, port);
+        this.token = token;
+        this.registry = registry;
+        this.onReady = onReady;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!sayHello()) {
+                System.out.println("No answer to the UDP hellos, snapshots stay on TCP");
+                return;
+            }
+            ready = true;
+            onReady.run();
+            while (true) {
+                receive();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("UDP receiver stopped: " + e.getMessage());
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Until the server answers, true if it did
+    private boolean sayHello() throws IOException {
+        byte[] hello = new byte[Protocol.DATAGRAM_HEADER_SIZE];
+        ByteBuffer.wrap(hello).putInt(token).putInt(0);
+        socket.setSoTimeout(HELLO_INTERVAL_MILLIS);
+        for (int attempt = 0; attempt < HELLO_ATTEMPTS && !closed; attempt++) {
+            socket.send(new DatagramPacket(hello, hello.length));
+            try {
+                // Anything else that comes (snapshots once the server got an earlier hello) means it's through too
+                if (receive()) {
+                    socket.setSoTimeout(0);
+                    return true;
+                }
+            } catch (SocketTimeoutException e) {
+                // Once more
+            }
+        }
+        return false;
+    }
+
+    // One datagram, false if it wasn't from the server
+    private boolean receive() throws IOException {
+        packet.setLength(data.length);
+        socket.receive(packet);
+        buffer.clear();
+        buffer.limit(packet.getLength());
+        if (buffer.remaining() < Protocol.DATAGRAM_HEADER_SIZE || buffer.getInt() != token) {
+            return false;
+        }
+        int sequence = buffer.getInt();
+        // The answer to a hello
+        if (sequence == 0) {
+            return true;
+        }
+        received++;
+        if (sequence <= lastSequence) {
+            stale++;
+            return true;
+        }
+        lost += sequence - lastSequence - 1;
+        lastSequence = sequence;
+        try {
+            registry.dispatch(buffer);
+        } catch (IOException e) {
+            // Only this datagram, unlike a broken TCP stream the next one starts fresh
+            broken++;
+        }
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public String getStats() {
+        return String.format("%s, %d datagrams, %d stale, %d lost, %d broken", ready ? "ready" : "not ready", received, stale, lost, broken);
+    }
+}
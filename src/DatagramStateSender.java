@@ -0,0 +1,154 @@
+/*
+ * Filename: DatagramStateSender.java
+ * Description: BreakoutServer's side of the UDP snapshots (protocol 0 as datagrams, see Protocol), run with -Dbreakout.udp=true.
+ *
+ * Note:
+ * A snapshot is worthless once the next one exists, but on TCP a single lost packet holds up every snapshot behind
+ * it until it's resent. Here every snapshot is one datagram that either arrives or doesn't, and the client throws
+ * away the ones that arrive after a newer one (see DatagramStateReceiver).
+ *
+ * The server offers its port and a token over TCP (protocol 7). The client's hellos come from wherever its
+ * datagrams really come from (a router in between might change the port), so the first hello with the right token
+ * decides where snapshots go, and every hello gets an answer so the client knows both directions work.
+ * BreakoutServer only switches over once the client says so on TCP (protocol 8).
+ *
+ * sendState() and flush() on the game thread, like NetworkWriter. A UDP send never waits for the other side, so
+ * it happens right in flush(), into one direct buffer that's reused. The hellos are answered on their own thread.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+public class DatagramStateSender implements Runnable {
+
+    public static final String UDP_PROPERTY = "breakout.udp";
+
+    private final DatagramChannel channel;
+    private final int token;
+    private final StateFrameCodec[] codecs = {
+            new StateFrameCodec(Protocol.BOARD_YOURS),
+            new StateFrameCodec(Protocol.BOARD_OPPONENT)
+    };
+    // pendingState[board] is what StateFrameCodec.capture() filled in
+    private final boolean[] hasPendingState = new boolean[codecs.length];
+    private final int[][] pendingState = new int[codecs.length][StateFrameCodec.FIELD_COUNT];
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(Protocol.MAX_DATAGRAM_SIZE);
+    private final DataOutputStream datagramOut = new DataOutputStream(new ByteBufferOutput(datagram));
+    private final ByteBuffer hello = ByteBuffer.allocate(Protocol.MAX_DATAGRAM_SIZE);
+    private final ByteBuffer answer = ByteBuffer.allocate(Protocol.DATAGRAM_HEADER_SIZE);
+    private int sequence = 0;
+    // Set once the first hello came in, the channel only talks to the client from then on
+    private volatile boolean connected = false;
+
+    // Stats
+    private long datagrams = 0;
+    private long bytes = 0;
+    private long hellos = 0;
+    private long errors = 0;
+
+    // On any free port, the hellos are answered from now on
+    public DatagramStateSender() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(0));
+        token = new Random().nextInt();
+        GameThreads.start("breakout-udp-hello", this);
+    }
+
+    // -Dbreakout.udp=true, only the BreakoutServer decides
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(UDP_PROPERTY);
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public int getToken() {
+        return token;
+    }
+
+
+    // ----------- SENDING (game thread) -----------------
+
+    // board is one of Protocol.BOARD_*, relative to the client. Copies the engine's state right away
+    public void sendState(int board, long tick, BreakoutEngine engine, int inputAck) {
+        StateFrameCodec.capture(pendingState[board], tick, engine, inputAck);
+        hasPendingState[board] = true;
+    }
+
+    // Everything since the last flush() in one datagram, dropped if nobody said hello yet
+    public void flush() {
+        if (!connected || (!hasPendingState[0] && !hasPendingState[1])) {
+            return;
+        }
+        datagram.clear();
+        datagram.putInt(token);
+        datagram.putInt(++sequence);
+        try {
+            for (int board = 0; board < codecs.length; board++) {
+                if (hasPendingState[board]) {
+                    codecs[board].writeFull(datagramOut, pendingState[board]);
+                    hasPendingState[board] = false;
+                }
+            }
+            datagram.flip();
+            bytes += datagram.remaining();
+            channel.write(datagram);
+            datagrams++;
+        } catch (IOException e) {
+            // Nobody listening on the client's port right now (ICMP unreachable), the next snapshot tries again
+            errors++;
+        }
+    }
+
+
+    // ----------- HELLOS (own thread) -----------------
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                hello.clear();
+                SocketAddress from = channel.receive(hello);
+                hello.flip();
+                if (hello.remaining() < Protocol.DATAGRAM_HEADER_SIZE || hello.getInt() != token || hello.getInt() != 0) {
+                    continue;
+                }
+                hellos++;
+                if (!connected) {
+                    channel.connect(from);
+                    connected = true;
+                }
+                answer.clear();
+                answer.putInt(token).putInt(0).flip();
+                try {
+                    channel.write(answer);
+                } catch (IOException e) {
+                    // It says hello again if it missed the answer
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // close()
+        } catch (IOException e) {
+            System.out.println("UDP hellos stopped: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do, we're closing anyway
+        }
+    }
+
+    public String getStats() {
+        return String.format("%d datagrams, %d bytes, %d hellos, %d send errors", datagrams, bytes, hellos, errors);
+    }
+}
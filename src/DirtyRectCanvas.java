@@ -0,0 +1,401 @@
+/*
+ * Filename: DirtyRectCanvas.java
+ * Description: GCanvas that only repaints the parts of the screen where something changed since the last frame.
+ *
+ * Note:
+ * Every time a GObject moves, acm repaints the whole canvas: clear all 1100x600 pixels, paint every brick of
+ * both boards, copy it all to the screen. In the online versions that's a few hundred objects redrawn so two
+ * balls and two paddles can move a bit. While dirty tracking is on that automatic repaint is off, and the game
+ * loop calls paintDirty() once per frame instead. It compares every object with how it looked when it was last
+ * painted (position, size, color, visibility, label text), and only where something changed (the old and the
+ * new bounds, so a moved ball is erased and drawn again) gets cleared, repainted and copied to the screen.
+ * Nearby regions are merged, and if most of the canvas changed (theme switch) it just paints everything once.
+ *
+ * Nobody has to say what they changed, so the receiver thread removing bricks or the mouse moving the paddle
+ * just show up in the next frame. Use it from a GraphicsProgram with
+ *   protected GCanvas createGCanvas() { return new DirtyRectCanvas(); }
+ * and getStats() says how much of the canvas was actually painted.
+ */
+
+import acm.graphics.GCanvas;
+import acm.graphics.GFillable;
+import acm.graphics.GLabel;
+import acm.graphics.GObject;
+import acm.graphics.GRectangle;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+public class DirtyRectCanvas extends GCanvas {
+
+    // Outlines are drawn one pixel past the bounds, and a little extra doesn't cost anything
+    private static final int PADDING = 2;
+    // More regions than this in one frame and we paint their bounding box instead
+    private static final int MAX_REGIONS = 32;
+    // Regions closer than this are painted as one
+    private static final int MERGE_DISTANCE = 8;
+    // When this much of the canvas is dirty a single full paint is cheaper than many small ones
+    private static final double FULL_PAINT_FRACTION = 0.5;
+
+    // paintDirty() runs on the game loop, paint() on the AWT thread, both use the same buffer
+    private final Object paintLock = new Object();
+    private volatile boolean tracking = false;
+    private BufferedImage buffer;
+
+    // How every object looked when it was last painted, in painting order
+    private final IdentityHashMap<GObject, Snapshot> snapshots = new IdentityHashMap<GObject, Snapshot>();
+    private final ArrayList<Snapshot> painted = new ArrayList<Snapshot>();
+    private long diffs = 0;
+    private Color paintedBackground;
+
+    // Dirty regions of this frame, left/top/right/bottom (exclusive)
+    private final int[] lefts = new int[MAX_REGIONS];
+    private final int[] tops = new int[MAX_REGIONS];
+    private final int[] rights = new int[MAX_REGIONS];
+    private final int[] bottoms = new int[MAX_REGIONS];
+    private int regionCount = 0;
+    private boolean overflow = false;
+
+    // Stats
+    private long frames = 0;
+    private long regionsPainted = 0;
+    private long fullPaints = 0;
+    private long pixelsPainted = 0;
+    private long canvasPixels = 0;
+    private long paintNanos = 0;
+
+    // On: nothing repaints by itself anymore, call paintDirty() every frame. Off: back to acm's full repaints
+    public void setDirtyTracking(boolean on) {
+        synchronized (paintLock) {
+            if (on == tracking) {
+                return;
+            }
+            snapshots.clear();
+            painted.clear();
+            if (on) {
+                // Whatever is on the screen now counts as painted, anything acm still has queued arrives in paint()
+                findDirtyRegions();
+                regionCount = 0;
+                overflow = false;
+            }
+            tracking = on;
+        }
+        if (!on) {
+            repaint();
+        }
+    }
+
+    public boolean isDirtyTracking() {
+        return tracking;
+    }
+
+    // Repaints whatever changed since the last call, from the thread that changes the objects (the game loop)
+    public void paintDirty() {
+        if (!tracking) {
+            return;
+        }
+        long start = System.nanoTime();
+        // Outside the lock, AWT takes its tree lock for this and may be in paint() waiting for ours
+        Graphics screen = getGraphics();
+        try {
+            synchronized (paintLock) {
+                findDirtyRegions();
+                // Not on the screen yet, paint() takes care of it once it is
+                if (screen != null && (regionCount > 0 || overflow)) {
+                    paintRegions(screen);
+                }
+                regionCount = 0;
+                overflow = false;
+                frames++;
+            }
+        } finally {
+            if (screen != null) {
+                screen.dispose();
+            }
+        }
+        // Otherwise some window systems keep our drawing queued for a while
+        Toolkit.getDefaultToolkit().sync();
+        synchronized (this) {
+            paintNanos += System.nanoTime() - start;
+        }
+    }
+
+    // The window was uncovered, resized... While tracking we only paint what AWT asks for, not everything
+    @Override
+    public void paint(Graphics g) {
+        if (!tracking || !isOpaque()) {
+            super.paint(g);
+            return;
+        }
+        synchronized (paintLock) {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            paintRegion(g, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+        }
+    }
+
+    // For changes the diff can't see because no bounds changed (pixels inside an image, see BrickLayer), any thread
+    public void markDirty(double x, double y, double width, double height) {
+        synchronized (paintLock) {
+            if (tracking) {
+                addRegion((int) Math.floor(x) - PADDING, (int) Math.floor(y) - PADDING,
+                        (int) Math.ceil(x + width) + PADDING, (int) Math.ceil(y + height) + PADDING);
+                return;
+            }
+        }
+        super.conditionalRepaint();
+    }
+
+    // acm calls this whenever an object changes, paintDirty() does it while tracking
+    @Override
+    protected void conditionalRepaint() {
+        if (!tracking) {
+            super.conditionalRepaint();
+        }
+    }
+
+
+    // ----------- FINDING CHANGES -----------------
+
+    // Compares every object with its snapshot, what changed becomes dirty and the snapshot is updated
+    private void findDirtyRegions() {
+        diffs++;
+        if (!getBackground().equals(paintedBackground)) {
+            paintedBackground = getBackground();
+            overflow = true;
+        }
+        painted.clear();
+        // Other threads add and remove objects while we look, an object we miss only costs an extra repaint
+        int count = getElementCount();
+        for (int i = 0; i < count; i++) {
+            GObject object;
+            try {
+                object = getElement(i);
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+            Snapshot snapshot = snapshots.get(object);
+            if (snapshot == null) {
+                snapshot = new Snapshot(object);
+                snapshots.put(object, snapshot);
+                snapshot.update();
+                addSnapshotRegion(snapshot);
+            } else if (snapshot.hasChanged()) {
+                addSnapshotRegion(snapshot);
+                snapshot.update();
+                addSnapshotRegion(snapshot);
+            }
+            snapshot.diff = diffs;
+            painted.add(snapshot);
+        }
+        // Anything we didn't see anymore was removed, where it was has to be cleared
+        if (snapshots.size() > painted.size()) {
+            Iterator<Snapshot> it = snapshots.values().iterator();
+            while (it.hasNext()) {
+                Snapshot snapshot = it.next();
+                if (snapshot.diff != diffs) {
+                    addSnapshotRegion(snapshot);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void addSnapshotRegion(Snapshot snapshot) {
+        if (snapshot.visible) {
+            addRegion(snapshot.left, snapshot.top, snapshot.right, snapshot.bottom);
+        }
+    }
+
+    // Merges into an existing region when they touch or are close, so a moving ball is one region, not two
+    private void addRegion(int left, int top, int right, int bottom) {
+        if (overflow) {
+            return;
+        }
+        int i = 0;
+        while (i < regionCount) {
+            if (left <= rights[i] + MERGE_DISTANCE && right + MERGE_DISTANCE >= lefts[i]
+                    && top <= bottoms[i] + MERGE_DISTANCE && bottom + MERGE_DISTANCE >= tops[i]) {
+                // Take it out and try again with the union, it may touch others now
+                left = Math.min(left, lefts[i]);
+                top = Math.min(top, tops[i]);
+                right = Math.max(right, rights[i]);
+                bottom = Math.max(bottom, bottoms[i]);
+                removeRegion(i);
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+        if (regionCount == MAX_REGIONS) {
+            overflow = true;
+            return;
+        }
+        lefts[regionCount] = left;
+        tops[regionCount] = top;
+        rights[regionCount] = right;
+        bottoms[regionCount] = bottom;
+        regionCount++;
+    }
+
+    private void removeRegion(int i) {
+        regionCount--;
+        lefts[i] = lefts[regionCount];
+        tops[i] = tops[regionCount];
+        rights[i] = rights[regionCount];
+        bottoms[i] = bottoms[regionCount];
+    }
+
+
+    // ----------- PAINTING -----------------
+
+    private void paintRegions(Graphics screen) {
+        int width = getWidth();
+        int height = getHeight();
+        long area = 0;
+        for (int i = 0; i < regionCount; i++) {
+            area += (long) (rights[i] - lefts[i]) * (bottoms[i] - tops[i]);
+        }
+        long canvasArea = (long) width * height;
+        synchronized (this) {
+            canvasPixels += canvasArea;
+        }
+        if (overflow || area > canvasArea * FULL_PAINT_FRACTION) {
+            paintRegion(screen, 0, 0, width, height);
+            synchronized (this) {
+                fullPaints++;
+            }
+            return;
+        }
+        for (int i = 0; i < regionCount; i++) {
+            paintRegion(screen, lefts[i], tops[i], rights[i], bottoms[i]);
+        }
+    }
+
+    // Clears the region in the buffer, paints the objects that overlap it (back to front) and copies it to the screen
+    private void paintRegion(Graphics screen, int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, getWidth());
+        bottom = Math.min(bottom, getHeight());
+        if (left >= right || top >= bottom || !ensureBuffer()) {
+            return;
+        }
+        Graphics2D g = buffer.createGraphics();
+        try {
+            g.clipRect(left, top, right - left, bottom - top);
+            g.setColor(getBackground());
+            g.fillRect(left, top, right - left, bottom - top);
+            for (int i = 0; i < painted.size(); i++) {
+                Snapshot snapshot = painted.get(i);
+                if (snapshot.visible && snapshot.left < right && snapshot.right > left
+                        && snapshot.top < bottom && snapshot.bottom > top) {
+                    // Same as acm's paintObject(), which we can't call from here
+                    g.setColor(snapshot.object.getColor());
+                    snapshot.object.paint(g);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        screen.drawImage(buffer, left, top, right, bottom, left, top, right, bottom, null);
+        synchronized (this) {
+            regionsPainted++;
+            pixelsPainted += (long) (right - left) * (bottom - top);
+        }
+    }
+
+    // Our own back buffer, acm's is private. False while the canvas has no size yet
+    private boolean ensureBuffer() {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            buffer = config != null ? config.createCompatibleImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return true;
+    }
+
+
+    // ----------- GETTERS -----------------
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    // How much of the canvas (0..1) paintDirty() repainted on average, acm's repaint is always 1
+    public synchronized double getPaintedFraction() {
+        return canvasPixels == 0 ? 0 : (double) pixelsPainted / canvasPixels;
+    }
+
+    public synchronized double getAveragePaintMillis() {
+        return frames == 0 ? 0 : paintNanos / 1000000.0 / frames;
+    }
+
+    public synchronized String getStats() {
+        return "frames=" + frames + ", regions=" + regionsPainted + ", full paints=" + fullPaints
+                + ", painted=" + String.format("%.1f", getPaintedFraction() * 100) + "% of the canvas"
+                + ", avg paint=" + String.format("%.3f", getAveragePaintMillis()) + "ms";
+    }
+
+
+    // ----------- SNAPSHOTS -----------------
+
+    // What an object looked like when it was last painted, and the pixels it covered
+    private static class Snapshot {
+
+        final GObject object;
+        double x, y, width, height;
+        boolean visible;
+        Color color;
+        Color fillColor;
+        String label;
+        int left, top, right, bottom;
+        long diff;
+
+        Snapshot(GObject object) {
+            this.object = object;
+        }
+
+        // Only cheap getters here, this runs for every object every frame
+        boolean hasChanged() {
+            return object.getX() != x || object.getY() != y
+                    || object.getWidth() != width || object.getHeight() != height
+                    || object.isVisible() != visible
+                    || !object.getColor().equals(color)
+                    || (object instanceof GFillable && !((GFillable) object).getFillColor().equals(fillColor))
+                    || (object instanceof GLabel && !((GLabel) object).getLabel().equals(label));
+        }
+
+        void update() {
+            x = object.getX();
+            y = object.getY();
+            width = object.getWidth();
+            height = object.getHeight();
+            visible = object.isVisible();
+            color = object.getColor();
+            fillColor = object instanceof GFillable ? ((GFillable) object).getFillColor() : null;
+            label = object instanceof GLabel ? ((GLabel) object).getLabel() : null;
+            // getBounds() knows about label baselines and line ends, x/y/width/height don't
+            GRectangle bounds = object.getBounds();
+            left = (int) Math.floor(bounds.getX()) - PADDING;
+            top = (int) Math.floor(bounds.getY()) - PADDING;
+            right = (int) Math.ceil(bounds.getX() + bounds.getWidth()) + PADDING;
+            bottom = (int) Math.ceil(bounds.getY() + bounds.getHeight()) + PADDING;
+        }
+    }
+}
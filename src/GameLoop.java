@@ -0,0 +1,292 @@
+/*
+ * Filename: GameLoop.java
+ * Description: Fixed timestep loop for the GraphicsPrograms, simulation, drawing and network sends each run at their own rate.
+ *
+ * Note:
+ * The old loops were step(); draw; pause(DELAY), so one tick and one frame every 7ms plus however long the
+ * tick and the drawing took. On a slow machine the whole game slowed down, on a fast one we redrew way more
+ * often than any screen shows. Here real time goes into an accumulator and the simulation runs as many
+ * fixed ticks as fit in it, drawing happens at most renderHz times a second (the display refresh rate by
+ * default), and sending at sendHz. After a long hitch (window dragged, GC...) we give up on catching up
+ * past MAX_FRAME_MILLIS, so the game pauses for a moment instead of fast forwarding.
+ *
+ * Every rate can be set when starting the program, see the *_PROPERTY constants:
+ *   java -Dbreakout.tickHz=240 -Dbreakout.renderHz=60 -Dbreakout.sendHz=30 ...
+ * Networked games keep the protocol tick (BreakoutEngine.TICK_MILLIS), both ends have to agree on it.
+ *
+ * Frame times (the time between two render() calls) are kept in a histogram, see getStats(). So are the bytes
+ * tick() allocated (it shouldn't allocate any) and the GC runs during the game, see AllocationProbe.
+ */
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+
+public class GameLoop {
+
+    public static final String TICK_HZ_PROPERTY = "breakout.tickHz";
+    public static final String RENDER_HZ_PROPERTY = "breakout.renderHz";
+    public static final String SEND_HZ_PROPERTY = "breakout.sendHz";
+
+    public static final double DEFAULT_TICK_HZ = 1000.0 / BreakoutEngine.TICK_MILLIS;
+    // When the display doesn't tell us its refresh rate
+    public static final double DEFAULT_RENDER_HZ = 60;
+    private static final long MAX_FRAME_MILLIS = 250;
+
+    // Frame time histogram, 0.1ms buckets up to 100ms, anything longer goes into the last one
+    private static final double BUCKET_MILLIS = 0.1;
+    private static final int BUCKETS = 1000;
+
+    // What the loop drives, all of it is called from the thread that called run()
+    public interface Game {
+
+        // The loop stops once this is false
+        boolean isRunning();
+
+        // One fixed simulation tick
+        void tick();
+
+        // Draw the current state, alpha (0..1) is how far real time is between the last tick and the next one
+        void render(double alpha);
+
+        // Network sends, never called when sendHz is 0
+        void send();
+    }
+
+    private final long tickNanos;
+    private final long renderNanos;
+    private final long sendNanos;
+
+    // Stats
+    private final long[] frameHistogram = new long[BUCKETS];
+    private long frames = 0;
+    private long frameNanosTotal = 0;
+    private long maxFrameNanos = 0;
+    private long ticks = 0;
+    private long sends = 0;
+    private long skippedNanos = 0;
+    private long tickAllocatedBytes = 0;
+    private long gcCount = 0;
+    private long gcMillis = 0;
+
+    // sendHz 0 means this game never sends anything
+    public GameLoop(double tickHz, double renderHz, double sendHz) {
+        if (tickHz <= 0 || renderHz <= 0 || sendHz < 0) {
+            throw new IllegalArgumentException("Bad loop rates: tick " + tickHz + "Hz, render " + renderHz + "Hz, send " + sendHz + "Hz");
+        }
+        this.tickNanos = hzToNanos(tickHz);
+        this.renderNanos = hzToNanos(renderHz);
+        this.sendNanos = sendHz == 0 ? 0 : hzToNanos(sendHz);
+    }
+
+    public void run(Game game) {
+        long previous = System.nanoTime();
+        long lastRender = previous;
+        long nextRender = previous;
+        long nextSend = previous + sendNanos;
+        long accumulator = 0;
+        long gcCountAtStart = AllocationProbe.gcCount();
+        long gcMillisAtStart = AllocationProbe.gcMillis();
+
+        while (game.isRunning()) {
+            long now = System.nanoTime();
+            long elapsed = now - previous;
+            previous = now;
+            if (elapsed > MAX_FRAME_MILLIS * 1000000) {
+                recordSkipped(elapsed - MAX_FRAME_MILLIS * 1000000);
+                elapsed = MAX_FRAME_MILLIS * 1000000;
+            }
+            accumulator += elapsed;
+
+            if (accumulator >= tickNanos) {
+                long allocatedBefore = AllocationProbe.threadAllocatedBytes();
+                int ticksRun = 0;
+                while (accumulator >= tickNanos && game.isRunning()) {
+                    game.tick();
+                    ticksRun++;
+                    accumulator -= tickNanos;
+                }
+                // Together, so getAllocatedBytesPerTick() never sees the ticks without their bytes
+                recordTicks(ticksRun, AllocationProbe.allocatedSince(allocatedBefore));
+            }
+
+            if (sendNanos > 0 && now >= nextSend) {
+                game.send();
+                recordSend();
+                // If we fell behind we don't send a burst to make up for it
+                nextSend = Math.max(nextSend + sendNanos, now);
+            }
+
+            if (now >= nextRender) {
+                game.render(Math.min(1.0, (double) accumulator / tickNanos));
+                recordFrame(now - lastRender);
+                lastRender = now;
+                nextRender = Math.max(nextRender + renderNanos, now);
+            }
+
+            // Sleep until the first of the next tick, frame or send is due
+            long wakeUp = Math.min(now + tickNanos - accumulator, nextRender);
+            if (sendNanos > 0) {
+                wakeUp = Math.min(wakeUp, nextSend);
+            }
+            sleepUntil(wakeUp);
+        }
+        recordGc(AllocationProbe.gcCount() - gcCountAtStart, AllocationProbe.gcMillis() - gcMillisAtStart);
+    }
+
+    // Same thing acm's pause() does, but to the nanosecond we ask for
+    private static void sleepUntil(long wakeUp) {
+        long nanos = wakeUp - System.nanoTime();
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            // pause() ignores it too
+        }
+    }
+
+    private synchronized void recordFrame(long nanos) {
+        frames++;
+        frameNanosTotal += nanos;
+        maxFrameNanos = Math.max(maxFrameNanos, nanos);
+        int bucket = (int) (nanos / (BUCKET_MILLIS * 1000000));
+        frameHistogram[Math.min(bucket, BUCKETS - 1)]++;
+    }
+
+    private synchronized void recordTicks(int count, long allocatedBytes) {
+        ticks += count;
+        tickAllocatedBytes += allocatedBytes;
+    }
+
+    private synchronized void recordSend() {
+        sends++;
+    }
+
+    private synchronized void recordSkipped(long nanos) {
+        skippedNanos += nanos;
+    }
+
+    private synchronized void recordGc(long count, long millis) {
+        gcCount += count;
+        gcMillis += millis;
+    }
+
+    private static long hzToNanos(double hz) {
+        return Math.max(1, Math.round(1000000000.0 / hz));
+    }
+
+
+    // ----------- CONFIGURATION -----------------
+
+    public static double configuredTickHz(double defaultHz) {
+        return readHz(TICK_HZ_PROPERTY, defaultHz);
+    }
+
+    // -Dbreakout.renderHz if set, otherwise the refresh rate of the screen
+    public static double configuredRenderHz() {
+        return readHz(RENDER_HZ_PROPERTY, displayRefreshHz());
+    }
+
+    public static double configuredSendHz(double defaultHz) {
+        return readHz(SEND_HZ_PROPERTY, defaultHz);
+    }
+
+    private static double readHz(String property, double defaultHz) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaultHz;
+        }
+        try {
+            double hz = Double.parseDouble(value);
+            if (hz > 0) {
+                return hz;
+            }
+        } catch (NumberFormatException e) {
+            // falls through to the warning
+        }
+        System.out.println("Ignoring -D" + property + "=" + value + ", using " + defaultHz + "Hz");
+        return defaultHz;
+    }
+
+    public static double displayRefreshHz() {
+        try {
+            if (!GraphicsEnvironment.isHeadless()) {
+                DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+                if (mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                    return mode.getRefreshRate();
+                }
+            }
+        } catch (HeadlessException e) {
+            // no screen at all
+        }
+        return DEFAULT_RENDER_HZ;
+    }
+
+
+    // ----------- GETTERS -----------------
+
+    public double getTickMillis() {
+        return tickNanos / 1000000.0;
+    }
+
+    public synchronized long getTicks() {
+        return ticks;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    public synchronized double getAverageFrameMillis() {
+        return frames == 0 ? 0 : frameNanosTotal / 1000000.0 / frames;
+    }
+
+    public synchronized double getMaxFrameMillis() {
+        return maxFrameNanos / 1000000.0;
+    }
+
+    // Frame time that percentile (0..100) of the frames stayed under, to BUCKET_MILLIS precision
+    public synchronized double getFramePercentileMillis(double percentile) {
+        long target = (long) Math.ceil(frames * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += frameHistogram[bucket];
+            if (seen >= target && seen > 0) {
+                return (bucket + 1) * BUCKET_MILLIS;
+            }
+        }
+        return 0;
+    }
+
+    // Real time we didn't simulate because a frame took longer than MAX_FRAME_MILLIS
+    public synchronized double getSkippedMillis() {
+        return skippedNanos / 1000000.0;
+    }
+
+    // Average bytes one tick() allocated, 0 is what we want (and what you get without AllocationProbe support)
+    public synchronized double getAllocatedBytesPerTick() {
+        return ticks == 0 ? 0 : (double) tickAllocatedBytes / ticks;
+    }
+
+    // Garbage collections while run() was running, all threads, only known once it returned
+    public synchronized long getGcCount() {
+        return gcCount;
+    }
+
+    public synchronized long getGcMillis() {
+        return gcMillis;
+    }
+
+    public synchronized String getStats() {
+        return "ticks=" + ticks + ", sends=" + sends + ", frames=" + frames
+                + ", avg frame=" + String.format("%.2f", getAverageFrameMillis()) + "ms"
+                + ", p50=" + String.format("%.1f", getFramePercentileMillis(50)) + "ms"
+                + ", p99=" + String.format("%.1f", getFramePercentileMillis(99)) + "ms"
+                + ", max frame=" + String.format("%.2f", getMaxFrameMillis()) + "ms"
+                + ", skipped=" + String.format("%.0f", getSkippedMillis()) + "ms"
+                + ", alloc/tick=" + String.format("%.1f", getAllocatedBytesPerTick()) + "B"
+                + ", gc=" + gcCount + " (" + gcMillis + "ms)";
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Filename: GameThreads.java
+ * Description: Starts the background threads used by the BreakoutOnline classes (socket readers, countdown, network writer...).
+ *
+ * Note:
+ * Run with -Dbreakout.virtualThreads=true to get a Java virtual thread for every one of them instead of a
+ * platform thread. Virtual threads only exist on Java 21+, and this project still compiles for Java 8, so
+ * Thread.startVirtualThread is looked up with reflection. On older JVMs the flag prints a warning and we
+ * just keep using platform threads, which is also how the two modes can be compared on the same build.
+ * Same for the pools from newPool(), a virtual thread per task instead of a few platform threads.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GameThreads {
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "breakout.virtualThreads";
+
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findNewVirtualThreadExecutor();
+    private static final boolean VIRTUAL = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && START_VIRTUAL_THREAD != null;
+
+    static {
+        if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && START_VIRTUAL_THREAD == null) {
+            System.out.println("Virtual threads need Java 21+, using platform threads");
+        }
+    }
+
+    private GameThreads() {
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    // Platform threads are daemons, virtual threads always are
+    public static Thread start(String name, Runnable task) {
+        if (VIRTUAL) {
+            try {
+                Thread thread = (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+                thread.setName(name);
+                return thread;
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Could not start virtual thread " + name, e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // At most threads tasks at a time on daemon threads called name-1, name-2... Shut it down when done
+    public static ExecutorService newPool(String name, int threads) {
+        if (VIRTUAL && NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Could not create virtual thread pool " + name, e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Method findStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Method findNewVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Filename: InterpolationBuffer.java
+ * Description: Draws the opponent's board a little in the past, smoothly, from the snapshots the server sends.
+ *
+ * Note:
+ * Snapshots come about 24 times a second and never exactly on time, so snapping the opponent to each one
+ * stutters. Instead we keep the last few of them and draw the opponent at (server tick now - delay),
+ * interpolating between the two snapshots around that tick. If the next one is late we extrapolate the ball
+ * from its velocity for a little while, and after that it just waits where it is.
+ *
+ * "Server tick now" is estimated from when the snapshots arrive. The estimate follows the earliest arrivals
+ * (least delayed ones) and only slowly moves later, so jitter doesn't shake it.
+ * add() on the receiver thread, sample() on the game loop.
+ */
+
+public class InterpolationBuffer {
+
+    private static final int CAPACITY = 32;
+    private static final double TICK_NANOS = BreakoutEngine.TICK_MILLIS * 1000000.0;
+    private static final double CLOCK_SMOOTHING = 0.05;
+
+    private final double delayTicks;
+    private final double maxExtrapolationTicks;
+
+    // Ring buffer of snapshots, oldest at start
+    private final int[] ticks = new int[CAPACITY];
+    private final double[] paddleXs = new double[CAPACITY];
+    private final double[] ballXs = new double[CAPACITY];
+    private final double[] ballYs = new double[CAPACITY];
+    private final double[] vxs = new double[CAPACITY];
+    private final double[] vys = new double[CAPACITY];
+    private final boolean[] waiting = new boolean[CAPACITY];
+    private int start = 0;
+    private int count = 0;
+
+    // local ticks - server ticks
+    private double clockOffset;
+
+    // Result of the last sample()
+    private double paddleX, ballX, ballY;
+    private long extrapolatedSamples = 0;
+
+    public InterpolationBuffer(double delayMillis, double maxExtrapolationMillis) {
+        this.delayTicks = delayMillis / BreakoutEngine.TICK_MILLIS;
+        this.maxExtrapolationTicks = maxExtrapolationMillis / BreakoutEngine.TICK_MILLIS;
+    }
+
+    public synchronized void add(StateFrameCodec state, long nowNanos) {
+        int tick = state.getTick();
+        if (count > 0 && tick <= ticks[index(count - 1)]) {
+            return;
+        }
+        if (count == CAPACITY) {
+            start = (start + 1) % CAPACITY;
+            count--;
+        }
+        int i = index(count);
+        ticks[i] = tick;
+        paddleXs[i] = state.getPaddleX();
+        ballXs[i] = state.getBallX();
+        ballYs[i] = state.getBallY();
+        vxs[i] = state.getVx();
+        vys[i] = state.getVy();
+        waiting[i] = state.getResetDelay() > 0;
+        count++;
+
+        double offset = nowNanos / TICK_NANOS - tick;
+        if (count == 1 || offset < clockOffset) {
+            clockOffset = offset;
+        } else {
+            clockOffset += (offset - clockOffset) * CLOCK_SMOOTHING;
+        }
+    }
+
+    // Works out where the opponent is at nowNanos, returns false if there is nothing to draw yet
+    public synchronized boolean sample(long nowNanos) {
+        if (count == 0) {
+            return false;
+        }
+        double renderTick = nowNanos / TICK_NANOS - clockOffset - delayTicks;
+        int newest = index(count - 1);
+
+        if (renderTick >= ticks[newest]) {
+            // Next snapshot is late, keep the ball going unless it's waiting after a miss
+            double ahead = waiting[newest] ? 0 : Math.min(renderTick - ticks[newest], maxExtrapolationTicks);
+            if (ahead > 0) {
+                extrapolatedSamples++;
+            }
+            paddleX = paddleXs[newest];
+            ballX = ballXs[newest] + vxs[newest] * ahead;
+            ballY = ballYs[newest] + vys[newest] * ahead;
+            return true;
+        }
+
+        int after = count - 1;
+        while (after > 0 && ticks[index(after - 1)] > renderTick) {
+            after--;
+        }
+        int b = index(after);
+        if (after == 0) {
+            // Older than anything we have, happens right at the start
+            set(b);
+            return true;
+        }
+        int a = index(after - 1);
+        if (waiting[b]) {
+            // The ball was missed in between and is back in the center, don't slide it there
+            set(b);
+            return true;
+        }
+        double t = (renderTick - ticks[a]) / (ticks[b] - ticks[a]);
+        paddleX = paddleXs[a] + (paddleXs[b] - paddleXs[a]) * t;
+        ballX = ballXs[a] + (ballXs[b] - ballXs[a]) * t;
+        ballY = ballYs[a] + (ballYs[b] - ballYs[a]) * t;
+        return true;
+    }
+
+    private void set(int i) {
+        paddleX = paddleXs[i];
+        ballX = ballXs[i];
+        ballY = ballYs[i];
+    }
+
+    private int index(int k) {
+        return (start + k) % CAPACITY;
+    }
+
+    public synchronized double getPaddleX() {
+        return paddleX;
+    }
+
+    public synchronized double getBallX() {
+        return ballX;
+    }
+
+    public synchronized double getBallY() {
+        return ballY;
+    }
+
+    public synchronized long getExtrapolatedSamples() {
+        return extrapolatedSamples;
+    }
+}
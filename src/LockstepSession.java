@@ -0,0 +1,203 @@
+/*
+ * Filename: LockstepSession.java
+ * Description: Lockstep mode of a BreakoutServer/BreakoutClient match, both sides play both boards from the paddle inputs alone.
+ *
+ * Note:
+ * Run the BreakoutServer with -Dbreakout.lockstep=true, the client is told so with the game start (see Protocol).
+ * Every board only depends on the match seed and its paddle inputs (see MatchRandom), so instead of the server
+ * sending both boards around, each side sends the paddle x of every tick, numbered (protocol 3 both ways), and
+ * steps its own BreakoutMatch once it has both players' inputs for the next tick. That's a 10 byte message per tick
+ * each way and nothing else: no snapshots, no events, no game end, both sides see the same game end on their own.
+ *
+ * Our input for a tick is taken INPUT_DELAY_TICKS before that tick is played, so it has that long to reach the
+ * other side before anyone waits for it. Both sides start with the centered paddle for the first INPUT_DELAY_TICKS
+ * ticks. If the other side's input still isn't here, the tick waits (counted as a stall) and we don't take any
+ * newer inputs either, so neither side gets further ahead than that.
+ *
+ * Every HASH_INTERVAL_TICKS ticks both sides hash both boards (BreakoutEngine.stateHash() and the board's MatchRandom)
+ * and send it (protocol 4).
+ * If the other side hashed the same tick differently the games went apart, which is reported and ends the match.
+ *
+ * step() and queueLocal() on the game thread, the add*() methods on the receiver thread. Nothing is allocated per tick.
+ */
+
+import java.io.IOException;
+
+public class LockstepSession {
+
+    public static final String LOCKSTEP_PROPERTY = "breakout.lockstep";
+
+    // 42ms at the protocol tick, plenty for a local network
+    public static final int INPUT_DELAY_TICKS = 6;
+    public static final int HASH_INTERVAL_TICKS = 60;
+    public static final long NO_DESYNC = -1;
+
+    // Inputs kept per player, neither side can be more than 2 * INPUT_DELAY_TICKS ahead of the other's tick
+    private static final int WINDOW = 64;
+    // Hashes kept per side, the other side is never more than one hash behind or ahead
+    private static final int HASH_HISTORY = 4;
+
+    private final BreakoutMatch match;
+    private final int localPlayer;
+    private final int remotePlayer;
+
+    // inputs[player][tick % WINDOW], quantized paddle x (see Protocol) so both sides play exactly the same doubles
+    private final int[][] inputs = new int[BreakoutMatch.PLAYERS][WINDOW];
+    // Last tick each player's input is here for, guarded by this
+    private final long[] lastInputs = new long[BreakoutMatch.PLAYERS];
+
+    // Hashes of ticks, ours and the other side's, guarded by this
+    private final long[] localHashTicks = new long[HASH_HISTORY];
+    private final long[] localHashes = new long[HASH_HISTORY];
+    private final long[] remoteHashTicks = new long[HASH_HISTORY];
+    private final long[] remoteHashes = new long[HASH_HISTORY];
+    private long lastHash;
+    private volatile long desyncTick = NO_DESYNC;
+
+    // Stats
+    private long stalls = 0;
+    private long hashesChecked = 0;
+
+    public LockstepSession(BreakoutMatch match, int localPlayer) {
+        this.match = match;
+        this.localPlayer = localPlayer;
+        this.remotePlayer = BreakoutMatch.opponentOf(localPlayer);
+        int centered = Protocol.quantize((BreakoutEngine.WIDTH - BreakoutEngine.PADDLE_WIDTH) / 2.0);
+        for (int player = 0; player < BreakoutMatch.PLAYERS; player++) {
+            for (long tick = 1; tick <= INPUT_DELAY_TICKS; tick++) {
+                inputs[player][(int) (tick % WINDOW)] = centered;
+            }
+            lastInputs[player] = INPUT_DELAY_TICKS;
+        }
+        for (int i = 0; i < HASH_HISTORY; i++) {
+            localHashTicks[i] = -1;
+            remoteHashTicks[i] = -1;
+        }
+    }
+
+    // -Dbreakout.lockstep=true, only the BreakoutServer decides
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(LOCKSTEP_PROPERTY);
+    }
+
+
+    // ----------- GAME THREAD -----------------
+
+    // Plays the next tick if both inputs for it are here, false if it has to wait
+    public synchronized boolean step() {
+        long next = match.getTick() + 1;
+        if (match.isOver()) {
+            return false;
+        }
+        if (lastInputs[remotePlayer] < next) {
+            stalls++;
+            return false;
+        }
+        for (int player = 0; player < BreakoutMatch.PLAYERS; player++) {
+            match.setPaddleInput(player, Protocol.dequantize(inputs[player][(int) (next % WINDOW)]));
+        }
+        match.step();
+        if (isHashTick()) {
+            // With where every board's random stream is, one that drew once more serves differently from the next miss on
+            lastHash = 0;
+            for (int board = 0; board < BreakoutMatch.PLAYERS; board++) {
+                lastHash = lastHash * 31 + match.getEngine(board).stateHash();
+                lastHash = lastHash * 31 + match.getRandom(board).getState();
+            }
+            int slot = slot(next);
+            localHashTicks[slot] = next;
+            localHashes[slot] = lastHash;
+            compare(next);
+        }
+        return true;
+    }
+
+    // Our paddle x for a tick INPUT_DELAY_TICKS from now, returns that tick so it can be sent, or 0 if we're waiting
+    public synchronized int queueLocal(double paddleX) {
+        long tick = lastInputs[localPlayer] + 1;
+        if (tick > match.getTick() + INPUT_DELAY_TICKS) {
+            return 0;
+        }
+        inputs[localPlayer][(int) (tick % WINDOW)] = Protocol.quantize(paddleX);
+        lastInputs[localPlayer] = tick;
+        return (int) tick;
+    }
+
+    // Whether the tick step() just played gets its hash sent, getLastHash()
+    public synchronized boolean isHashTick() {
+        return match.getTick() % HASH_INTERVAL_TICKS == 0;
+    }
+
+    public synchronized long getLastHash() {
+        return lastHash;
+    }
+
+
+    // ----------- RECEIVER THREAD -----------------
+
+    // The other side's paddle x for a tick, they come in order
+    public synchronized void addRemoteInput(int tick, double paddleX) throws IOException {
+        if (tick != lastInputs[remotePlayer] + 1) {
+            throw new IOException("Lockstep input for tick " + tick + ", expected " + (lastInputs[remotePlayer] + 1));
+        }
+        if (tick - match.getTick() >= WINDOW) {
+            throw new IOException("Lockstep input for tick " + tick + " is too far ahead of tick " + match.getTick());
+        }
+        inputs[remotePlayer][tick % WINDOW] = Protocol.quantize(paddleX);
+        lastInputs[remotePlayer] = tick;
+    }
+
+    public synchronized void addRemoteHash(int tick, long hash) {
+        int slot = slot(tick);
+        remoteHashTicks[slot] = tick;
+        remoteHashes[slot] = hash;
+        compare(tick);
+    }
+
+    // Once both sides hashed the tick
+    private void compare(long tick) {
+        int slot = slot(tick);
+        if (localHashTicks[slot] != tick || remoteHashTicks[slot] != tick) {
+            return;
+        }
+        hashesChecked++;
+        if (localHashes[slot] != remoteHashes[slot] && desyncTick == NO_DESYNC) {
+            desyncTick = tick;
+        }
+    }
+
+    private static int slot(long tick) {
+        return (int) (tick / HASH_INTERVAL_TICKS % HASH_HISTORY);
+    }
+
+
+    // ----------- GETTERS -----------------
+
+    // Whether there's a tick to play even if the other side is gone (it sent its last inputs before closing)
+    public synchronized boolean hasRemoteInput() {
+        return lastInputs[remotePlayer] > match.getTick();
+    }
+
+    // What the game loop runs on, while connected or while the other side's last inputs still need playing
+    public boolean isRunning(boolean connected) {
+        return !isOver() && (connected || hasRemoteInput());
+    }
+
+    public boolean isOver() {
+        return match.isOver() || desyncTick != NO_DESYNC;
+    }
+
+    // First hashed tick the two sides disagreed on, or NO_DESYNC
+    public long getDesyncTick() {
+        return desyncTick;
+    }
+
+    public BreakoutMatch getMatch() {
+        return match;
+    }
+
+    public synchronized String getStats() {
+        return String.format("%d ticks, %d stalls, %d hashes checked, %s", match.getTick(), stalls, hashesChecked,
+                desyncTick == NO_DESYNC ? "in sync" : "OUT OF SYNC at tick " + desyncTick);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Filename: MatchRandom.java
+ * Description: The seeded random numbers of a networked match, one stream per board, the same on every machine that knows the seed.
+ *
+ * Note:
+ * setRandomVx() is the only random thing in a BreakoutEngine. The online games used to share one Random between
+ * both boards (or use acm's RandomGenerator, which nobody can seed), so a board's serves depended on when the
+ * other board happened to miss, and the client couldn't work out any of them on its own. Now the server picks
+ * a match seed, sends it with the end of the countdown (see Protocol), and every board gets its own stream split
+ * off it with boardSeed(). A board then only depends on the seed and its own paddle inputs: the client's
+ * prediction serves exactly like the server, and either side can play either board from inputs alone.
+ *
+ * The generator is SplitMix64 (what java.util.SplittableRandom uses), written out here because the engines take
+ * a java.util.Random. split() starts a child at the parent's next output, with the same gamma. Its whole state is
+ * one long, see getState()/setState() for replay keyframes (ReplayReader).
+ */
+
+import java.util.Random;
+
+public class MatchRandom extends Random {
+
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    public MatchRandom(long seed) {
+        super(seed);
+        // Random's constructor already called setSeed(), but before this class was initialised
+        setSeed(seed);
+    }
+
+    // A seed for a new match, different every time
+    public static long newSeed() {
+        return new Random().nextLong();
+    }
+
+    // Seed of board's stream in the match, the same as the board + 1th split() of new MatchRandom(matchSeed)
+    public static long boardSeed(long matchSeed, int board) {
+        MatchRandom match = new MatchRandom(matchSeed);
+        for (int i = 0; i < board; i++) {
+            match.nextLong();
+        }
+        return match.nextLong();
+    }
+
+    // An independent stream, this one moves on by one number
+    public MatchRandom split() {
+        return new MatchRandom(nextLong());
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        state = seed;
+    }
+
+    @Override
+    public long nextLong() {
+        long z = (state += GAMMA);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Everything else Random has is built on next()
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    // 53 random bits, one nextLong() instead of Random's two next()
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public void setState(long state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Filename: MessageReceiver.java
+ * Description: Reads the frames the other side sends from a blocking socket and hands them to a MessageRegistry.
+ *
+ * Note:
+ * Runs on its own thread and only ever blocks on the socket: nothing arrives, nothing runs. The client used to
+ * spin on input.available() through the whole countdown and on a gameStarted flag until the match began, a full
+ * core busy before anything was played (IdleCpuCheck in the benchmarks fails the build if that comes back).
+ *
+ * Every frame's payload is read into one buffer that's reused for all of them, then decoded out of it by the
+ * registry (see MessageRegistry), so receiving a message allocates nothing. The buffer starts small (a
+ * BreakoutThreadedServer can have thousands of these) and only grows if a bigger frame ever comes.
+ * The version handshake before the first frame is still read with Protocol.readHandshake() on the same stream.
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MessageReceiver {
+
+    // Way more than any message this version sends, the biggest is a full INPUT at 515 bytes
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final DataInputStream in;
+    private final MessageRegistry registry;
+    private ByteBuffer payload = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public MessageReceiver(DataInputStream in, MessageRegistry registry) {
+        this.in = in;
+        this.registry = registry;
+    }
+
+    // Until a handler returns false, or throws if the connection goes or a message doesn't make sense
+    public void receive() throws IOException {
+        while (true) {
+            int messageType = in.readUnsignedByte();
+            int length = in.readUnsignedShort();
+            if (length > payload.capacity()) {
+                payload = ByteBuffer.allocate(Protocol.MAX_PAYLOAD_SIZE);
+            }
+            in.readFully(payload.array(), 0, length);
+            payload.clear();
+            payload.limit(length);
+            if (!registry.dispatch(messageType, payload)) {
+                return;
+            }
+        }
+    }
+
+    public MessageRegistry getRegistry() {
+        return registry;
+    }
+
+    public String getStats() {
+        return registry.getStats();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Filename: MessageRegistry.java
+ * Description: Which codec and handler every message type of a connection goes to, decoding frames straight out of a ByteBuffer.
+ *
+ * Note:
+ * Every message is a frame, type + length + payload (see Protocol). Whoever reads the connection registers a codec
+ * (Protocol.Inputs, Protocol.State...) and a handler for each type it expects, with on(). A frame is decoded in place:
+ * the buffer's position and limit are set around its payload, the type's codec reads its fields right out of it
+ * and the handler gets the codec. Nothing is copied or allocated per message, the codecs are reused (one per type
+ * per registry, so one per connection).
+ *
+ * dispatch() takes a buffer full of whatever arrived (BreakoutLobbyServer's ByteBuffers) and handles every whole
+ * frame in it, a frame that isn't all there yet stays for the next read. MessageReceiver does the same for a blocking
+ * socket. A type nobody registered is stepped over (counted as skipped), and so is whatever a codec didn't read at
+ * the end of a payload, that's how a newer peer can send something this version doesn't know about.
+ */
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+public class MessageRegistry {
+
+    // Reads the fields of its message type out of the payload
+    public interface Codec {
+        void decode(ByteBuffer payload) throws IOException;
+    }
+
+    // The codec was just filled in. false if nothing comes after this message
+    public interface Handler<C extends Codec> {
+        boolean handle(C message) throws IOException;
+    }
+
+    private static final int MESSAGE_TYPES = 256;
+
+    private final Codec[] codecs = new Codec[MESSAGE_TYPES];
+    private final Handler<?>[] handlers = new Handler<?>[MESSAGE_TYPES];
+
+    // Stats
+    private long messages = 0;
+    private long skipped = 0;
+    private long bytes = 0;
+
+    public <C extends Codec> MessageRegistry on(int messageType, C codec, Handler<? super C> handler) {
+        codecs[messageType] = codec;
+        handlers[messageType] = handler;
+        return this;
+    }
+
+    // Every whole frame from the buffer's position on, returns false if a handler said it was the last message.
+    // The buffer is left at the first frame that isn't all there yet, compact() it and read more
+    public boolean dispatch(ByteBuffer buffer) throws IOException {
+        while (buffer.remaining() >= Protocol.FRAME_HEADER_SIZE) {
+            int start = buffer.position();
+            int messageType = buffer.get(start) & 0xFF;
+            int length = buffer.getShort(start + 1) & 0xFFFF;
+            int end = start + Protocol.FRAME_HEADER_SIZE + length;
+            if (end > buffer.limit()) {
+                if (Protocol.FRAME_HEADER_SIZE + length > buffer.capacity()) {
+                    throw new IOException("Message type " + messageType + " of " + length + " bytes doesn't fit the buffer");
+                }
+                return true;
+            }
+            int limit = buffer.limit();
+            buffer.limit(end).position(start + Protocol.FRAME_HEADER_SIZE);
+            boolean more;
+            try {
+                more = dispatch(messageType, buffer);
+            } finally {
+                buffer.limit(limit).position(end);
+            }
+            if (!more) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One payload, from the buffer's position to its limit, where it's left afterwards doesn't matter
+    @SuppressWarnings("unchecked")
+    public boolean dispatch(int messageType, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        bytes += Protocol.FRAME_HEADER_SIZE + length;
+        Codec codec = codecs[messageType];
+        if (codec == null) {
+            skipped++;
+            return true;
+        }
+        messages++;
+        try {
+            codec.decode(payload);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Message type " + messageType + " is too short, " + length + " bytes");
+        }
+        return ((Handler<Codec>) handlers[messageType]).handle(codec);
+    }
+
+    public String getStats() {
+        return String.format("%d messages, %d skipped, %d bytes", messages, skipped, bytes);
+    }
+}
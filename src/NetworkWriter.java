@@ -0,0 +1,295 @@
+/*
+ * Filename: NetworkWriter.java
+ * Description: Outbound side of a BreakoutServer/BreakoutClient connection, running on its own thread.
+ *
+ * Note:
+ * The game thread never touches the socket. It queues messages here (which is just appending bytes to an
+ * in-memory buffer) and calls flush() once at the end of every tick. The writer thread then takes
+ * everything queued for that tick, puts the latest state frame in and sends it all with one write().
+ *
+ * Events (countdown, board events, inputs, state hashes, game end) are reliable and always sent in order. State frames
+ * are not: if the previous one for the same board is still waiting because the peer is slow, the new one
+ * simply replaces it (counted as superseded) and goes where the newer sendState() happened between the
+ * queued events.
+ * Delta encoding happens on the writer thread, so a dropped frame can't confuse the other side's
+ * StateFrameCodec.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+public class NetworkWriter implements Runnable {
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private final OutputStream out;
+    private final Runnable onError;
+    private final Thread thread;
+    private final StateFrameCodec[] stateCodecs = {
+            new StateFrameCodec(Protocol.BOARD_YOURS),
+            new StateFrameCodec(Protocol.BOARD_OPPONENT)
+    };
+
+    // Filled by the game thread, guarded by this
+    private final Buffer pending = new Buffer();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    // pendingState[board] is what StateFrameCodec.capture() filled in
+    private final boolean[] hasPendingState = new boolean[stateCodecs.length];
+    private final int[][] pendingState = new int[stateCodecs.length][StateFrameCodec.FIELD_COUNT];
+    private int pendingStateOffset = 0;
+    private boolean flushRequested = false;
+    private boolean closed = false;
+
+    // Owned by the writer thread and reused for every batch, so nothing gets allocated per tick
+    private final Buffer batch = new Buffer();
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+
+    // Backpressure metrics
+    private long batchesWritten = 0;
+    private long bytesWritten = 0;
+    private long supersededFrames = 0;
+    private int maxPendingBytes = 0;
+    private long maxWriteNanos = 0;
+
+    // onError runs on the writer thread if the socket dies
+    public NetworkWriter(OutputStream out, Runnable onError) {
+        this.out = out;
+        this.onError = onError;
+        this.thread = GameThreads.start("breakout-network-writer", this);
+    }
+
+
+    // ----------- QUEUEING (game thread) -----------------
+
+    public synchronized void sendHandshake() {
+        try {
+            Protocol.writeHandshake(pendingOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    // board is one of Protocol.BOARD_*, relative to the peer
+    // Copies the engine's state right away, the engine keeps changing while the frame waits
+    public synchronized void sendState(int board, long tick, BreakoutEngine engine, int inputAck) {
+        if (hasPendingState[board]) {
+            supersededFrames++;
+        }
+        StateFrameCodec.capture(pendingState[board], tick, engine, inputAck);
+        hasPendingState[board] = true;
+        pendingStateOffset = pending.size();
+    }
+
+    public synchronized void sendBoardEvents(int board, int events, int brickId, int turnsLeft) {
+        try {
+            Protocol.writeBoardEvents(pendingOut, board, events, brickId, turnsLeft);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendInputs(int firstSeq, double[] inputs, int count) {
+        try {
+            Protocol.writeInputs(pendingOut, firstSeq, inputs, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendStateHash(int tick, long hash) {
+        try {
+            Protocol.writeStateHash(pendingOut, tick, hash);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendGameEnd(boolean youWon) {
+        try {
+            Protocol.writeGameEnd(pendingOut, youWon);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendCountdown(int count) {
+        try {
+            Protocol.writeCountdown(pendingOut, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendGameStarted(long seed, int player, int mode) {
+        try {
+            Protocol.writeGameStarted(pendingOut, seed, player, mode);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendUdpOffer(int port, int token) {
+        try {
+            Protocol.writeUdpOffer(pendingOut, port, token);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    public synchronized void sendUdpReady() {
+        try {
+            Protocol.writeUdpReady(pendingOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        updatePendingBytes();
+    }
+
+    // End of tick, wakes the writer thread up to send everything queued so far (if there is anything)
+    public synchronized void flush() {
+        if (pending.size() == 0 && !hasPendingState[0] && !hasPendingState[1]) {
+            return;
+        }
+        flushRequested = true;
+        notifyAll();
+    }
+
+    // Sends whatever is still queued, then closes the stream. Waits a bit for that unless called from the writer thread itself
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void updatePendingBytes() {
+        maxPendingBytes = Math.max(maxPendingBytes, pending.size());
+    }
+
+
+    // ----------- WRITING (writer thread) -----------------
+
+    @Override
+    public void run() {
+        try {
+            while (takeBatch()) {
+                writeBatch();
+            }
+            // takeBatch() returned false so we're closing, it already moved whatever was left into batch
+            writeBatch();
+            out.close();
+        } catch (IOException e) {
+            System.out.println("Network writer stopped: " + e.getMessage());
+            synchronized (this) {
+                closed = true;
+            }
+            onError.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits for a flush and moves everything queued into batch, returns false once closed
+    private synchronized boolean takeBatch() throws IOException, InterruptedException {
+        while (!flushRequested && !closed) {
+            wait();
+        }
+        flushRequested = false;
+
+        batch.write(pending.array(), 0, pendingStateOffset);
+        for (int board = 0; board < stateCodecs.length; board++) {
+            if (hasPendingState[board]) {
+                stateCodecs[board].write(batchOut, pendingState[board]);
+                hasPendingState[board] = false;
+            }
+        }
+        batch.write(pending.array(), pendingStateOffset, pending.size() - pendingStateOffset);
+        pending.reset();
+        pendingStateOffset = 0;
+        return !closed;
+    }
+
+    private void writeBatch() throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        batch.writeTo(out);
+        out.flush();
+        long took = System.nanoTime() - start;
+
+        synchronized (this) {
+            batchesWritten++;
+            bytesWritten += batch.size();
+            maxWriteNanos = Math.max(maxWriteNanos, took);
+        }
+        batch.reset();
+    }
+
+
+    // ----------- METRICS -----------------
+
+    public synchronized int getPendingBytes() {
+        return pending.size();
+    }
+
+    public synchronized long getBatchesWritten() {
+        return batchesWritten;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getSupersededFrames() {
+        return supersededFrames;
+    }
+
+    public synchronized int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public synchronized long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    public synchronized String getStats() {
+        return "batches=" + batchesWritten
+                + ", bytes=" + bytesWritten
+                + ", superseded frames=" + supersededFrames
+                + ", max pending bytes=" + maxPendingBytes
+                + ", max write=" + maxWriteNanos / 1000 + "us";
+    }
+
+    // ByteArrayOutputStream that lets us copy parts of it without toByteArray()
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
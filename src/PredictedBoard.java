@@ -0,0 +1,106 @@
+/*
+ * Filename: PredictedBoard.java
+ * Description: Client-side prediction of the player's own board, corrected by the snapshots the server sends.
+ *
+ * Note:
+ * Snapshots only come every Protocol.SEND_INTERVAL_TICKS ticks and are half a round trip old when they
+ * arrive, so drawing our ball straight from them would leave it behind our paddle. Instead the client
+ * keeps stepping a local BreakoutEngine every tick with its own (numbered) inputs. When a snapshot arrives
+ * the engine goes back to what the server said and every input the server hadn't applied yet gets replayed
+ * on top of it (reconcile()), so we only drift as far as the server and us disagree, and never for long.
+ *
+ * Bricks and hearts are only ever taken from the server's events, the prediction just bounces off them.
+ * A replayed miss serves again, so the board's MatchRandom goes back too, to where it was before the first
+ * replayed input. Otherwise every replay of the same miss would draw again and our serves would run ahead
+ * of the server's for the rest of the game.
+ * Step on the game loop, reconcile and confirm on the receiver thread.
+ */
+
+public class PredictedBoard {
+
+    // Inputs we can replay, way more than a round trip worth of ticks
+    private static final int HISTORY = 256;
+
+    private final BreakoutEngine engine;
+    private final MatchRandom random;
+    private final BrickGrid confirmedBricks;
+    private int confirmedTurns;
+    private final double[] inputs = new double[HISTORY];
+    // randomStates[seq % HISTORY] is the random's state right before that input was stepped
+    private final long[] randomStates = new long[HISTORY];
+    private int lastSeq = 0;
+
+    // Stats
+    private long reconciliations = 0;
+    private double lastCorrection = 0;
+    private double maxCorrection = 0;
+
+    // random is the one engine draws its serves from
+    public PredictedBoard(BreakoutEngine engine, MatchRandom random) {
+        this.engine = engine;
+        this.random = random;
+        this.confirmedBricks = engine.copyBricks();
+        this.confirmedTurns = engine.getTurnsLeft();
+    }
+
+    // One predicted tick, returns the sequence number this input has to be sent with (starting at 1)
+    public synchronized int step(double paddleX) {
+        lastSeq++;
+        inputs[lastSeq % HISTORY] = paddleX;
+        randomStates[lastSeq % HISTORY] = random.getState();
+        engine.step(paddleX);
+        return lastSeq;
+    }
+
+    // The server destroyed this brick on our board
+    public synchronized void confirmBrick(int id) {
+        confirmedBricks.destroy(id);
+    }
+
+    public synchronized void confirmTurns(int turnsLeft) {
+        confirmedTurns = turnsLeft;
+    }
+
+    // Snapshot of our board: back to the server's state, then replay whatever it hasn't seen yet
+    public synchronized void reconcile(StateFrameCodec state) {
+        double predictedX = engine.getBallX();
+        double predictedY = engine.getBallY();
+
+        engine.restore(state.getPaddleX(), state.getBallX(), state.getBallY(), state.getVx(), state.getVy(),
+                state.getResetDelay(), confirmedTurns, confirmedBricks);
+        int from = Math.max(state.getInputAck() + 1, lastSeq - HISTORY + 1);
+        if (from <= lastSeq) {
+            random.setState(randomStates[from % HISTORY]);
+        }
+        for (int seq = from; seq <= lastSeq; seq++) {
+            engine.step(inputs[seq % HISTORY]);
+        }
+
+        reconciliations++;
+        lastCorrection = Math.hypot(engine.getBallX() - predictedX, engine.getBallY() - predictedY);
+        maxCorrection = Math.max(maxCorrection, lastCorrection);
+    }
+
+    public synchronized double getBallX() {
+        return engine.getBallX();
+    }
+
+    public synchronized double getBallY() {
+        return engine.getBallY();
+    }
+
+    public synchronized long getReconciliations() {
+        return reconciliations;
+    }
+
+    // How far the ball jumped (in pixels) on the last reconcile, 0 when the prediction was right
+    public synchronized double getLastCorrection() {
+        return lastCorrection;
+    }
+
+    public synchronized String getStats() {
+        return "reconciliations=" + reconciliations
+                + ", last correction=" + String.format("%.2f", lastCorrection) + "px"
+                + ", max correction=" + String.format("%.2f", maxCorrection) + "px";
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Filename: Protocol.java
+ * Description: Wire format shared by BreakoutServer and BreakoutClient.
+ *
+ * The server simulates both boards (see BreakoutMatch), the client only sends its paddle. Every message is a frame: a one byte
+ * type, the length of the rest as an unsigned short, then the payload:
+ * - STATE (protocol 0, server -> client): board, bitmask of changed fields, then the fields that changed (see StateFrameCodec),
+ *   only every SEND_INTERVAL_TICKS ticks (or whatever sendHz BreakoutServer runs at)
+ * - GAME_END (protocol 1, server -> client): boolean, true if the receiver won
+ * - BOARD_EVENTS (protocol 2, server -> client): board, BreakoutEngine EVENT_* bits, then the brick id (short) if a brick
+ *   was destroyed and the turns left (byte) if the ball was missed
+ * - INPUT (protocol 3, client -> server): sequence number of the first input (int), count (byte), then one paddle x per tick,
+ *   also sent every SEND_INTERVAL_TICKS ticks by default (the client's sendHz). The server applies one per tick and acks the last one in STATE
+ * - STATE_HASH (protocol 4, both ways, lockstep only): tick (int), hash of both boards after it (long)
+ * - COUNTDOWN (protocol 5, server -> client): the number to show (byte), 3, 2, 1, 0 a second apart
+ * - GAME_START (protocol 6, server -> client): the match seed (long), which player of the match the receiver is (byte),
+ *   so the client's engine serves like the server's (see MatchRandom), and the mode (byte, MODE_SERVER or MODE_LOCKSTEP)
+ * - UDP_OFFER (protocol 7, server -> client): the server's UDP port (unsigned short) and a token (int), see below
+ * - UDP_READY (protocol 8, client -> server): empty, datagrams got through both ways
+ *
+ * With -Dbreakout.udp=true BreakoutServer sends protocol 0 as datagrams instead (see DatagramStateSender), a snapshot is
+ * out of date by the next one anyway, so a lost one shouldn't hold up everything after it like it does on TCP. A datagram
+ * is the token, a sequence number (int, 0 for the hello and its answer) and then STATE frames with every field as an
+ * absolute value, no deltas, since the frame before it might never arrive. The client sends hellos until the server
+ * answers one, and only then UDP_READY over TCP. Until the server gets that, and if it never does, protocol 0 stays
+ * on TCP like before. Everything else, the countdown, board events and the game end, always goes over TCP.
+ *
+ * In lockstep mode (see LockstepSession) protocol 3 goes both ways, the sequence number is the tick the paddle x is for,
+ * and protocol 4 is the only other thing sent. Nobody sends protocols 0, 1 or 2, both sides play both boards.
+ *
+ * Boards are relative to whoever receives the message, BOARD_YOURS is the receiver's own board.
+ * Before anything else both sides send VERSION as a single byte and refuse to talk to a different version, that's the
+ * only thing that isn't a frame. The countdown used to be plain ints and a boolean, so one byte read wrong anywhere
+ * turned the rest of the stream into garbage. Now a receiver always knows where the next frame starts: it decodes
+ * the frame it has a codec for (see MessageRegistry) and steps over a type it doesn't know, so new messages can be
+ * added without breaking older readers. Payloads may also grow at the end, a reader ignores what it didn't read.
+ * Coordinates travel as fixed point shorts in 1/COORD_SCALE pixel units, plenty for a 1100px wide window.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class Protocol {
+
+    public static final int VERSION = 7;
+
+    public static final int STATE = 0;
+    public static final int GAME_END = 1;
+    public static final int BOARD_EVENTS = 2;
+    public static final int INPUT = 3;
+    public static final int STATE_HASH = 4;
+    public static final int COUNTDOWN = 5;
+    public static final int GAME_START = 6;
+    public static final int UDP_OFFER = 7;
+    public static final int UDP_READY = 8;
+
+    // Type and the payload length
+    public static final int FRAME_HEADER_SIZE = 3;
+    public static final int MAX_PAYLOAD_SIZE = 0xFFFF;
+
+    // Token and sequence number, then frames
+    public static final int DATAGRAM_HEADER_SIZE = 8;
+    // The header and two full STATE frames are 60 bytes, well under any network's packet size
+    public static final int MAX_DATAGRAM_SIZE = 512;
+
+    // The server plays both boards, or both sides do (LockstepSession)
+    public static final int MODE_SERVER = 0;
+    public static final int MODE_LOCKSTEP = 1;
+
+    public static final int BOARD_YOURS = 0;
+    public static final int BOARD_OPPONENT = 1;
+
+    // The only engine events the other side needs to hear about, game over is GAME_END
+    public static final int RELAYED_EVENTS = BreakoutEngine.EVENT_PADDLE_KICK | BreakoutEngine.EVENT_BRICK_DESTROYED | BreakoutEngine.EVENT_BALL_MISSED;
+
+    public static final double COORD_SCALE = 8.0;
+    public static final double VELOCITY_SCALE = 256.0;
+
+    // 6 ticks of 7ms is about 24 snapshots/inputs a second, both sides interpolate/predict in between.
+    // BreakoutServer and BreakoutClient can send at other rates (GameLoop's sendHz), the dedicated servers always use this
+    public static final int SEND_INTERVAL_TICKS = 6;
+    public static final double DEFAULT_SEND_HZ = 1000.0 / (BreakoutEngine.TICK_MILLIS * SEND_INTERVAL_TICKS);
+    public static final int MAX_INPUTS_PER_MESSAGE = 255;
+
+    private Protocol() {
+    }
+
+    public static void writeHandshake(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+    }
+
+    public static void readHandshake(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Protocol version mismatch, expected " + VERSION + " but got " + version);
+        }
+    }
+
+    // The payload that follows has to be exactly length bytes
+    public static void writeFrameHeader(DataOutput out, int type, int length) throws IOException {
+        out.writeByte(type);
+        out.writeShort(length);
+    }
+
+    public static void writeCountdown(DataOutput out, int count) throws IOException {
+        writeFrameHeader(out, COUNTDOWN, 1);
+        out.writeByte(count);
+    }
+
+    // The end of the countdown, the client plays its board of the match with MatchRandom.boardSeed(seed, player)
+    public static void writeGameStarted(DataOutput out, long seed, int player, int mode) throws IOException {
+        writeFrameHeader(out, GAME_START, 10);
+        out.writeLong(seed);
+        out.writeByte(player);
+        out.writeByte(mode);
+    }
+
+    public static void writeGameEnd(DataOutput out, boolean youWon) throws IOException {
+        writeFrameHeader(out, GAME_END, 1);
+        out.writeBoolean(youWon);
+    }
+
+    // Returns false if none of the events are worth sending, in that case nothing was written
+    public static boolean writeBoardEvents(DataOutput out, int board, int events, int brickId, int turnsLeft) throws IOException {
+        events &= RELAYED_EVENTS;
+        if (events == 0) {
+            return false;
+        }
+        boolean destroyed = (events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0;
+        boolean missed = (events & BreakoutEngine.EVENT_BALL_MISSED) != 0;
+        writeFrameHeader(out, BOARD_EVENTS, 2 + (destroyed ? 2 : 0) + (missed ? 1 : 0));
+        out.writeByte(board);
+        out.writeByte(events);
+        if (destroyed) {
+            out.writeShort(brickId);
+        }
+        if (missed) {
+            out.writeByte(turnsLeft);
+        }
+        return true;
+    }
+
+    // inputs[0..count) are the paddle x of ticks firstSeq, firstSeq + 1...
+    public static void writeInputs(DataOutput out, int firstSeq, double[] inputs, int count) throws IOException {
+        writeFrameHeader(out, INPUT, 5 + 2 * count);
+        out.writeInt(firstSeq);
+        out.writeByte(count);
+        for (int i = 0; i < count; i++) {
+            out.writeShort(quantize(inputs[i]));
+        }
+    }
+
+    public static void writeStateHash(DataOutput out, int tick, long hash) throws IOException {
+        writeFrameHeader(out, STATE_HASH, 12);
+        out.writeInt(tick);
+        out.writeLong(hash);
+    }
+
+    public static void writeUdpOffer(DataOutput out, int port, int token) throws IOException {
+        writeFrameHeader(out, UDP_OFFER, 6);
+        out.writeShort(port);
+        out.writeInt(token);
+    }
+
+    public static void writeUdpReady(DataOutput out) throws IOException {
+        writeFrameHeader(out, UDP_READY, 0);
+    }
+
+    public static int quantize(double coordinate) {
+        return (int) Math.round(coordinate * COORD_SCALE);
+    }
+
+    public static double dequantize(int quantized) {
+        return quantized / COORD_SCALE;
+    }
+
+    public static int quantizeVelocity(double velocity) {
+        return (int) Math.round(velocity * VELOCITY_SCALE);
+    }
+
+    public static double dequantizeVelocity(int quantized) {
+        return quantized / VELOCITY_SCALE;
+    }
+
+
+    // ----------- CODECS -----------------
+    // What a receiver decodes a payload into (see MessageRegistry). One of each per connection, every message of
+    // the type refills it, so receiving never allocates. Only valid until the next message of the same type.
+
+    private static int readBoard(ByteBuffer payload) throws IOException {
+        int board = payload.get() & 0xFF;
+        if (board != BOARD_YOURS && board != BOARD_OPPONENT) {
+            throw new IOException("Unknown board " + board);
+        }
+        return board;
+    }
+
+    // Protocol 0, the frame goes into the board's StateFrameCodec, which keeps what the deltas are relative to
+    public static class State implements MessageRegistry.Codec {
+        private final StateFrameCodec[] boards = {
+                new StateFrameCodec(BOARD_YOURS),
+                new StateFrameCodec(BOARD_OPPONENT)
+        };
+        private int board;
+
+        public void decode(ByteBuffer payload) throws IOException {
+            board = readBoard(payload);
+            boards[board].read(payload);
+        }
+
+        public int getBoard() {
+            return board;
+        }
+
+        public StateFrameCodec getFrame() {
+            return boards[board];
+        }
+    }
+
+    public static class GameEnd implements MessageRegistry.Codec {
+        private boolean youWon;
+
+        public void decode(ByteBuffer payload) {
+            youWon = payload.get() != 0;
+        }
+
+        public boolean isYouWon() {
+            return youWon;
+        }
+    }
+
+    public static class BoardEvents implements MessageRegistry.Codec {
+        private int board;
+        private int events;
+        private int brickId;
+        private int turnsLeft;
+
+        public void decode(ByteBuffer payload) throws IOException {
+            board = readBoard(payload);
+            events = payload.get() & 0xFF;
+            brickId = (events & BreakoutEngine.EVENT_BRICK_DESTROYED) != 0 ? payload.getShort() & 0xFFFF : -1;
+            turnsLeft = (events & BreakoutEngine.EVENT_BALL_MISSED) != 0 ? payload.get() & 0xFF : -1;
+        }
+
+        public int getBoard() {
+            return board;
+        }
+
+        public int getEvents() {
+            return events;
+        }
+
+        // -1 if no brick was destroyed
+        public int getBrickId() {
+            return brickId;
+        }
+
+        // -1 if the ball wasn't missed
+        public int getTurnsLeft() {
+            return turnsLeft;
+        }
+    }
+
+    public static class Inputs implements MessageRegistry.Codec {
+        private final int[] paddles = new int[MAX_INPUTS_PER_MESSAGE];
+        private int firstSeq;
+        private int count;
+
+        public void decode(ByteBuffer payload) {
+            firstSeq = payload.getInt();
+            count = payload.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                paddles[i] = payload.getShort();
+            }
+        }
+
+        public int getFirstSeq() {
+            return firstSeq;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        // Paddle x of tick getFirstSeq() + i
+        public double getPaddleX(int i) {
+            return dequantize(paddles[i]);
+        }
+    }
+
+    public static class StateHash implements MessageRegistry.Codec {
+        private int tick;
+        private long hash;
+
+        public void decode(ByteBuffer payload) {
+            tick = payload.getInt();
+            hash = payload.getLong();
+        }
+
+        public int getTick() {
+            return tick;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+    }
+
+    public static class Countdown implements MessageRegistry.Codec {
+        private int count;
+
+        public void decode(ByteBuffer payload) {
+            count = payload.get() & 0xFF;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    public static class GameStart implements MessageRegistry.Codec {
+        private long seed;
+        private int player;
+        private int mode;
+
+        public void decode(ByteBuffer payload) throws IOException {
+            seed = payload.getLong();
+            player = payload.get() & 0xFF;
+            mode = payload.get() & 0xFF;
+            if (player >= BreakoutMatch.PLAYERS) {
+                throw new IOException("Unknown player " + player);
+            }
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        public int getPlayer() {
+            return player;
+        }
+
+        public int getMode() {
+            return mode;
+        }
+    }
+
+    public static class UdpOffer implements MessageRegistry.Codec {
+        private int port;
+        private int token;
+
+        public void decode(ByteBuffer payload) {
+            port = payload.getShort() & 0xFFFF;
+            token = payload.getInt();
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getToken() {
+            return token;
+        }
+    }
+
+    // Nothing in it, the type says it all
+    public static class UdpReady implements MessageRegistry.Codec {
+        public void decode(ByteBuffer payload) {
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Filename: ReplayPlayer.java
+ * Description: Plays a recorded game (see ReplayWriter) again in the headless engine and checks it ends the same way.
+ *
+ * Note:
+ *   java -cp .:acm.jar ReplayPlayer game.replay [tick...]
+ * A two-board file is a BreakoutServer match and goes through BreakoutMatch like it did on the server, a
+ * one-board file is a single BreakoutEngine. Every tick given is looked up with ReplayReader.seek() and the
+ * boards are printed as they were right after it. Exits with 1 if the replay didn't end like the recorded game.
+ */
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+public class ReplayPlayer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java ReplayPlayer <replay file> [tick...]");
+            return;
+        }
+        long start = System.nanoTime();
+        try (ReplayReader replay = new ReplayReader(Paths.get(args[0]), ReplayReader.DEFAULT_KEYFRAME_TICKS)) {
+            System.out.println(String.format("Indexed %d ticks, %d keyframes in %.1fms", replay.getTickCount(),
+                    replay.getKeyframeCount(), (System.nanoTime() - start) / 1e6));
+
+            for (int i = 1; i < args.length; i++) {
+                long seekStart = System.nanoTime();
+                replay.seek(Long.parseLong(args[i]));
+                System.out.println(String.format("Tick %d (%.2fms): %s", replay.getTick(),
+                        (System.nanoTime() - seekStart) / 1e6, describe(replay)));
+            }
+
+            replay.seek(replay.getTickCount());
+            if (!replay.isEnded()) {
+                System.out.println(String.format("Replayed %d ticks, the recording stops there (no end): %s",
+                        replay.getTick(), describe(replay)));
+            } else {
+                System.out.println(String.format("Replayed %d ticks: %s, %s", replay.getTick(), describe(replay),
+                        replay.endMatches() ? "same as the recorded game" : "NOT how the recorded game ended"));
+                if (!replay.endMatches()) {
+                    System.exit(1);
+                }
+            }
+        } catch (IOException e) {
+            // Not there, not a replay or broken somewhere in the middle
+            System.out.println("Can't play " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static String describe(ReplayReader replay) {
+        StringBuilder description = new StringBuilder();
+        for (int board = 0; board < replay.getBoards(); board++) {
+            BreakoutEngine engine = replay.getEngine(board);
+            description.append(board == 0 ? "" : ", ").append(String.format("board %d %d bricks %d turns left",
+                    board, engine.getAliveBricks(), engine.getTurnsLeft()));
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Filename: ReplayReader.java
+ * Description: Plays a recorded game (see ReplayWriter) straight from the memory-mapped file and can jump to any tick.
+ *
+ * Note:
+ * The file isn't read into the heap, it's mapped and the OS pages in whatever part we're reading. Opening it
+ * plays the whole game once, and every keyframeTicks ticks keeps a keyframe: a copy of the boards, where the
+ * Random was, and where in the file that tick starts. seek(tick) then looks up the keyframe before it (an
+ * array index) and plays at most keyframeTicks - 1 ticks from there, instead of the whole game from the start.
+ *
+ * Every board has its own MatchRandom, whose whole state is one long, so a keyframe keeps that too. A keyframe
+ * is a few KB, the default of one per 1024 ticks is about 1MB for an hour-long match.
+ *
+ * A mapping can't be bigger than 2GB, more than a year of a match at a couple of bytes per tick.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+public class ReplayReader implements Closeable {
+
+    public static final int DEFAULT_KEYFRAME_TICKS = 1024;
+
+    private static final int TAG_MASK = (1 << ReplayWriter.TAG_BITS) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer data;
+    private final int boards;
+    private final int firstBoard;
+    private final long seed;
+    private final int rows;
+    private final int cols;
+    private final double tickMillis;
+    private final int keyframeTicks;
+
+    // The game as it is at tick, a two-board file is a match like on the server
+    private final MatchRandom[] randoms;
+    private final BreakoutMatch match;
+    private final BreakoutEngine[] engines;
+    private final int[] lastPaddles;
+    private final double[] paddles;
+    private long tick = 0;
+
+    // Filled when the file is opened
+    private final ArrayList<Keyframe> keyframes = new ArrayList<>();
+    private long tickCount;
+    private boolean ended = false;
+    private boolean endMatches = false;
+
+    public ReplayReader(Path file, int keyframeTicks) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Replay too big to map: " + channel.size() + " bytes");
+            }
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.getInt() != ReplayWriter.MAGIC) {
+                throw new IOException("Not a replay");
+            }
+            int version = data.get() & 0xFF;
+            if (version != ReplayWriter.VERSION) {
+                throw new IOException("Replay version " + version + ", this game reads " + ReplayWriter.VERSION);
+            }
+            this.boards = data.get() & 0xFF;
+            this.firstBoard = data.get() & 0xFF;
+            this.seed = data.getLong();
+            this.rows = data.getShort();
+            this.cols = data.getShort();
+            this.tickMillis = data.getDouble();
+        } catch (BufferUnderflowException e) {
+            channel.close();
+            throw new IOException("Replay header cut short");
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.keyframeTicks = keyframeTicks;
+        this.match = boards == BreakoutMatch.PLAYERS ? new BreakoutMatch(seed) : null;
+        this.randoms = new MatchRandom[boards];
+        this.engines = new BreakoutEngine[boards];
+        for (int board = 0; board < boards; board++) {
+            if (match != null) {
+                randoms[board] = match.getRandom(board);
+                engines[board] = match.getEngine(board);
+            } else {
+                randoms[board] = new MatchRandom(MatchRandom.boardSeed(seed, firstBoard + board));
+                engines[board] = new BreakoutEngine(randoms[board], rows, cols, tickMillis);
+            }
+        }
+        this.lastPaddles = new int[boards];
+        this.paddles = new double[boards];
+        for (int board = 0; board < boards; board++) {
+            lastPaddles[board] = Protocol.quantize((BreakoutEngine.WIDTH - BreakoutEngine.PADDLE_WIDTH) / 2.0);
+            // Where the paddle starts, until the first tick is played
+            paddles[board] = Protocol.dequantize(lastPaddles[board]);
+        }
+        try {
+            index();
+            seek(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    // ----------- INDEX -----------------
+
+    // Plays the whole file once, keeping a keyframe every keyframeTicks, and finds where it ends
+    private void index() throws IOException {
+        while (true) {
+            if (tick % keyframeTicks == 0) {
+                keyframes.add(new Keyframe());
+            }
+            int start = data.position();
+            try {
+                if (!readTick()) {
+                    break;
+                }
+            } catch (BufferUnderflowException e) {
+                // Cut short (the game crashed), it replays as far as it got
+                data.position(start);
+                break;
+            }
+            play();
+        }
+        tickCount = tick;
+    }
+
+    // What ReplayWriter.end() wrote, compared with what we got to
+    private void readEnd() throws IOException {
+        try {
+            boolean same = readVarint() == tick;
+            for (BreakoutEngine engine : engines) {
+                same &= readVarint() == engine.getAliveBricks();
+                same &= readVarint() == engine.getTurnsLeft();
+            }
+            ended = true;
+            endMatches = same;
+        } catch (BufferUnderflowException e) {
+            ended = false;
+        }
+    }
+
+
+    // ----------- PLAYING -----------------
+
+    // The next tick, false at the end of the recording
+    public boolean step() throws IOException {
+        if (tick >= tickCount) {
+            return false;
+        }
+        readTick();
+        play();
+        return true;
+    }
+
+    // Goes to the state right after tick ticks were played (0 is the start), clamped to the recording
+    public void seek(long target) throws IOException {
+        target = Math.max(0, Math.min(tickCount, target));
+        Keyframe keyframe = keyframes.get((int) Math.min(target / keyframeTicks, keyframes.size() - 1));
+        // Going forward a little is cheaper from where we are
+        if (target < tick || keyframe.tick > tick) {
+            keyframe.restore();
+        }
+        while (tick < target) {
+            step();
+        }
+    }
+
+    // Every board's paddle for the next tick into paddles, false if it's the end instead
+    private boolean readTick() throws IOException {
+        for (int board = 0; board < boards; board++) {
+            long token = readVarint();
+            int tag = (int) (token & TAG_MASK);
+            if (tag == ReplayWriter.TAG_END) {
+                readEnd();
+                return false;
+            } else if (tag == ReplayWriter.TAG_RAW) {
+                paddles[board] = data.getDouble();
+            } else if (tag == ReplayWriter.TAG_PADDLE) {
+                int zigzag = (int) (token >>> ReplayWriter.TAG_BITS);
+                lastPaddles[board] += (zigzag >>> 1) ^ -(zigzag & 1);
+                paddles[board] = Protocol.dequantize(lastPaddles[board]);
+            } else {
+                throw new IOException("Unknown replay token " + tag + " at byte " + data.position());
+            }
+        }
+        return true;
+    }
+
+    private void play() {
+        if (match != null) {
+            for (int board = 0; board < boards; board++) {
+                match.setPaddleInput(board, paddles[board]);
+            }
+            match.step();
+        } else {
+            for (int board = 0; board < boards; board++) {
+                engines[board].step(paddles[board]);
+            }
+        }
+        tick++;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken varint in replay at byte " + data.position());
+    }
+
+    // The mapping goes when it's garbage collected, Java has no way to unmap it sooner
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    // ----------- GETTERS -----------------
+
+    public long getTick() {
+        return tick;
+    }
+
+    // Ticks recorded, the last one seek() can go to
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    public int getBoards() {
+        return boards;
+    }
+
+    // The match's, board b of the file is board getFirstBoard() + b of the match
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getFirstBoard() {
+        return firstBoard;
+    }
+
+    public BreakoutEngine getEngine(int board) {
+        return engines[board];
+    }
+
+    // The paddle x of the tick played last
+    public double getPaddle(int board) {
+        return paddles[board];
+    }
+
+    public int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    // Whether the recording has ReplayWriter.end(), a game that crashed doesn't
+    public boolean isEnded() {
+        return ended;
+    }
+
+    // Whether playing it ended the game exactly how the recorded game ended
+    public boolean endMatches() {
+        return endMatches;
+    }
+
+
+    // ----------- KEYFRAMES -----------------
+
+    // Everything the reader needs to carry on from a tick
+    private class Keyframe {
+
+        final long tick;
+        final int position;
+        final long[] randomStates;
+        // What the next delta is from, and what getPaddle() says (a raw one doesn't move lastPaddles)
+        final int[] lastPaddles;
+        final double[] paddles;
+        final BreakoutMatch matchCopy;
+        final BreakoutEngine[] engineCopies;
+
+        Keyframe() {
+            this.tick = ReplayReader.this.tick;
+            this.position = data.position();
+            this.randomStates = new long[boards];
+            for (int board = 0; board < boards; board++) {
+                randomStates[board] = randoms[board].getState();
+            }
+            this.lastPaddles = ReplayReader.this.lastPaddles.clone();
+            this.paddles = ReplayReader.this.paddles.clone();
+            // Their own Random is never used, they're only copied from
+            this.matchCopy = match != null ? new BreakoutMatch(0) : null;
+            this.engineCopies = new BreakoutEngine[boards];
+            if (matchCopy != null) {
+                matchCopy.copyFrom(match);
+            } else {
+                for (int board = 0; board < boards; board++) {
+                    engineCopies[board] = new BreakoutEngine(new MatchRandom(0), rows, cols, tickMillis);
+                    engineCopies[board].copyFrom(engines[board]);
+                }
+            }
+        }
+
+        void restore() {
+            ReplayReader.this.tick = tick;
+            data.position(position);
+            for (int board = 0; board < boards; board++) {
+                randoms[board].setState(randomStates[board]);
+            }
+            System.arraycopy(lastPaddles, 0, ReplayReader.this.lastPaddles, 0, boards);
+            System.arraycopy(paddles, 0, ReplayReader.this.paddles, 0, boards);
+            if (matchCopy != null) {
+                match.copyFrom(matchCopy);
+            } else {
+                for (int board = 0; board < boards; board++) {
+                    engines[board].copyFrom(engineCopies[board]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Filename: ReplayWriter.java
+ * Description: Records a game as its random seed plus the paddle x of every tick, so it can be played again (see ReplayPlayer).
+ *
+ * Note:
+ * Run with -Dbreakout.replay=file to record. BreakoutEngine only depends on its Random and the paddle x it's
+ * given each step(), so with the same seed and the same inputs the game plays out exactly the same way. Board b
+ * of the file is board firstBoard + b of the match, and gets MatchRandom.boardSeed(seed, firstBoard + b).
+ * That's far less to write than positions: a tick is usually one byte per board.
+ *
+ * The file is append-only. A header (MAGIC, VERSION, number of boards, firstBoard, match seed, wall size, tick length), then
+ * for every tick and board, in board order, one token:
+ *   varint(zigzag(change of the quantized paddle x) << TAG_BITS | TAG_PADDLE)    paddle x is a multiple of 1/COORD_SCALE
+ *   varint(TAG_RAW) double                                                         anything else, exactly
+ * and when the game ends varint(TAG_END), then varint ticks and varint bricks left and turns left per board, to
+ * check a replay against. A file that stops without the end (the game crashed) replays as far as it got.
+ *
+ * Recording happens on the game thread. Tokens go into a buffer, which is written to the file when full,
+ * and nothing is allocated per tick. If writing fails the game goes on, only without recording.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class ReplayWriter {
+
+    public static final String REPLAY_PROPERTY = "breakout.replay";
+
+    public static final int MAGIC = 0x42524B52; // "BRKR"
+    public static final int VERSION = 2;
+
+    // Low bits of every token say what it is
+    public static final int TAG_BITS = 2;
+    public static final int TAG_PADDLE = 0;
+    public static final int TAG_RAW = 1;
+    public static final int TAG_END = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final DataOutputStream out;
+    // Last quantized paddle x per board, what the next one is written relative to
+    private final int[] lastPaddles;
+    private long ticks = 0;
+    private boolean failed = false;
+
+    public ReplayWriter(OutputStream target, String name, int boards, int firstBoard, long seed, int rows, int cols, double tickMillis) throws IOException {
+        this.name = name;
+        this.out = new DataOutputStream(new BufferedOutputStream(target, BUFFER_SIZE));
+        this.lastPaddles = new int[boards];
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(boards);
+        out.writeByte(firstBoard);
+        out.writeLong(seed);
+        out.writeShort(rows);
+        out.writeShort(cols);
+        out.writeDouble(tickMillis);
+        // Both ends start from the centered paddle, so the first tick is usually small too
+        for (int board = 0; board < boards; board++) {
+            lastPaddles[board] = Protocol.quantize((BreakoutEngine.WIDTH - BreakoutEngine.PADDLE_WIDTH) / 2.0);
+        }
+    }
+
+    // A writer for the file -Dbreakout.replay names, or null if it's not set (or the file can't be created)
+    public static ReplayWriter fromProperty(int boards, int firstBoard, long seed, int rows, int cols, double tickMillis) {
+        String file = System.getProperty(REPLAY_PROPERTY);
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        try {
+            ReplayWriter writer = new ReplayWriter(new FileOutputStream(file), file, boards, firstBoard, seed, rows, cols, tickMillis);
+            System.out.println("Recording replay to " + file);
+            return writer;
+        } catch (IOException e) {
+            System.out.println("Could not record replay to " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    // ----------- RECORDING (game thread) -----------------
+
+    // The paddle x step() got on this board this tick, every board once per tick, in board order
+    public void recordPaddle(int board, double paddleX) {
+        if (failed) {
+            return;
+        }
+        try {
+            int quantized = Protocol.quantize(paddleX);
+            if (Protocol.dequantize(quantized) == paddleX) {
+                int change = quantized - lastPaddles[board];
+                // Zigzag, so small changes either way stay small
+                writeVarint((long) ((change << 1) ^ (change >> 31)) << TAG_BITS | TAG_PADDLE);
+                lastPaddles[board] = quantized;
+            } else {
+                writeVarint(TAG_RAW);
+                out.writeDouble(paddleX);
+            }
+            if (board == lastPaddles.length - 1) {
+                ticks++;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // The game is over, what the boards ended up as goes last and the file is closed
+    public void end(BreakoutEngine... boards) {
+        if (!failed) {
+            try {
+                writeVarint(TAG_END);
+                writeVarint(ticks);
+                for (BreakoutEngine board : boards) {
+                    writeVarint(board.getAliveBricks());
+                    writeVarint(board.getTurnsLeft());
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        close();
+    }
+
+    // Whatever was recorded so far, without an end
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void fail(IOException e) {
+        if (!failed) {
+            failed = true;
+            System.out.println("Stopped recording replay to " + name + ": " + e.getMessage());
+        }
+    }
+
+
+    // ----------- STATS -----------------
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public String getStats() {
+        int bytes = out.size();
+        return String.format("%s, %d ticks in %d bytes (%.2f bytes/tick)%s", name, ticks, bytes,
+                ticks == 0 ? 0.0 : (double) bytes / ticks, failed ? ", failed" : "");
+    }
+}
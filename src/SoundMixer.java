@@ -0,0 +1,420 @@
+/*
+ * Filename: SoundMixer.java
+ * Description: Plays the game's sounds on its own thread, mixing them itself into one javax.sound line.
+ *
+ * Note:
+ * AudioClip.play() ran on whatever thread called it, the game loop's tick for the brick and paddle sounds, and
+ * what it costs was up to the applet audio code (opening a line, decoding...). Here every sound is decoded once
+ * into 16 bit stereo samples at OUTPUT_RATE (by Assets, on the mixer thread the first time it plays), and play()
+ * only puts the sound's id in a queue: no lock, no allocation, never waits. The mixer thread takes the ids out, adds up the samples of everything
+ * that's playing and writes that to one SourceDataLine, which is also what paces it.
+ *
+ * At most MAX_VOICES sounds play at once. A new one when they're all busy replaces the one that's been playing
+ * the longest (counted as stolen), so a ball going through a row of bricks is a few overlapping hits and not
+ * a wall of noise. A full queue drops the sound (counted as dropped), the game never waits for the mixer.
+ *
+ * Without a sound card (or with -Dbreakout.sound=false) play() does nothing and no sound file is ever read.
+ * The programs share one mixer, see Assets.sounds().
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class SoundMixer implements Runnable {
+
+    public static final String SOUND_PROPERTY = "breakout.sound";
+
+    public static final float OUTPUT_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final AudioFormat OUTPUT_FORMAT = new AudioFormat(OUTPUT_RATE, 16, CHANNELS, true, false);
+    // Frames mixed per write, ~12ms. The line holds a few of these, that's the latency of a sound
+    private static final int PERIOD_FRAMES = 512;
+    private static final int LINE_PERIODS = 4;
+
+    public static final int MAX_VOICES = 8;
+    // Way more than a tick can ask for, a power of two
+    private static final int QUEUE_SIZE = 256;
+
+    // What goes in the queue, a command and the sound's id
+    private static final int PLAY = 0;
+    private static final int LOOP = 1;
+    private static final int STOP = 2;
+    private static final int COMMAND_SHIFT = 24;
+    private static final int ID_MASK = (1 << COMMAND_SHIFT) - 1;
+
+    // File names by id and ids by file name, filled by load()
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    // ----------- QUEUE (any thread in, mixer thread out) -----------------
+    // A bounded ring where producers claim a slot with a CAS on tail. sequences[slot] says whose turn the slot
+    // is: tail's value when it's free to write, one more once it's written, QUEUE_SIZE more once it's read.
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLongArray sequences = new AtomicLongArray(QUEUE_SIZE);
+    private final int[] commands = new int[QUEUE_SIZE];
+    private long head = 0;
+    // Only a parked mixer needs waking, when it's playing it looks at the queue every period anyway
+    private volatile boolean parked = false;
+
+    // ----------- VOICES (mixer thread only) -----------------
+    private final short[][] voiceSamples = new short[MAX_VOICES][];
+    private final int[] voiceIds = new int[MAX_VOICES];
+    private final int[] voicePositions = new int[MAX_VOICES];
+    private final boolean[] voiceLoops = new boolean[MAX_VOICES];
+    private final long[] voiceStarts = new long[MAX_VOICES];
+    private long started = 0;
+    private final int[] mix = new int[PERIOD_FRAMES * CHANNELS];
+    private final byte[] out = new byte[PERIOD_FRAMES * CHANNELS * 2];
+
+    // Stats, written by the mixer thread (dropped by the game's), read by anyone
+    private volatile long played = 0;
+    private volatile long stolen = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int maxVoices = 0;
+
+    public SoundMixer() {
+        this(openLine());
+    }
+
+    // An open and started line, or null for no sound
+    SoundMixer(SourceDataLine line) {
+        for (int slot = 0; slot < QUEUE_SIZE; slot++) {
+            sequences.set(slot, slot);
+        }
+        this.line = line;
+        this.thread = line == null ? null : GameThreads.start("breakout-sound-mixer", this);
+    }
+
+    private static SourceDataLine openLine() {
+        if (!Boolean.parseBoolean(System.getProperty(SOUND_PROPERTY, "true"))) {
+            return null;
+        }
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(OUTPUT_FORMAT);
+            line.open(OUTPUT_FORMAT, PERIOD_FRAMES * LINE_PERIODS * OUTPUT_FORMAT.getFrameSize());
+            line.start();
+            return line;
+        } catch (LineUnavailableException | IllegalArgumentException | SecurityException e) {
+            System.out.println("No sound output, playing without sounds (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+
+    // ----------- LOADING -----------------
+
+    // The id to play the file with, the same one every time for the same name. Nothing is read yet
+    public int load(String name) {
+        synchronized (names) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    // Decodes every sound load() has seen now (on the calling thread), so none of them waits for that on its first
+    // play. Nothing to do without sound output
+    public void preload() {
+        if (line == null) {
+            return;
+        }
+        String[] all;
+        synchronized (names) {
+            all = names.toArray(new String[0]);
+        }
+        for (String name : all) {
+            Assets.sound(name);
+        }
+    }
+
+    private short[] sound(int id) {
+        String name;
+        synchronized (names) {
+            name = names.get(id);
+        }
+        return Assets.sound(name);
+    }
+
+    // The whole file as what the mixer plays, see Assets.sound()
+    static short[] decode(URL url) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream file = AudioSystem.getAudioInputStream(url);
+        AudioFormat format = file.getFormat();
+        // Whatever the file is (u-law, 8 bit, big endian...), Java Sound can give it to us as 16 bit little endian
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(pcm, file)) {
+            byte[] bytes = readAll(in);
+            short[] samples = new short[bytes.length / 2];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+            }
+            return toOutput(samples, format.getChannels(), format.getSampleRate());
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Stereo at OUTPUT_RATE, so mixing is just adding. Linear interpolation is plenty for these sounds
+    private static short[] toOutput(short[] samples, int channels, float rate) {
+        int frames = samples.length / channels;
+        int outFrames = (int) ((long) frames * OUTPUT_RATE / rate);
+        short[] output = new short[outFrames * CHANNELS];
+        double step = rate / OUTPUT_RATE;
+        for (int frame = 0; frame < outFrames; frame++) {
+            double at = frame * step;
+            int from = (int) at;
+            int to = Math.min(from + 1, frames - 1);
+            double weight = at - from;
+            for (int c = 0; c < CHANNELS; c++) {
+                // Mono goes to both sides, more than two channels keeps the first two
+                int channel = Math.min(c, channels - 1);
+                double a = samples[from * channels + channel];
+                double b = samples[to * channels + channel];
+                output[frame * CHANNELS + c] = (short) Math.round(a + (b - a) * weight);
+            }
+        }
+        return output;
+    }
+
+
+    // ----------- PLAYING (any thread) -----------------
+
+    public void play(int id) {
+        offer(PLAY, id);
+    }
+
+    // Plays it again and again until stop(id)
+    public void loop(int id) {
+        offer(LOOP, id);
+    }
+
+    // Every voice playing this sound
+    public void stop(int id) {
+        offer(STOP, id);
+    }
+
+    private void offer(int command, int id) {
+        if (line == null || closed) {
+            return;
+        }
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & (QUEUE_SIZE - 1));
+            long turn = sequences.get(slot) - pos;
+            if (turn == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    commands[slot] = command << COMMAND_SHIFT | id;
+                    // A full volatile write, so it can't slip past the read of parked (see run())
+                    sequences.set(slot, pos + 1);
+                    if (parked) {
+                        LockSupport.unpark(thread);
+                    }
+                    return;
+                }
+                pos = tail.get();
+            } else if (turn < 0) {
+                // The mixer hasn't caught up with a whole queue, that sound is lost
+                dropped.incrementAndGet();
+                return;
+            } else {
+                // Someone else took this slot, try the next one
+                pos = tail.get();
+            }
+        }
+    }
+
+    // Stops mixing and closes the line, whatever is still playing is cut
+    public void close() {
+        closed = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    // ----------- MIXING (mixer thread) -----------------
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                takeCommands();
+                if (activeVoices() == 0) {
+                    // Nothing to play, sleep until an offer() wakes us up. Looking at the queue again after
+                    // saying we're parked, an offer() in between either sees parked or gets taken here
+                    parked = true;
+                    takeCommands();
+                    if (activeVoices() == 0 && !closed) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+                mixPeriod();
+                // Blocks while the line is full, which keeps us at the line's pace
+                line.write(out, 0, out.length);
+            }
+        } finally {
+            line.stop();
+            line.close();
+        }
+    }
+
+    private void takeCommands() {
+        while (true) {
+            int slot = (int) (head & (QUEUE_SIZE - 1));
+            if (sequences.get(slot) != head + 1) {
+                return;
+            }
+            int command = commands[slot];
+            sequences.lazySet(slot, head + QUEUE_SIZE);
+            head++;
+
+            int id = command & ID_MASK;
+            switch (command >>> COMMAND_SHIFT) {
+                case PLAY:
+                    startVoice(id, false);
+                    break;
+                case LOOP:
+                    startVoice(id, true);
+                    break;
+                default:
+                    stopVoices(id);
+            }
+        }
+    }
+
+    private void startVoice(int id, boolean loop) {
+        short[] samples = sound(id);
+        if (samples.length == 0) {
+            return;
+        }
+        int voice = freeVoice();
+        voiceSamples[voice] = samples;
+        voiceIds[voice] = id;
+        voicePositions[voice] = 0;
+        voiceLoops[voice] = loop;
+        voiceStarts[voice] = started++;
+        played++;
+        maxVoices = Math.max(maxVoices, activeVoices());
+    }
+
+    // A free one, or the one that started first (loops are only taken when everything is looping)
+    private int freeVoice() {
+        int oldest = -1;
+        for (int voice = 0; voice < MAX_VOICES; voice++) {
+            if (voiceSamples[voice] == null) {
+                return voice;
+            }
+            if (oldest == -1 || (voiceLoops[oldest] && !voiceLoops[voice])
+                    || (voiceLoops[oldest] == voiceLoops[voice] && voiceStarts[voice] < voiceStarts[oldest])) {
+                oldest = voice;
+            }
+        }
+        stolen++;
+        return oldest;
+    }
+
+    private void stopVoices(int id) {
+        for (int voice = 0; voice < MAX_VOICES; voice++) {
+            if (voiceSamples[voice] != null && voiceIds[voice] == id) {
+                voiceSamples[voice] = null;
+            }
+        }
+    }
+
+    private int activeVoices() {
+        int active = 0;
+        for (int voice = 0; voice < MAX_VOICES; voice++) {
+            if (voiceSamples[voice] != null) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    // One period of every voice added up into out, as little endian 16 bit
+    private void mixPeriod() {
+        Arrays.fill(mix, 0);
+        for (int voice = 0; voice < MAX_VOICES; voice++) {
+            short[] samples = voiceSamples[voice];
+            if (samples == null) {
+                continue;
+            }
+            int position = voicePositions[voice];
+            for (int i = 0; i < mix.length; i++) {
+                if (position == samples.length) {
+                    if (!voiceLoops[voice]) {
+                        voiceSamples[voice] = null;
+                        break;
+                    }
+                    position = 0;
+                }
+                mix[i] += samples[position++];
+            }
+            voicePositions[voice] = position;
+        }
+        for (int i = 0; i < mix.length; i++) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            out[2 * i] = (byte) sample;
+            out[2 * i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+
+    // ----------- STATS -----------------
+
+    public boolean isEnabled() {
+        return line != null;
+    }
+
+    public long getPlayed() {
+        return played;
+    }
+
+    public long getStolen() {
+        return stolen;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public String getStats() {
+        if (line == null) {
+            return "off";
+        }
+        return String.format("played=%d, stolen=%d, dropped=%d, max voices=%d/%d",
+                played, stolen, dropped.get(), maxVoices, MAX_VOICES);
+    }
+}
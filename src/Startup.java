@@ -0,0 +1,118 @@
+/*
+ * Filename: Startup.java
+ * Description: Runs the startup work of an online program on a few threads at once and times every part of it.
+ *
+ * Note:
+ * BreakoutServer and BreakoutClient used to do everything one after another on the main thread: build the board,
+ * then connect, and decode each sound and image whenever it was first needed. None of that depends on the
+ * rest, so the slow parts (decoding, drawing the brick walls, waiting for the socket) go to a small pool with
+ * submit(), and the main thread sets the board up in the meantime with run(), picking up what it needs with
+ * get(). finish() waits for whatever's left and the report says how long each part took, when the board was
+ * on the screen and when everything was ready.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class Startup {
+
+    // The socket mostly waits, so even one core gets something out of two of them
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final long start = System.nanoTime();
+    private final ExecutorService pool = GameThreads.newPool("breakout-startup", THREADS);
+    private final List<Future<?>> submitted = new ArrayList<>();
+
+    // Guarded by this, in the order they finished
+    private final List<String> phases = new ArrayList<>();
+    private final List<Long> phaseNanos = new ArrayList<>();
+    private long boardNanos = -1;
+    private long readyNanos = -1;
+
+    // On the pool, get() its result when it's needed
+    public <T> Future<T> submit(String phase, Callable<T> task) {
+        Future<T> future = pool.submit(() -> timed(phase, task));
+        submitted.add(future);
+        return future;
+    }
+
+    public Future<?> submit(String phase, Runnable task) {
+        return submit(phase, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // Right here on the calling thread, timed like the rest
+    public void run(String phase, Runnable task) {
+        try {
+            timed(phase, () -> {
+                task.run();
+                return null;
+            });
+        } catch (Exception e) {
+            // Only Runnables get here, so this is a RuntimeException
+            throw (RuntimeException) e;
+        }
+    }
+
+    private <T> T timed(String phase, Callable<T> task) throws Exception {
+        long phaseStart = System.nanoTime();
+        try {
+            return task.call();
+        } finally {
+            long took = System.nanoTime() - phaseStart;
+            synchronized (this) {
+                phases.add(phase);
+                phaseNanos.add(took);
+            }
+        }
+    }
+
+    // Waits for a submitted task, its exception comes out here like it happened on this thread
+    public <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting up", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // The board is on the screen, the player can look at it even if we're still waiting for the other one
+    public synchronized void boardShown() {
+        boardNanos = System.nanoTime() - start;
+    }
+
+    // Waits for everything submitted and lets the pool's threads go
+    public void finish() {
+        for (int i = 0; i < submitted.size(); i++) {
+            get(submitted.get(i));
+        }
+        pool.shutdown();
+        synchronized (this) {
+            readyNanos = System.nanoTime() - start;
+        }
+    }
+
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("board after %.1fms, ready after %.1fms (", boardNanos / 1e6, readyNanos / 1e6));
+        for (int i = 0; i < phases.size(); i++) {
+            stats.append(i == 0 ? "" : ", ").append(String.format("%s %.1fms", phases.get(i), phaseNanos.get(i) / 1e6));
+        }
+        return stats.append(")").toString();
+    }
+}
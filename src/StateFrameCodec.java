@@ -0,0 +1,157 @@
+/*
+ * Filename: StateFrameCodec.java
+ * Description: Delta encoding of protocol 0 (STATE) frames.
+ *
+ * Note:
+ * A frame is the STATE frame header (see Protocol), the board it belongs to, a 16 bit mask, and then one value for
+ * every field that changed since the previous frame. The low 8 bits of the mask say which fields are present, the high
+ * 8 bits say that the field is sent as a signed byte delta instead of an absolute value (a short, or an
+ * int for the tick and the input ack). Between two snapshots the tick and the ball move a bit, the rest
+ * usually doesn't, so a normal frame is around 10 bytes with the frame header.
+ *
+ * Besides the positions a frame carries what the client needs to interpolate and predict: the server tick,
+ * the ball velocity, the reset delay after a miss, and the last input the server applied to this board.
+ *
+ * Both ends keep the last quantized values, so one codec instance is needed per board and direction and
+ * frames have to arrive in order (fine on TCP). When nothing changed no frame is written at all.
+ * writeFull() frames (the UDP snapshots, see DatagramStateSender) have every field absolute, they make sense
+ * whatever came before them, or didn't.
+ */
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class StateFrameCodec {
+
+    public static final int TICK = 0;
+    public static final int PADDLE_X = 1;
+    public static final int BALL_X = 2;
+    public static final int BALL_Y = 3;
+    public static final int BALL_VX = 4;
+    public static final int BALL_VY = 5;
+    public static final int RESET_DELAY = 6;
+    public static final int INPUT_ACK = 7;
+    public static final int FIELD_COUNT = 8;
+    private static final int DELTA_SHIFT = FIELD_COUNT;
+    // These don't fit in a short, they go as ints when they can't be a delta
+    private static final int WIDE_FIELDS = (1 << TICK) | (1 << INPUT_ACK);
+
+    private final int board;
+    private final int[] values = new int[FIELD_COUNT];
+    private boolean hasState = false;
+
+    // board is one of Protocol.BOARD_*, only used when writing
+    public StateFrameCodec(int board) {
+        this.board = board;
+    }
+
+    // Fills state with what a frame of this engine carries. inputAck is the last input applied to it, 0 if nobody predicts it
+    public static void capture(int[] state, long tick, BreakoutEngine engine, int inputAck) {
+        state[TICK] = (int) tick;
+        state[PADDLE_X] = Protocol.quantize(engine.getPaddleX());
+        state[BALL_X] = Protocol.quantize(engine.getBallX());
+        state[BALL_Y] = Protocol.quantize(engine.getBallY());
+        state[BALL_VX] = Protocol.quantizeVelocity(engine.getVx());
+        state[BALL_VY] = Protocol.quantizeVelocity(engine.getVy());
+        state[RESET_DELAY] = engine.getResetDelay();
+        state[INPUT_ACK] = inputAck;
+    }
+
+    // state comes from capture(), returns false if nothing changed, in that case nothing was written
+    public boolean write(DataOutput out, int[] state) throws IOException {
+        int mask = 0;
+        // Board and mask, then the fields
+        int length = 3;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            int delta = state[field] - values[field];
+            if (!hasState || delta != 0) {
+                mask |= 1 << field;
+                if (hasState && delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+                    mask |= 1 << (field + DELTA_SHIFT);
+                    length += 1;
+                } else {
+                    length += (WIDE_FIELDS & (1 << field)) != 0 ? 4 : 2;
+                }
+            }
+        }
+        if (mask == 0) {
+            return false;
+        }
+
+        Protocol.writeFrameHeader(out, Protocol.STATE, length);
+        out.writeByte(board);
+        out.writeShort(mask);
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((mask & (1 << field)) == 0) {
+                continue;
+            }
+            if ((mask & (1 << (field + DELTA_SHIFT))) != 0) {
+                out.writeByte(state[field] - values[field]);
+            } else if ((WIDE_FIELDS & (1 << field)) != 0) {
+                out.writeInt(state[field]);
+            } else {
+                out.writeShort(state[field]);
+            }
+            values[field] = state[field];
+        }
+        hasState = true;
+        return true;
+    }
+
+    // Every field as an absolute value, for datagrams (see DatagramStateSender), where the frame before might be lost
+    public void writeFull(DataOutput out, int[] state) throws IOException {
+        hasState = false;
+        write(out, state);
+    }
+
+    // Reads the rest of a frame, the frame header and the board were already consumed by whoever dispatched it (Protocol.State)
+    public void read(ByteBuffer in) {
+        int mask = in.getShort() & 0xFFFF;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((mask & (1 << field)) == 0) {
+                continue;
+            }
+            if ((mask & (1 << (field + DELTA_SHIFT))) != 0) {
+                values[field] += in.get();
+            } else if ((WIDE_FIELDS & (1 << field)) != 0) {
+                values[field] = in.getInt();
+            } else {
+                values[field] = in.getShort();
+            }
+        }
+        hasState = true;
+    }
+
+    public int getTick() {
+        return values[TICK];
+    }
+
+    public double getPaddleX() {
+        return Protocol.dequantize(values[PADDLE_X]);
+    }
+
+    public double getBallX() {
+        return Protocol.dequantize(values[BALL_X]);
+    }
+
+    public double getBallY() {
+        return Protocol.dequantize(values[BALL_Y]);
+    }
+
+    public double getVx() {
+        return Protocol.dequantizeVelocity(values[BALL_VX]);
+    }
+
+    public double getVy() {
+        return Protocol.dequantizeVelocity(values[BALL_VY]);
+    }
+
+    public int getResetDelay() {
+        return values[RESET_DELAY];
+    }
+
+    public int getInputAck() {
+        return values[INPUT_ACK];
+    }
+}
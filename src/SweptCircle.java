@@ -0,0 +1,170 @@
+/*
+ * Filename: SweptCircle.java
+ * Description: Continuous collision of a moving circle against axis aligned boxes, time of impact and hit normal.
+ *
+ * Note:
+ * The engine used to move the ball by (vx, vy) and then probe four corners of its bounding box. Anything
+ * thinner than one tick of movement could be jumped over (an 8px brick at 10px per tick, or the paddle).
+ * Here the whole move is tested instead: the box grown by the radius (rounded corners) against the line
+ * the circle's center travels along. Call reset(), then sweepBox() for everything the circle could touch,
+ * and whatever was hit first is left in time/normal/target.
+ *
+ * time is a fraction of the move (0 = where it starts, 1 = the whole move), the normal points out of
+ * the box towards the circle. Touching something we are already moving away from doesn't count, so after a
+ * bounce the same box doesn't get hit again. One instance is reused every tick, nothing is allocated.
+ */
+
+public class SweptCircle {
+
+    public static final int NONE = -1;
+
+    // Results, valid after the sweeps of one reset()
+    private double time;
+    private double normalX, normalY;
+    private int target;
+
+    // Forgets the last hit, the next sweeps look for anything before the end of the move
+    public void reset() {
+        time = 1;
+        normalX = 0;
+        normalY = 0;
+        target = NONE;
+    }
+
+    // Circle at (cx, cy) with radius r moving by (dx, dy), box from (left, top) to (right, bottom).
+    // If it touches the box before anything swept so far, that becomes the hit (with target) and we return true
+    public boolean sweepBox(double cx, double cy, double r, double dx, double dy,
+                            double left, double top, double right, double bottom, int target) {
+        // Most boxes aren't anywhere near the move, that's cheaper to see than the divisions below
+        if (Math.max(cx, cx + dx) + r < left || Math.min(cx, cx + dx) - r > right
+                || Math.max(cy, cy + dy) + r < top || Math.min(cy, cy + dy) - r > bottom) {
+            return false;
+        }
+        // The line of the center against the box grown by r on every side, entry and exit time per axis
+        double enterX, exitX, enterY, exitY;
+        if (dx == 0) {
+            if (cx <= left - r || cx >= right + r) {
+                return false;
+            }
+            enterX = Double.NEGATIVE_INFINITY;
+            exitX = Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (left - r - cx) / dx;
+            double t2 = (right + r - cx) / dx;
+            enterX = Math.min(t1, t2);
+            exitX = Math.max(t1, t2);
+        }
+        if (dy == 0) {
+            if (cy <= top - r || cy >= bottom + r) {
+                return false;
+            }
+            enterY = Double.NEGATIVE_INFINITY;
+            exitY = Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (top - r - cy) / dy;
+            double t2 = (bottom + r - cy) / dy;
+            enterY = Math.min(t1, t2);
+            exitY = Math.max(t1, t2);
+        }
+        double enter = Math.max(enterX, enterY);
+        double exit = Math.min(exitX, exitY);
+        if (enter >= exit || exit <= 0 || enter >= time) {
+            return false;
+        }
+
+        if (enter <= 0) {
+            return sweepFromInside(cx, cy, r, dx, dy, left, top, right, bottom, target);
+        }
+        double px = cx + dx * enter;
+        double py = cy + dy * enter;
+        if (enterX > enterY) {
+            if (py >= top && py <= bottom) {
+                return record(enter, -Math.signum(dx), 0, target);
+            }
+        } else if (px >= left && px <= right) {
+            return record(enter, 0, -Math.signum(dy), target);
+        }
+        // Went into the grown box at one of its corners, but there it's rounded
+        return sweepCorner(cx, cy, r, dx, dy, px < left ? left : right, py < top ? top : bottom, target);
+    }
+
+    // The circle starts within r of the box: either overlapping it already, or next to one of its corners
+    private boolean sweepFromInside(double cx, double cy, double r, double dx, double dy,
+                                    double left, double top, double right, double bottom, int target) {
+        double qx = Math.max(left, Math.min(right, cx));
+        double qy = Math.max(top, Math.min(bottom, cy));
+        double offX = cx - qx;
+        double offY = cy - qy;
+        double distanceSq = offX * offX + offY * offY;
+        if (distanceSq >= r * r) {
+            return sweepCorner(cx, cy, r, dx, dy, qx, qy, target);
+        }
+
+        double nx, ny;
+        if (distanceSq > 0) {
+            double distance = Math.sqrt(distanceSq);
+            nx = offX / distance;
+            ny = offY / distance;
+        } else {
+            // Center inside the box, out through the closest side
+            double toLeft = cx - left;
+            double toRight = right - cx;
+            double toTop = cy - top;
+            double toBottom = bottom - cy;
+            double closest = Math.min(Math.min(toLeft, toRight), Math.min(toTop, toBottom));
+            nx = closest == toLeft ? -1 : closest == toRight ? 1 : 0;
+            ny = nx != 0 ? 0 : closest == toTop ? -1 : 1;
+        }
+        // Already on the way out, let it go
+        if (dx * nx + dy * ny >= 0) {
+            return false;
+        }
+        return record(0, nx, ny, target);
+    }
+
+    // Circle against the point (kx, ky), which is the circle of radius r around the corner for the center
+    private boolean sweepCorner(double cx, double cy, double r, double dx, double dy, double kx, double ky, int target) {
+        double mx = cx - kx;
+        double my = cy - ky;
+        double a = dx * dx + dy * dy;
+        double halfB = mx * dx + my * dy;
+        double c = mx * mx + my * my - r * r;
+        if (a == 0 || halfB >= 0) {
+            return false;
+        }
+        double discriminant = halfB * halfB - a * c;
+        if (discriminant < 0) {
+            return false;
+        }
+        double t = Math.max(0, (-halfB - Math.sqrt(discriminant)) / a);
+        if (t >= time) {
+            return false;
+        }
+        return record(t, (mx + dx * t) / r, (my + dy * t) / r, target);
+    }
+
+    private boolean record(double t, double nx, double ny, int target) {
+        this.time = t;
+        this.normalX = nx;
+        this.normalY = ny;
+        this.target = target;
+        return true;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public double getNormalX() {
+        return normalX;
+    }
+
+    public double getNormalY() {
+        return normalY;
+    }
+
+    // What was hit first, NONE if nothing
+    public int getTarget() {
+        return target;
+    }
+}